@@ -0,0 +1,84 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches how full the heap is, so that the search can stop growing its
+ * trees well before the JVM runs out of memory, or spends its time in
+ * full collections.
+ *
+ * Only the heap pools that hold long-lived objects, such as the trees,
+ * are counted: those that support usage thresholds.  The others, such as
+ * the eden space, are mostly garbage waiting for the next collection.
+ * Even the long-lived pools fill up with dead objects between full
+ * collections, so what's counted is how much was left after the last
+ * collection of each, which is what's really live.  If there are no such
+ * pools, the whole heap is counted.
+ */
+final class HeapMonitor
+{
+	/**
+	 * The fraction of the heap in use above which the trees stop growing.
+	 */
+	static final double HIGH_WATER = 0.8;
+
+	private static final MemoryMXBean memory_bean = ManagementFactory.getMemoryMXBean();
+	private static final List<MemoryPoolMXBean> tenured_pools = new ArrayList<MemoryPoolMXBean>();
+
+	static
+	{
+		for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() &&
+				pool.isCollectionUsageThresholdSupported())
+			{
+				tenured_pools.add(pool);
+			}
+		}
+	}
+
+	private HeapMonitor()
+	{
+	}
+
+	/**
+	 * Returns the fraction of the heap that was in use after the last
+	 * collection.
+	 */
+	static double used_fraction()
+	{
+		long heap_max = memory_bean.getHeapMemoryUsage().getMax();
+		long used = 0;
+		long max = 0;
+
+		for (MemoryPoolMXBean pool: tenured_pools)
+		{
+			MemoryUsage usage = pool.getCollectionUsage();
+			used += usage.getUsed();
+			max += (usage.getMax() >= 0) ? usage.getMax() : heap_max;
+		}
+
+		if (max <= 0)
+		{
+			MemoryUsage heap = memory_bean.getHeapMemoryUsage();
+			used = heap.getUsed();
+			max = (heap.getMax() >= 0) ? heap.getMax() : heap.getCommitted();
+		}
+
+		return (double) used / max;
+	}
+
+	/**
+	 * Returns whether the heap is too full for the trees to grow.
+	 */
+	static boolean heap_short()
+	{
+		return used_fraction() > HIGH_WATER;
+	}
+}
@@ -1,7 +1,6 @@
 package org.ggp.base.player.gamer.statemachine.heavensbee;
 
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.ConsoleHandler;
@@ -20,10 +19,31 @@ import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
-import org.ggp.base.util.statemachine.exceptions.TimeToGetMovingException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachine;
+
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class HeavensbeeMCTSMP extends SampleGamer {
+	/**
+	 * The ways in which the workers can share out the search.
+	 */
+	public enum SearchMode
+	{
+		/**
+		 * The workers all search one tree, using virtual losses to keep out
+		 * of each other's way.
+		 */
+		TREE_PARALLEL,
+
+		/**
+		 * Each worker searches a tree of its own, and the statistics of the
+		 * roots' children are pooled to choose a move.  The trees are never
+		 * shared, so the workers never wait for each other.
+		 */
+		ROOT_PARALLEL
+	}
+
 	public Logger log = null;
 	private int depth_limit = 0;
 	private long hard_deadline;
@@ -31,13 +51,66 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 	private StateMachine cur_sm;
 	private MachineState cur_state;
 	private Role cur_role;
-	private MCTSMPNode2 cur_node = null;
+	private MCTSMPTree cur_tree = null;
 	public Map<Role, Integer> game_role_indices;
 	public int game_role_index;
 	private ConsoleHandler console_handler = null;
 	private boolean added_console_handler = false;
 	private FileHandler match_handler = null;
-	public int game_type;
+	public volatile int game_type;
+
+	/**
+	 * How many threads search the tree at once.
+	 */
+	private int num_workers = Runtime.getRuntime().availableProcessors();
+
+	private SearchMode search_mode = SearchMode.TREE_PARALLEL;
+
+	/**
+	 * The most nodes to keep in the search trees at once, shared between
+	 * them in root-parallel mode.
+	 */
+	private int max_nodes = DEFAULT_MAX_NODES;
+
+	public static final int DEFAULT_MAX_NODES = 1 << 20;
+
+	/**
+	 * How many visits of its own a node needs before its average counts as
+	 * much as its AMAF average, from the next tree made; 0 turns RAVE off,
+	 * which it is unless set.  Read by the trees.
+	 */
+	int rave_equivalence = 0;
+
+	/**
+	 * A reasonable equivalence for games where simulations are expensive.
+	 */
+	public static final int DEFAULT_RAVE_EQUIVALENCE = 500;
+
+	/**
+	 * The probability of a rollout playing a random move rather than the one
+	 * with the best average so far, from the next match; 1, the default,
+	 * plays every move at random and keeps no averages.
+	 */
+	private double mast_epsilon = 1;
+
+	/**
+	 * Whether the workers go on searching in the background after a move
+	 * has been chosen, until the next one is asked for.
+	 */
+	private boolean pondering = false;
+
+	/**
+	 * The workers, the first of which uses the gamer's own state machine
+	 * unless pondering.  They're made on the first move of a match, and kept
+	 * until it ends.
+	 */
+	private MCTSMPWorker[] workers = null;
+
+	/** The gamer's state machine when the workers were made. */
+	private StateMachine workers_sm = null;
+
+	/** The threads of the workers while they ponder. */
+	private Thread[] ponder_threads = null;
 
 	public HeavensbeeMCTSMP() {
 		log = Logger.getLogger("MonteCarloTree");
@@ -56,6 +129,11 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 
 		log.log(Level.WARNING, "started stateMachineMetaGame with timeout {0} ", new Object[]{timeout});
 
+		/*
+		 * A match that was never stopped may have left the workers pondering.
+		 */
+		stop_pondering();
+
 		Match cur_match = getMatch();
 		String log_for_match = "E:/ggplogs/Heavensbee." + cur_match.getMatchId() + ".log";
 
@@ -104,7 +182,8 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 		/*
 		 * Clear up any old state
 		 */
-		cur_node = null;
+		cur_tree = null;
+		workers = null;
 
 		/*
 		 * Call into stateMachineSelectMove to pregame the system.
@@ -124,6 +203,11 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 		log.log( Level.WARNING, "start stateMachineSelectMove at {2} with timeout {1} and {0} milliseconds to think",
 				new Object[]{remaining, timeout, start});
 
+		/*
+		 * The workers may still be searching from the last move.
+		 */
+		stop_pondering();
+
 		/**
 		 * We put in memory the list of legal moves from the
 		 * current state. The goal of every stateMachineSelectMove()
@@ -133,6 +217,11 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 		cur_sm = getStateMachine();
 		cur_state = getCurrentState();
 
+		if (workers == null || workers_sm != cur_sm)
+		{
+			create_workers();
+		}
+
 		log.log(Level.FINE, "Current state is {0}", cur_state);
 
 		List<Move> moves = cur_sm.getLegalMoves(cur_state, cur_role);
@@ -140,92 +229,67 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 
 		int num_simulations = 0;
 
-		if (cur_node == null)
-		{
-			/*
-			 * Create the initial node
-			 */
-			cur_node = new MCTSMPNode2(cur_state, null, this);
-		}
-		else if (cur_node.getCurrent_state().equals(cur_state))
+		/*
+		 * Move each tree on to the current state, and point the workers at
+		 * them: the one shared tree, or each worker's own.
+		 */
+		if (search_mode == SearchMode.TREE_PARALLEL)
 		{
-			log.log( Level.INFO, "## The current node already defines this state");
+			cur_tree = advance_tree(cur_tree, max_nodes);
+
+			for (MCTSMPWorker worker: workers)
+			{
+				worker.prepare(cur_tree, hard_deadline);
+			}
 		}
 		else
 		{
-			/*
-			 * Cull the states we're not in, and make the current node the state we are in.
-			 */
-			cur_node = cur_node.cull(cur_state);
+			for (MCTSMPWorker worker: workers)
+			{
+				worker.prepare(advance_tree(worker.getTree(), Math.max(max_nodes / workers.length, 1)),
+						       hard_deadline);
+			}
 		}
 
 		/*
-		 * Select the node which we're going to be using.
+		 * Search the trees until the deadline.
 		 */
-		MCTSMPNode2 chosen_node;
-		long now = System.currentTimeMillis();
+		long search_start = System.currentTimeMillis();
+		num_simulations = search();
+		long search_time = System.currentTimeMillis() - search_start;
 
-		/*
-		 * Only operate while there's time left before the deadline.
+		/**
+		 * Select the most appropriate move.
 		 */
-		while ((now < hard_deadline))
+		if (search_mode == SearchMode.TREE_PARALLEL)
 		{
-			if (cur_node.fully_expanded())
+			if (cur_tree.fully_expanded(cur_tree.root()))
 			{
 				log.log(Level.WARNING, "@@ Tree is fully expanded from this point");
 			}
-			else
-			{
-				/*
-				 * Select a node to expand.
-				 */
-				chosen_node = cur_node.select();
-
-				/*
-				 * Expand that chosen node.
-				 */
-				chosen_node.expand();
-
-				try
-				{
-					/*
-					 * Simulate this node.
-					 */
-					double[] utilities = node_simulate(chosen_node);
-					num_simulations++;
-
-					/*
-					 * Backpropagate that node's utility.
-					 */
-					chosen_node.backpropagate(utilities);
-				}
-				catch (TimeToGetMovingException ttgm)
-				{
-					log.log(Level.WARNING, "Interrupted a depth charge");
-				}
-			}
 
-			if (cur_node.fully_expanded())
+			log.log(Level.WARNING, "Tree has {0} of {1} nodes", new Object[]{cur_tree.size(), cur_tree.max_nodes()});
+			selection = cur_tree.most_appropriate_move();
+		}
+		else
+		{
+			MCTSMPTree[] trees = new MCTSMPTree[workers.length];
+
+			for (int ii = 0; ii < workers.length; ii++)
 			{
-				break;
+				trees[ii] = workers[ii].getTree();
 			}
 
-			/*
-			 * Update the time
-			 */
-			now = System.currentTimeMillis();
+			selection = MCTSMPTree.most_appropriate_move(trees);
 		}
 
-		/**
-		 * Select the most appropriate move.
-		 */
-		selection = cur_node.most_appropriate_move();
-
 		// We get the end time
 		// It is mandatory that stop<timeout
 		long stop = System.currentTimeMillis();
 		log.log(Level.WARNING, "Chose move {0}", new Object[]{selection});
-		log.log(Level.WARNING, "Managed {0} simulations in {1} milliseconds", new Object[]{num_simulations, stop - start});
+		log.log(Level.WARNING, "Managed {0} simulations in {1} milliseconds with {2} workers", new Object[]{num_simulations, stop - start, workers.length});
+		log.log(Level.WARNING, "{0}: {1} simulations per second",
+				new Object[]{search_mode, search_time > 0 ? num_simulations * 1000L / search_time : num_simulations});
 
 		/**
 		 * These are functions used by other parts of the GGP codebase
@@ -234,120 +298,352 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 		 * this example, and copy-paste these two lines in your player
 		 */
 		notifyObservers(new GamerSelectedMoveEvent(moves, selection, stop - start));
+
+		if (pondering)
+		{
+			start_pondering();
+		}
+
 		log.log( Level.WARNING, "end stateMachineSelectMove }");
 		return selection;
 	}
 
-	public double[] node_simulate(MCTSMPNode2 chosen_node)
-			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeToGetMovingException
+	/**
+	 * Sets how many threads search the tree at once, from the next match.
+	 * By default there's one for each processor.
+	 */
+	public void setNumWorkers(int num_workers)
+	{
+		if (num_workers < 1)
+		{
+			throw new IllegalArgumentException("Need at least one worker, not " + num_workers);
+		}
+		this.num_workers = num_workers;
+	}
+
+	/**
+	 * Sets how the workers share out the search.  This should be done before
+	 * a match starts, as the trees searched so far are only kept in the mode
+	 * that searched them.
+	 */
+	public void setSearchMode(SearchMode search_mode)
+	{
+		this.search_mode = search_mode;
+	}
+
+	/**
+	 * Sets whether the workers go on searching the trees while the other
+	 * players choose their moves, from the next match.  Each worker then
+	 * needs a state machine of its own, as the gamer's is used between
+	 * moves.
+	 */
+	public void setPondering(boolean pondering)
+	{
+		this.pondering = pondering;
+	}
+
+	/**
+	 * Sets how far selection trusts All-Moves-As-First statistics, from the
+	 * next match: a node's average and its AMAF average count equally once
+	 * it has rave_equivalence visits of its own.  Collecting the statistics
+	 * means playing rollouts move by move rather than by fast depth charge,
+	 * so this is worth most where simulations are few.  0 turns RAVE off.
+	 */
+	public void setRaveEquivalence(int rave_equivalence)
+	{
+		if (rave_equivalence < 0)
+		{
+			throw new IllegalArgumentException("RAVE equivalence can't be negative: " + rave_equivalence);
+		}
+		this.rave_equivalence = rave_equivalence;
+	}
+
+	/**
+	 * Sets how rollouts are guided by the Move-Average Sampling Technique,
+	 * from the next match: every move made in a simulation counts towards
+	 * its average utility, wherever in the game it was made, and rollouts
+	 * play the move with the best average, or with probability epsilon one
+	 * at random.  1 plays every move at random, as without MAST.
+	 *
+	 * This is the only way to turn MAST on, as no player does by default:
+	 * against unguided rollouts on connectFour, 0.4 lost 1-11 and 0.6 lost
+	 * 3-7, and only 0.8 to 0.95 came out about even, over 10 games each.
+	 */
+	public void setMastEpsilon(double mast_epsilon)
+	{
+		if (!(mast_epsilon >= 0 && mast_epsilon <= 1))
+		{
+			throw new IllegalArgumentException("MAST epsilon must be between 0 and 1: " + mast_epsilon);
+		}
+		this.mast_epsilon = mast_epsilon;
+	}
+
+	/**
+	 * Sets the most nodes to keep in the search trees at once, from the next
+	 * match.  Every node costs its state and moves, as well as its share of
+	 * the tree's arrays, so this bounds the memory the search uses.
+	 */
+	public void setMaxNodes(int max_nodes)
 	{
-		log.log(Level.INFO, "Simulating node {0} (visits {1})", new Object[]{chosen_node, /*chosen_node.node_visits*/ 0});
-		double[] utility_array = montecarlo(cur_role, chosen_node.getCurrent_state(), 5);
-		return utility_array;
+		if (max_nodes < 1)
+		{
+			throw new IllegalArgumentException("Need at least one node, not " + max_nodes);
+		}
+		this.max_nodes = max_nodes;
+	}
+
+	/**
+	 * Returns the given tree with its root moved to the current state, or a
+	 * new tree of up to tree_max_nodes nodes if there's none yet.
+	 */
+	private MCTSMPTree advance_tree(MCTSMPTree tree, int tree_max_nodes)
+	{
+		if (tree == null)
+		{
+			/*
+			 * Create the initial node
+			 */
+			return new MCTSMPTree(this, cur_state, tree_max_nodes);
+		}
+		else if (tree.state(tree.root()).equals(cur_state))
+		{
+			log.log( Level.INFO, "## The current node already defines this state");
+		}
+		else
+		{
+			/*
+			 * Cull the states we're not in, and make the current node the state we are in.
+			 */
+			tree.cull(cur_state);
+		}
+
+		/*
+		 * If what's left is close to filling the tree, prune it to half its
+		 * size, so that the search has room to go on growing.  Likewise if
+		 * the heap is close to full, but only if the tree is big enough to
+		 * be what's filling it: pruning a small tree frees next to nothing.
+		 */
+		boolean tree_full = tree.size() > tree.max_nodes() / 4 * 3;
+		boolean tree_filling_heap = tree.size() > tree.max_nodes() / 4 && HeapMonitor.heap_short();
+
+		if (tree_full || tree_filling_heap)
+		{
+			log.log(Level.WARNING, "Pruning tree of {0} nodes with {1} of the heap in use",
+					new Object[]{tree.size(), HeapMonitor.used_fraction()});
+			tree.prune(tree.size() / 2);
+		}
+
+		return tree;
 	}
 
-	public double[] montecarlo(Role role, MachineState state, int count) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException, TimeToGetMovingException
+	/**
+	 * Makes the workers for this match.  Each needs a state machine of its
+	 * own: a propnet machine can share its propnet with cheap copies, and
+	 * any other kind is made afresh from the rules.  The first worker uses
+	 * the gamer's, unless the workers are to ponder.  If rollouts are to be
+	 * guided by MAST, they share one table of move averages.
+	 */
+	private void create_workers()
 	{
-		double[] goals = new double[game_role_indices.size()];
+		workers = new MCTSMPWorker[num_workers];
+		workers_sm = cur_sm;
 
-		log.log(Level.FINE, "  Starting montecarlo in state {0}", state);
+		MastTable mast = (mast_epsilon < 1) ? new MastTable(cur_sm, mast_epsilon) : null;
 
-		if (cur_sm.isTerminal(state))
+		for (int ii = 0; ii < num_workers; ii++)
 		{
-			for (Map.Entry<Role, Integer> entry: game_role_indices.entrySet())
+			StateMachine worker_sm;
+
+			if (ii == 0 && !pondering)
+			{
+				worker_sm = cur_sm;
+			}
+			else if (cur_sm instanceof HeavensbeePropNetStateMachine)
+			{
+				worker_sm = ((HeavensbeePropNetStateMachine) cur_sm).createWorkerCopy();
+			}
+			else
 			{
-				int role_index = entry.getValue();
-				goals[role_index] = cur_sm.getGoal(state, entry.getKey());
-				goals[role_index] /= 100;
+				worker_sm = getInitialStateMachine();
+				worker_sm.initialize(getMatch().getGame().getRules());
 			}
 
-			log.log(Level.FINE, "    Terminal state: scores are {0}", goals);
-			return goals;
+			workers[ii] = new MCTSMPWorker(this, worker_sm, mast);
 		}
 
-		for (int ii = 0; ii < game_role_indices.size(); ii++)
+		log.log(Level.WARNING, "Created {0} search workers", num_workers);
+	}
+
+	/**
+	 * Has every worker search from the node it was prepared with until the
+	 * hard deadline, and returns the total number of simulations they
+	 * managed.  With only one worker, the search is run on this thread.
+	 */
+	private int search()
+			throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+	{
+		if (workers.length == 1)
 		{
-			goals[ii] = 0;
+			workers[0].run();
 		}
+		else
+		{
+			Thread[] threads = start_workers("MCTSMP worker");
 
-		double total = 0;
-		int[] depth = new int[1];
+			/**
+			 * The workers stop at the deadline by themselves.  Don't give up
+			 * on them early, as the tree can't be used while they're in it.
+			 */
+			for (Thread thread: threads)
+			{
+				Uninterruptibles.joinUninterruptibly(thread);
+			}
+		}
 
-		double sum_goals = 0;
-		double goalvalue;
+		int num_simulations = 0;
 
-		for (int ii = 0; ii < count; ii++)
+		for (MCTSMPWorker worker: workers)
 		{
-			MachineState stateForCharge = state.clone();
-//			log.log(Level.FINER, "    Performing depth charge {0}", ii);
+			num_simulations += worker.getSimulations();
+		}
 
-			stateForCharge = cur_sm.performTimedDepthCharge(stateForCharge, depth, hard_deadline);
+		for (MCTSMPWorker worker: workers)
+		{
+			rethrow(worker.getFailure());
+		}
 
-			//stateForCharge = log_performDepthCharge(stateForCharge, depth);
-//			log.log(Level.FINER, "    Finished depth charge {0}", ii);
-//			try
-//			{
+		return num_simulations;
+	}
 
+	private Thread[] start_workers(String name)
+	{
+		Thread[] threads = new Thread[workers.length];
 
-				for (Map.Entry<Role, Integer> entry: game_role_indices.entrySet())
-				{
-					int role_index = entry.getValue();
-					goalvalue = cur_sm.getGoal(stateForCharge, entry.getKey());
-					goalvalue /= 100;
+		for (int ii = 0; ii < workers.length; ii++)
+		{
+			threads[ii] = new Thread(workers[ii], name + " " + ii);
+			threads[ii].setDaemon(true);
+			threads[ii].start();
+		}
 
-					/**
-					 * Add the value / count as it's the average of "count"
-					 * runs.
-					 */
+		return threads;
+	}
 
-					goals[role_index] += (goalvalue / count);
+	/**
+	 * Sets every worker searching its tree again from where it stopped, in
+	 * the background, until stop_pondering() is called.  The next move
+	 * culls the trees to the state that's actually reached, keeping what
+	 * was found below it.
+	 */
+	private void start_pondering()
+	{
+		for (MCTSMPWorker worker: workers)
+		{
+			worker.prepare(worker.getTree(), Long.MAX_VALUE);
+		}
 
-					if (ii == 0)
-					{
-						sum_goals += goalvalue;
-					}
-				}
-//				goal = cur_sm.getGoal(stateForCharge, role);
-//				goal /= 100;
-//			}
-//			catch (GoalDefinitionException gde)
-//			{
-//				log.log(Level.SEVERE, "Goal definition exception" + gde);
-//				goal = 0;
-//			}
+		ponder_threads = start_workers("MCTSMP ponderer");
+	}
+
+	/**
+	 * Stops the workers pondering, if they are, and waits for them, so that
+	 * the trees and state machines can be used again.  A worker that failed
+	 * while pondering is only logged, as there's still a move to choose.
+	 */
+	private void stop_pondering()
+	{
+		if (ponder_threads == null)
+		{
+			return;
+		}
+
+		for (MCTSMPWorker worker: workers)
+		{
+			worker.halt();
+		}
+
+		for (Thread thread: ponder_threads)
+		{
+			Uninterruptibles.joinUninterruptibly(thread);
+		}
+
+		ponder_threads = null;
+		int num_simulations = 0;
+
+		for (MCTSMPWorker worker: workers)
+		{
+			num_simulations += worker.getSimulations();
+
+			if (worker.getFailure() != null)
+			{
+				log.log(Level.WARNING, "A worker failed while pondering", worker.getFailure());
+			}
+		}
+
+		log.log(Level.WARNING, "Pondered {0} simulations since the last move", num_simulations);
+	}
 
-//			total = total + goal;
+	private static void rethrow(Exception failure)
+			throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+	{
+		if (failure == null)
+		{
+			return;
+		}
+		else if (failure instanceof MoveDefinitionException)
+		{
+			throw (MoveDefinitionException) failure;
+		}
+		else if (failure instanceof TransitionDefinitionException)
+		{
+			throw (TransitionDefinitionException) failure;
+		}
+		else if (failure instanceof GoalDefinitionException)
+		{
+			throw (GoalDefinitionException) failure;
+		}
+		else if (failure instanceof RuntimeException)
+		{
+			throw (RuntimeException) failure;
 		}
 
-//		double rc = total / count;
+		throw new RuntimeException(failure);
+	}
 
-		if (game_type == -1)
+	/**
+	 * Works out the type of game from the goal values at the end of a depth
+	 * charge.  Every worker may try this at the start, but only the first
+	 * decides.
+	 */
+	synchronized void determine_game_type(double sum_goals)
+	{
+		if (game_type != -1)
+		{
+			return;
+		}
+
+		/* Determine game type */
+		if (game_role_indices.size() == 1)
+		{
+			/* Single player game */
+			log.log(Level.WARNING, "Detected single player game");
+			game_type = 0;
+		}
+		else
 		{
-			/* Determine game type */
-			if (game_role_indices.size() == 1)
+			if (Math.abs(sum_goals - 1) < 0.00001)
 			{
-				/* Single player game */
-				log.log(Level.WARNING, "Detected single player game");
-				game_type = 0;
+				/* Zero sum game */
+				log.log(Level.WARNING, "Detected zero sum game as sum goals v close to 1");
+				game_type = 1;
 			}
 			else
 			{
-				if (Math.abs(sum_goals - 1) < 0.00001)
-				{
-					/* Zero sum game */
-					log.log(Level.WARNING, "Detected zero sum game as sum goals v close to 1");
-					game_type = 1;
-				}
-				else
-				{
-					/* Can both score well */
-					log.log(Level.WARNING, "Detected combative game (not zero sum)");
-					game_type = 2;
-				}
+				/* Can both score well */
+				log.log(Level.WARNING, "Detected combative game (not zero sum)");
+				game_type = 2;
 			}
 		}
-		log.log( Level.FINE, "  Montecarlo returned {0}", Arrays.toString(goals) );
-		return goals;
 	}
 
     public MachineState log_performDepthCharge(MachineState state, final int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
@@ -392,7 +688,15 @@ public class HeavensbeeMCTSMP extends SampleGamer {
 
 	@Override
 	public void stateMachineStop() {
-		// Sample gamers do no special cleanup when the match ends normally.
-		cur_node = null;
+		stop_pondering();
+		cur_tree = null;
+		workers = null;
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		stop_pondering();
+		cur_tree = null;
+		workers = null;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
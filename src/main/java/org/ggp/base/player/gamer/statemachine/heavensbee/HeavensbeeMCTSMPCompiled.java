@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeeCompiledPropNetStateMachine;
+
+
+public final class HeavensbeeMCTSMPCompiled extends HeavensbeeMCTSMP {
+	@Override
+	public StateMachine getInitialStateMachine() {
+		return new HeavensbeeCompiledPropNetStateMachine();
+	}
+}
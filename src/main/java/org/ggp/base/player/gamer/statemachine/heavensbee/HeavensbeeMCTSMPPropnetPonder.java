@@ -0,0 +1,20 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachine;
+
+
+/**
+ * HeavensbeeMCTSMPPropnet that goes on searching while the other players
+ * choose their moves.
+ */
+public final class HeavensbeeMCTSMPPropnetPonder extends HeavensbeeMCTSMP {
+	public HeavensbeeMCTSMPPropnetPonder() {
+		setPondering(true);
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		return new HeavensbeePropNetStateMachine();
+	}
+}
@@ -0,0 +1,20 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachine;
+
+
+/**
+ * HeavensbeeMCTSMPPropnet with a tree for each worker rather than one
+ * shared tree.
+ */
+public final class HeavensbeeMCTSMPPropnetRootParallel extends HeavensbeeMCTSMP {
+	public HeavensbeeMCTSMPPropnetRootParallel() {
+		setSearchMode(SearchMode.ROOT_PARALLEL);
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		return new HeavensbeePropNetStateMachine();
+	}
+}
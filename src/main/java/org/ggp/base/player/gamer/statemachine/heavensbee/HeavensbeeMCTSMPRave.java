@@ -0,0 +1,13 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+
+/**
+ * HeavensbeeMCTSMP blending All-Moves-As-First statistics into selection,
+ * on the default prover-backed state machine, where every simulation has
+ * to count.
+ */
+public final class HeavensbeeMCTSMPRave extends HeavensbeeMCTSMP {
+	public HeavensbeeMCTSMPRave() {
+		setRaveEquivalence(DEFAULT_RAVE_EQUIVALENCE);
+	}
+}
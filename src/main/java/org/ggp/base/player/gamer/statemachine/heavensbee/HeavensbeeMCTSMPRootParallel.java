@@ -0,0 +1,12 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+
+/**
+ * HeavensbeeMCTSMP with a tree for each worker rather than one shared tree,
+ * on the default prover-backed state machine.
+ */
+public final class HeavensbeeMCTSMPRootParallel extends HeavensbeeMCTSMP {
+	public HeavensbeeMCTSMPRootParallel() {
+		setSearchMode(SearchMode.ROOT_PARALLEL);
+	}
+}
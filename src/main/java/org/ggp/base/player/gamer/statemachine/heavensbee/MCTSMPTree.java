@@ -0,0 +1,2304 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Level;
+
+import org.ggp.base.util.statemachine.LegalJointMoves;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.math.IntMath;
+
+/**
+ * The search tree of HeavensbeeMCTSMP.
+ *
+ * Rather than an object for each node, the nodes are numbered, and each of
+ * their fields is kept in an array of its own: visits, utilities, flags,
+ * where the node's children are, and so on.  The arrays are split into
+ * chunks of CHUNK_SIZE nodes, made as they're needed, so that they never
+ * have to be copied as the tree grows.  The children of all the nodes are
+ * kept in the same way, as a run of node numbers for each expanded node,
+ * one for each joint move in the order of its LegalJointMoves.
+ *
+ * Expanding a node only finds its legal moves.  Its children are made one
+ * at a time, as selection tries each joint move, and until then their
+ * places in the run are NO_NODE; selection tries every joint move once
+ * before it goes back to any of them.  So a node with thousands of joint
+ * moves costs one transition per visit, not thousands before the first
+ * simulation.
+ *
+ * With RAVE on, each expanded node also keeps All-Moves-As-First
+ * statistics for its active player's legal moves: the results of every
+ * simulation through the node in which the move was played at any point
+ * below it, in the tree or in the rollout.  Selection blends each child's
+ * own average with the AMAF average of the move leading to it, trusting
+ * the AMAF average less as the child's own visits build up.
+ *
+ * Where more than one role has a choice of moves at once, a node's joint
+ * moves are as many as the product of those choices, so rather than treat
+ * each joint move as a move of its own, the node keeps decoupled
+ * statistics: the visits and utility of each role's moves on their own.
+ * Selection there has each role choose its own move by UCB, and follows
+ * the joint move they make up, making its child if it's not been made
+ * yet.  Each role's choice is then between only its own moves, and learns
+ * from every simulation through the node.
+ *
+ * A tree never holds more than its maximum number of nodes,
+ * and stops growing early if the heap fills up; once it's full, no more
+ * children are made until a cull or a prune makes room.
+ *
+ * The "tree" is really a directed graph: every node is kept in a
+ * transposition table, keyed by its state, so a state reached by more than
+ * one order of moves has one node, with one set of statistics.  Selection
+ * records the path it takes, and results are backpropagated along that
+ * path only, so that every ancestor counts each simulation once.
+ *
+ * The tree may be shared by all of the gamer's worker threads.  A node's
+ * statistics are only updated while holding its lock, which is one of a
+ * fixed set shared out between the nodes.  Its flags are atomic, and a
+ * node's children are set up before it is flagged as expanded, so the
+ * workers can walk the tree while others are changing it.  Selection reads
+ * the statistics without locking; a slightly stale value only changes
+ * which child is tried next.  Culling moves the nodes that are left to the
+ * front of the arrays, and must only be done while no worker is searching.
+ */
+public final class MCTSMPTree {
+	/** The number of no node at all. */
+	static final int NO_NODE = -1;
+
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** The usual size of a chunk of children. */
+	private static final int EDGE_CHUNK_SIZE = 1 << 16;
+
+	/** The usual size of a chunk of decoupled statistics. */
+	private static final int MOVE_CHUNK_BITS = 16;
+	private static final int MOVE_CHUNK_SIZE = 1 << MOVE_CHUNK_BITS;
+
+	private static final int NUM_LOCKS = 256;
+
+	/** How many nodes to set aside between looks at the heap. */
+	private static final int HEAP_CHECK_INTERVAL = 1024;
+
+	/**
+	 * The node's children have been set up.
+	 */
+	private static final int EXPANDED = 1;
+
+	/**
+	 * A worker is setting up the node's children.
+	 */
+	private static final int EXPANDING = 2;
+
+	/**
+	 * Every node below this one has been expanded, so its chosen utilities
+	 * are exact.
+	 */
+	private static final int FULLY_EXPANDED = 4;
+
+	/**
+	 * The node's state is terminal.
+	 */
+	private static final int TERMINAL = 8;
+
+	/**
+	 * A child has been fully expanded, so the node should check whether it
+	 * now is too during backpropagation.
+	 */
+	private static final int SHOULD_CHECK = 16;
+
+	private final HeavensbeeMCTSMP tree_gamer;
+	private final int num_players;
+	private final int max_nodes;
+
+	/*
+	 * The nodes' fields, by chunk.  Utilities are num_players to a node.
+	 */
+	private final AtomicIntegerArray[] node_flags;
+	private final int[][] node_visits;
+	private final int[][] node_virtual_losses;
+	private final byte[][] node_active_player;
+
+	/** The sum of all back propagated utilities, for each player. */
+	private final double[][] node_base_utilities;
+
+	/** The utilities that the active player would likely choose. */
+	private final double[][] node_chosen_utilities;
+
+	/** The index of the child the active player would likely choose. */
+	private final int[][] node_chosen_child;
+
+	/** Where the node's children are: a chunk, and an offset into it. */
+	private final int[][] node_edge_chunk;
+	private final int[][] node_first_edge;
+	private final int[][] node_num_edges;
+
+	/** How many of the node's joint moves have been tried. */
+	private final int[][] node_tried_edges;
+
+	/**
+	 * Where the node's decoupled statistics are: a chunk in the top bits,
+	 * and an offset into it in the bottom MOVE_CHUNK_BITS; or NO_NODE if it
+	 * hasn't got any.
+	 */
+	private final int[][] node_move_stats;
+
+	/** The joint moves of the node's children, in order. */
+	private final LegalJointMoves[][] node_legal_moves;
+	private final MachineState[][] node_states;
+
+	/**
+	 * The children of every node, by chunk.  A node's children never cross
+	 * from one chunk to another, so a node with more than EDGE_CHUNK_SIZE
+	 * of them gets a chunk of its own.  Guarded by tree_lock for writing;
+	 * replaced when it has to grow.
+	 */
+	private volatile int[][] edge_children;
+	private int num_edge_chunks;
+	private int edge_chunk_used;
+
+	/**
+	 * The AMAF statistics, alongside the children in the same chunks and
+	 * at the same offsets, or null if RAVE is off.  Each expanded node has
+	 * an entry for each of its active player's legal moves, which are never
+	 * more than its joint moves.  Utilities are num_players to an entry.
+	 * Updated while holding the node's lock.
+	 */
+	private volatile int[][] edge_amaf_visits;
+	private volatile double[][] edge_amaf_utilities;
+
+	/**
+	 * The decoupled statistics of the nodes where more than one role has a
+	 * choice of moves, in chunks made as they're needed.  Each such node
+	 * has an entry for every legal move of each role with a choice, role
+	 * by role: how many simulations through the node the move was part of,
+	 * counting those still running, and the total utility to its role.
+	 * Guarded by tree_lock for allocation; updated while holding the node's
+	 * lock.
+	 */
+	private volatile int[][] move_visits;
+	private volatile double[][] move_utilities;
+	private int num_move_chunks;
+	private int move_chunk_used;
+
+	/**
+	 * How many visits of its own a child needs before its average counts
+	 * as much as the AMAF average; 0 for no RAVE at all.
+	 */
+	private final int rave_equivalence;
+
+	/**
+	 * The transposition table: node numbers, in open addressing by the hash
+	 * of their states.  Guarded by tree_lock.
+	 */
+	private int[] table;
+
+	/** The number of nodes in use, all of which are numbered below this. */
+	private int num_nodes;
+	private int root;
+
+	/**
+	 * The number of nodes in use, plus those that workers have room set
+	 * aside for while they make them.
+	 */
+	private final AtomicInteger num_reserved = new AtomicInteger();
+
+	/**
+	 * Whether the heap was too full to grow the tree when last looked at,
+	 * and how many more nodes to set aside before looking again.  Neither
+	 * needs to be exact.
+	 */
+	private volatile boolean heap_short = false;
+	private int heap_check_countdown = 0;
+
+	private final Object tree_lock = new Object();
+	private final Object[] node_locks = new Object[NUM_LOCKS];
+
+	/**
+	 * A path through the tree, from the root down, along with the joint
+	 * move taken to each node from the one before.
+	 */
+	static final class Path {
+		private int[] path_nodes = new int[64];
+		private int[] path_edges = new int[64];
+		private int path_length;
+
+		void clear()
+		{
+			path_length = 0;
+		}
+
+		/**
+		 * Adds a node, reached by the given joint move of the last node, or
+		 * NO_NODE if it's the first.
+		 */
+		void add(int node, int edge)
+		{
+			if (path_length == path_nodes.length)
+			{
+				path_nodes = Arrays.copyOf(path_nodes, path_length * 2);
+				path_edges = Arrays.copyOf(path_edges, path_length * 2);
+			}
+			path_nodes[path_length] = node;
+			path_edges[path_length++] = edge;
+		}
+
+		int get(int index)
+		{
+			return path_nodes[index];
+		}
+
+		/**
+		 * Returns the number of the joint move that led to a node on the
+		 * path, among those of the node before it.
+		 */
+		int edge(int index)
+		{
+			return path_edges[index];
+		}
+
+		int size()
+		{
+			return path_length;
+		}
+
+		boolean contains(int node)
+		{
+			for (int ii = 0; ii < path_length; ii++)
+			{
+				if (path_nodes[ii] == node)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a tree holding up to max_nodes nodes, with a root node for the
+	 * given state.
+	 */
+	public MCTSMPTree(HeavensbeeMCTSMP gamer, MachineState root_state, int max_nodes)
+	{
+		tree_gamer = gamer;
+		num_players = gamer.game_role_indices.size();
+		this.max_nodes = max_nodes;
+		rave_equivalence = gamer.rave_equivalence;
+
+		int num_chunks = (max_nodes + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+		node_flags = new AtomicIntegerArray[num_chunks];
+		node_visits = new int[num_chunks][];
+		node_virtual_losses = new int[num_chunks][];
+		node_active_player = new byte[num_chunks][];
+		node_base_utilities = new double[num_chunks][];
+		node_chosen_utilities = new double[num_chunks][];
+		node_chosen_child = new int[num_chunks][];
+		node_edge_chunk = new int[num_chunks][];
+		node_first_edge = new int[num_chunks][];
+		node_num_edges = new int[num_chunks][];
+		node_tried_edges = new int[num_chunks][];
+		node_move_stats = new int[num_chunks][];
+		node_legal_moves = new LegalJointMoves[num_chunks][];
+		node_states = new MachineState[num_chunks][];
+
+		for (int ii = 0; ii < NUM_LOCKS; ii++)
+		{
+			node_locks[ii] = new Object();
+		}
+
+		table = new int[CHUNK_SIZE];
+		reset(root_state);
+	}
+
+	/**
+	 * Throws away every node, leaving only a new root for the given state.
+	 */
+	private void reset(MachineState root_state)
+	{
+		for (int node = 0; node < num_nodes; node++)
+		{
+			node_states[chunk(node)][index(node)] = null;
+			node_legal_moves[chunk(node)][index(node)] = null;
+		}
+
+		num_nodes = 0;
+		new_edge_arena();
+		Arrays.fill(table, NO_NODE);
+		root = allocate_node(root_state);
+		num_reserved.set(num_nodes);
+		heap_check_countdown = 0;
+	}
+
+	/**
+	 * Starts the children, and AMAF and decoupled statistics, afresh.
+	 */
+	private void new_edge_arena()
+	{
+		if (rave_equivalence > 0)
+		{
+			edge_amaf_visits = new int[1][EDGE_CHUNK_SIZE];
+			edge_amaf_utilities = new double[1][EDGE_CHUNK_SIZE * num_players];
+		}
+
+		edge_children = new int[1][EDGE_CHUNK_SIZE];
+		num_edge_chunks = 1;
+		edge_chunk_used = 0;
+
+		/**
+		 * Games without simultaneous choices never need decoupled
+		 * statistics, so their first chunk waits until it's needed.
+		 */
+		move_visits = new int[1][];
+		move_utilities = new double[1][];
+		num_move_chunks = 0;
+		move_chunk_used = 0;
+	}
+
+	/**
+	 * Returns whether the tree keeps AMAF statistics.
+	 */
+	boolean rave()
+	{
+		return rave_equivalence > 0;
+	}
+
+	private static int chunk(int node)
+	{
+		return node >>> CHUNK_BITS;
+	}
+
+	private static int index(int node)
+	{
+		return node & CHUNK_MASK;
+	}
+
+	private Object lock_for(int node)
+	{
+		return node_locks[node & (NUM_LOCKS - 1)];
+	}
+
+	public int root()
+	{
+		return root;
+	}
+
+	/**
+	 * Returns the number of nodes in the tree.
+	 */
+	public int size()
+	{
+		return num_nodes;
+	}
+
+	public int max_nodes()
+	{
+		return max_nodes;
+	}
+
+	public MachineState state(int node)
+	{
+		return node_states[chunk(node)][index(node)];
+	}
+
+	int visits(int node)
+	{
+		return node_visits[chunk(node)][index(node)];
+	}
+
+	/**
+	 * Returns the number of rollouts through an expanded node in which its
+	 * active player's legal move with the given number was played.
+	 */
+	int amaf_visits(int node, int move)
+	{
+		return edge_amaf_visits[node_edge_chunk[chunk(node)][index(node)]]
+		                       [node_first_edge[chunk(node)][index(node)] + move];
+	}
+
+	/**
+	 * Returns the number of visits to a node, counting those of the workers
+	 * still simulating below it.
+	 */
+	int effective_visits(int node)
+	{
+		return node_visits[chunk(node)][index(node)] +
+			   node_virtual_losses[chunk(node)][index(node)];
+	}
+
+	/**
+	 * Returns the node's children, one for each joint move, so a child
+	 * reached by more than one joint move appears more than once.  A joint
+	 * move that hasn't been tried yet has NO_NODE.
+	 */
+	int[] children(int node)
+	{
+		int num_edges = node_num_edges[chunk(node)][index(node)];
+		int first_edge = node_first_edge[chunk(node)][index(node)];
+		int[] edges = edge_children[node_edge_chunk[chunk(node)][index(node)]];
+		return Arrays.copyOfRange(edges, first_edge, first_edge + num_edges);
+	}
+
+	private boolean has_flag(int node, int flag)
+	{
+		return (node_flags[chunk(node)].get(index(node)) & flag) != 0;
+	}
+
+	private void set_flag(int node, int flag)
+	{
+		AtomicIntegerArray flags = node_flags[chunk(node)];
+		int ii = index(node);
+		int old_flags;
+
+		do
+		{
+			old_flags = flags.get(ii);
+		}
+		while (!flags.compareAndSet(ii, old_flags, old_flags | flag));
+	}
+
+	boolean expanded(int node)
+	{
+		return has_flag(node, EXPANDED);
+	}
+
+	public boolean fully_expanded(int node)
+	{
+		return has_flag(node, FULLY_EXPANDED);
+	}
+
+	/**
+	 * Adds a node for a state, and returns its number.  The caller must
+	 * hold tree_lock, and there must be room.
+	 */
+	private int allocate_node(MachineState state)
+	{
+		int node = num_nodes++;
+		int chunk = chunk(node);
+		int ii = index(node);
+
+		if (node_flags[chunk] == null)
+		{
+			node_flags[chunk] = new AtomicIntegerArray(CHUNK_SIZE);
+			node_visits[chunk] = new int[CHUNK_SIZE];
+			node_virtual_losses[chunk] = new int[CHUNK_SIZE];
+			node_active_player[chunk] = new byte[CHUNK_SIZE];
+			node_base_utilities[chunk] = new double[CHUNK_SIZE * num_players];
+			node_chosen_utilities[chunk] = new double[CHUNK_SIZE * num_players];
+			node_chosen_child[chunk] = new int[CHUNK_SIZE];
+			node_edge_chunk[chunk] = new int[CHUNK_SIZE];
+			node_first_edge[chunk] = new int[CHUNK_SIZE];
+			node_num_edges[chunk] = new int[CHUNK_SIZE];
+			node_tried_edges[chunk] = new int[CHUNK_SIZE];
+			node_move_stats[chunk] = new int[CHUNK_SIZE];
+			node_legal_moves[chunk] = new LegalJointMoves[CHUNK_SIZE];
+			node_states[chunk] = new MachineState[CHUNK_SIZE];
+		}
+
+		/**
+		 * The slot may have been used before, so set every field.
+		 */
+		node_visits[chunk][ii] = 0;
+		node_virtual_losses[chunk][ii] = 0;
+		node_active_player[chunk][ii] = -1;
+		Arrays.fill(node_base_utilities[chunk], ii * num_players, (ii + 1) * num_players, 0);
+		Arrays.fill(node_chosen_utilities[chunk], ii * num_players, (ii + 1) * num_players, 0);
+		node_chosen_child[chunk][ii] = NO_NODE;
+		node_edge_chunk[chunk][ii] = 0;
+		node_first_edge[chunk][ii] = 0;
+		node_num_edges[chunk][ii] = 0;
+		node_tried_edges[chunk][ii] = 0;
+		node_move_stats[chunk][ii] = NO_NODE;
+		node_legal_moves[chunk][ii] = null;
+		node_states[chunk][ii] = state;
+		node_flags[chunk].set(ii, 0);
+
+		table_insert(node);
+		return node;
+	}
+
+	/**
+	 * Finds room for a node's children, returning the chunk in the top half
+	 * of a long, and the offset into it in the bottom half.  The caller must
+	 * hold tree_lock.
+	 */
+	private long allocate_edges(int num_edges)
+	{
+		if (edge_chunk_used + num_edges > edge_children[num_edge_chunks - 1].length)
+		{
+			int chunk_size = Math.max(EDGE_CHUNK_SIZE, num_edges);
+
+			/**
+			 * The AMAF chunks go first, so that they're there for anyone
+			 * who sees the new chunk of children.
+			 */
+			if (rave_equivalence > 0)
+			{
+				if (num_edge_chunks == edge_amaf_visits.length)
+				{
+					edge_amaf_visits = Arrays.copyOf(edge_amaf_visits, num_edge_chunks * 2);
+					edge_amaf_utilities = Arrays.copyOf(edge_amaf_utilities, num_edge_chunks * 2);
+				}
+
+				edge_amaf_visits[num_edge_chunks] = new int[chunk_size];
+				edge_amaf_utilities[num_edge_chunks] = new double[chunk_size * num_players];
+			}
+
+			if (num_edge_chunks == edge_children.length)
+			{
+				edge_children = Arrays.copyOf(edge_children, num_edge_chunks * 2);
+			}
+
+			edge_children[num_edge_chunks++] = new int[chunk_size];
+			edge_chunk_used = 0;
+		}
+
+		long edges = ((long) (num_edge_chunks - 1) << 32) | edge_chunk_used;
+		edge_chunk_used += num_edges;
+		return edges;
+	}
+
+	/**
+	 * Finds room for a node's decoupled statistics, returning where they
+	 * are as node_move_stats keeps it.  The caller must hold tree_lock.
+	 */
+	private int allocate_move_stats(int num_entries)
+	{
+		if (num_move_chunks == 0 || move_chunk_used + num_entries > move_visits[num_move_chunks - 1].length)
+		{
+			int chunk_size = Math.max(MOVE_CHUNK_SIZE, num_entries);
+
+			if (num_move_chunks == move_visits.length)
+			{
+				move_utilities = Arrays.copyOf(move_utilities, num_move_chunks * 2);
+				move_visits = Arrays.copyOf(move_visits, num_move_chunks * 2);
+			}
+
+			move_utilities[num_move_chunks] = new double[chunk_size];
+			move_visits[num_move_chunks++] = new int[chunk_size];
+			move_chunk_used = 0;
+		}
+
+		int stats = ((num_move_chunks - 1) << MOVE_CHUNK_BITS) | move_chunk_used;
+		move_chunk_used += num_entries;
+		return stats;
+	}
+
+	private static int move_chunk(int stats)
+	{
+		return stats >>> MOVE_CHUNK_BITS;
+	}
+
+	private static int move_offset(int stats)
+	{
+		return stats & (MOVE_CHUNK_SIZE - 1);
+	}
+
+	/**
+	 * Returns how many entries of decoupled statistics a node with the
+	 * given legal moves needs: one for each move of each role with a
+	 * choice, if more than one role has; otherwise none.
+	 */
+	private int num_move_stats(LegalJointMoves legal_moves)
+	{
+		int num_choosing = 0;
+		int num_entries = 0;
+
+		for (int role_index = 0; role_index < num_players; role_index++)
+		{
+			int num_moves = legal_moves.getLegalMoves(role_index).size();
+
+			if (num_moves > 1)
+			{
+				num_choosing++;
+				num_entries += num_moves;
+			}
+		}
+
+		return (num_choosing > 1) ? num_entries : 0;
+	}
+
+	/**
+	 * Returns the node for a state, or NO_NODE if it isn't in the tree.
+	 * The caller must hold tree_lock.
+	 */
+	private int table_get(MachineState state)
+	{
+		int mask = table.length - 1;
+
+		for (int slot = state.hashCode() & mask; ; slot = (slot + 1) & mask)
+		{
+			int node = table[slot];
+
+			if (node == NO_NODE || state(node).equals(state))
+			{
+				return node;
+			}
+		}
+	}
+
+	/**
+	 * Adds a node to the transposition table, which is kept at most half
+	 * full.  The caller must hold tree_lock.
+	 */
+	private void table_insert(int node)
+	{
+		if (num_nodes * 2 > table.length)
+		{
+			int[] old_table = table;
+			table = new int[old_table.length * 2];
+			Arrays.fill(table, NO_NODE);
+
+			for (int old_node: old_table)
+			{
+				if (old_node != NO_NODE)
+				{
+					table_put(old_node);
+				}
+			}
+		}
+
+		table_put(node);
+	}
+
+	private void table_put(int node)
+	{
+		int mask = table.length - 1;
+		int slot = state(node).hashCode() & mask;
+
+		while (table[slot] != NO_NODE)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		table[slot] = node;
+	}
+
+	/**
+	 * Expands a node, finding its legal moves and making room for its
+	 * children, using the given state machine, which must belong to the
+	 * calling worker.  If another worker is already expanding the node,
+	 * this does nothing.
+	 */
+	public void expand(int node, StateMachine sm) throws MoveDefinitionException,
+	                                                     TransitionDefinitionException
+	{
+		/**
+		 * Claim the node, unless it's already been claimed.
+		 */
+		AtomicIntegerArray flags = node_flags[chunk(node)];
+		int ii = index(node);
+		int old_flags = flags.get(ii);
+
+		if ((old_flags & (EXPANDED | EXPANDING)) != 0 ||
+			!flags.compareAndSet(ii, old_flags, old_flags | EXPANDING))
+		{
+			return;
+		}
+
+		try
+		{
+			MachineState state = state(node);
+
+			/**
+			 * Determine whether this node is terminal or not.  If the state
+			 * is terminal we treat it as being our move, and there's nothing
+			 * more to do here.  We'll trigger as fully expanded in
+			 * backpropagation.
+			 */
+			if (sm.isTerminal(state))
+			{
+				node_active_player[chunk(node)][ii] = (byte) tree_gamer.game_role_index;
+				set_flag(node, EXPANDED | TERMINAL | SHOULD_CHECK);
+				return;
+			}
+
+			/**
+			 * Get the legal moves of every role, and the joint moves they
+			 * make up, all at once.  The states they lead to are left until
+			 * each joint move is tried.
+			 */
+			LegalJointMoves legal_moves = sm.getAllLegalMoves(state);
+			int num_move_stats = num_move_stats(legal_moves);
+
+			synchronized (tree_lock)
+			{
+				long edges = allocate_edges(legal_moves.size());
+				int edge_chunk = (int) (edges >>> 32);
+				int first_edge = (int) edges;
+
+				Arrays.fill(edge_children[edge_chunk], first_edge, first_edge + legal_moves.size(), NO_NODE);
+
+				node_edge_chunk[chunk(node)][ii] = edge_chunk;
+				node_first_edge[chunk(node)][ii] = first_edge;
+				node_num_edges[chunk(node)][ii] = legal_moves.size();
+				node_move_stats[chunk(node)][ii] = (num_move_stats == 0) ? NO_NODE : allocate_move_stats(num_move_stats);
+			}
+
+			node_legal_moves[chunk(node)][ii] = legal_moves;
+			node_active_player[chunk(node)][ii] = (byte) active_player(legal_moves);
+
+			/**
+			 * Have now successfully expanded this node.  Everything above is
+			 * visible to a worker that sees the flag.
+			 */
+			set_flag(node, EXPANDED);
+		}
+		finally
+		{
+			int now_flags;
+
+			do
+			{
+				now_flags = flags.get(ii);
+			}
+			while (!flags.compareAndSet(ii, now_flags, now_flags & ~EXPANDING));
+		}
+	}
+
+	/**
+	 * Determines whose move it is in a non-terminal state: the first of the
+	 * roles with the most legal moves.
+	 */
+	private int active_player(LegalJointMoves legal_moves)
+	{
+		if (num_players == 1)
+		{
+			/**
+			 * We're the only player in this game.
+			 */
+			return tree_gamer.game_role_index;
+		}
+
+		int active_player = 0;
+		int max_size = 0;
+
+		for (int role_index = 0; role_index < num_players; role_index++)
+		{
+			int legals_size = legal_moves.getLegalMoves(role_index).size();
+
+			if (legals_size > max_size)
+			{
+				max_size = legals_size;
+				active_player = role_index;
+			}
+		}
+
+		return active_player;
+	}
+
+	/**
+	 * Selects a node to expand and simulate, adding a virtual loss to it and
+	 * to each node on the way down, all of which are added to the path.  The
+	 * caller must then backpropagate along the path, or remove the virtual
+	 * losses from it, even if this throws.  A child made on the way is made
+	 * with the given state machine, which must belong to the calling worker.
+	 */
+	public int select(Path path, StateMachine sm) throws TransitionDefinitionException
+	{
+		int node = root;
+		int edge_taken = NO_NODE;
+
+		while (true)
+		{
+			path.add(node, edge_taken);
+
+			if (add_virtual_loss(node) == 0 || !expanded(node))
+			{
+				/**
+				 * Select this node because it's not yet been visited.  If
+				 * another worker visited first but hasn't expanded it yet,
+				 * then there's nowhere to go from here either.
+				 */
+				return node;
+			}
+
+			int num_edges = node_num_edges[chunk(node)][index(node)];
+			int first_edge = node_first_edge[chunk(node)][index(node)];
+			int[] edges = edge_children[node_edge_chunk[chunk(node)][index(node)]];
+			int stats = node_move_stats[chunk(node)][index(node)];
+
+			if (stats != NO_NODE)
+			{
+				/**
+				 * Every role with a choice chooses its own move, and the
+				 * joint move they make up is followed, its child being made
+				 * if need be.
+				 */
+				int edge = select_decoupled(node, stats);
+				int child = edges[first_edge + edge];
+
+				if (child == NO_NODE)
+				{
+					if (!reserve_node())
+					{
+						return node;
+					}
+
+					child = make_child(node, edge, sm);
+				}
+
+				if (path.contains(child))
+				{
+					return node;
+				}
+
+				if (fully_expanded(child))
+				{
+					/**
+					 * The child may have been fully expanded by way of
+					 * another parent, so this one must check for itself.
+					 */
+					set_flag(node, SHOULD_CHECK);
+				}
+
+				add_move_visits(node, stats, edge, 1);
+				node = child;
+				edge_taken = edge;
+				continue;
+			}
+
+			/**
+			 * Try a joint move that hasn't been tried yet, if there is one.
+			 */
+			int new_edge = try_next_move(node, sm);
+
+			if (new_edge != NO_NODE)
+			{
+				int new_child = edges[first_edge + new_edge];
+
+				if (path.contains(new_child))
+				{
+					/**
+					 * The joint move leads back to a state already on the
+					 * path.
+					 */
+					return node;
+				}
+
+				path.add(new_child, new_edge);
+				add_virtual_loss(new_child);
+				return new_child;
+			}
+
+			/**
+			 * Work out if we should visit any of the child states.  A child
+			 * still being made by another worker is NO_NODE, and is skipped
+			 * here and below.
+			 */
+			for (int edge = first_edge; edge < first_edge + num_edges; edge++)
+			{
+				int child = edges[edge];
+
+				if (child != NO_NODE && effective_visits(child) == 0 && claim_unvisited(child))
+				{
+					/**
+					 * Select this child as it has not been visited yet.
+					 */
+					path.add(child, edge - first_edge);
+					return child;
+				}
+			}
+
+			/**
+			 * We've visited all of the immediate children.  Visit a child
+			 * again, bearing in mind its UCT value.  We should always pick
+			 * the highest UCT-valued child, because our opponents will
+			 * probably pick their best child, and we want to work out how
+			 * to win in this situation.
+			 */
+			double score = 0;
+			double child_score;
+			int node_to_select = NO_NODE;
+			int visits = effective_visits(node);
+
+			for (int edge = first_edge; edge < first_edge + num_edges; edge++)
+			{
+				int child = edges[edge];
+
+				if (child == NO_NODE)
+				{
+					continue;
+				}
+
+				if (fully_expanded(child))
+				{
+					/**
+					 * The child may have been fully expanded by way of
+					 * another parent, so this one must check for itself.
+					 */
+					set_flag(node, SHOULD_CHECK);
+					continue;
+				}
+
+				if (node_to_select == NO_NODE)
+				{
+					node_to_select = child;
+					edge_taken = edge - first_edge;
+				}
+
+				child_score = uct(node, edge - first_edge, child, visits);
+
+				if (child_score > score)
+				{
+					node_to_select = child;
+					edge_taken = edge - first_edge;
+					score = child_score;
+				}
+			}
+
+			if (node_to_select == NO_NODE)
+			{
+				/**
+				 * Every child has been fully expanded by other workers since
+				 * this node was last backpropagated, and doing so again will
+				 * mark this node as fully expanded too; or the children left
+				 * are still being made.
+				 */
+				return node;
+			}
+
+			if (path.contains(node_to_select))
+			{
+				/**
+				 * In a game where states can repeat, the path has come back
+				 * round to where it has already been.  Stop rather than go
+				 * round again.
+				 */
+				return node;
+			}
+
+			node = node_to_select;
+		}
+	}
+
+	/**
+	 * Makes the child for the next of a node's joint moves to be tried, and
+	 * returns the number of the joint move, or NO_NODE if every joint move
+	 * has been tried or the tree is full.
+	 */
+	private int try_next_move(int node, StateMachine sm) throws TransitionDefinitionException
+	{
+		int num_edges = node_num_edges[chunk(node)][index(node)];
+		int tried;
+
+		synchronized (lock_for(node))
+		{
+			tried = node_tried_edges[chunk(node)][index(node)];
+
+			if (tried == num_edges || !reserve_node())
+			{
+				return NO_NODE;
+			}
+
+			node_tried_edges[chunk(node)][index(node)]++;
+		}
+
+		/**
+		 * Go through the joint moves by a stride, rather than in order, so
+		 * that the ones tried first aren't all the same move for the first
+		 * role.
+		 */
+		int edge = (int) ((long) tried * edge_stride(num_edges) % num_edges);
+		boolean made = false;
+
+		try
+		{
+			make_child(node, edge, sm);
+			made = true;
+		}
+		finally
+		{
+			if (!made)
+			{
+				/**
+				 * Hand the joint move out again, so that it isn't left
+				 * unmade for good, which would stop this node, and every
+				 * node above it, from ever being fully expanded.  That's
+				 * only possible if no later joint move has been handed out
+				 * in the meantime.
+				 */
+				synchronized (lock_for(node))
+				{
+					if (node_tried_edges[chunk(node)][index(node)] == tried + 1)
+					{
+						node_tried_edges[chunk(node)][index(node)] = tried;
+					}
+				}
+			}
+		}
+
+		return edge;
+	}
+
+	/**
+	 * Makes the child for one of a node's joint moves, in the room set
+	 * aside for it by reserve_node(), and returns it.  The child may be a
+	 * node that's already in the tree, reached by some other way, in which
+	 * case the room is given back.
+	 */
+	private int make_child(int node, int edge, StateMachine sm) throws TransitionDefinitionException
+	{
+		boolean reserved = true;
+
+		try
+		{
+			List<Move> joint_move = node_legal_moves[chunk(node)][index(node)].get(edge);
+			MachineState child_state = sm.getNextState(state(node), joint_move);
+			int child;
+
+			synchronized (tree_lock)
+			{
+				/**
+				 * If the state is already in the tree, share its node rather
+				 * than starting its subtree again.
+				 */
+				child = table_get(child_state);
+
+				if (child == NO_NODE)
+				{
+					child = allocate_node(child_state);
+					reserved = false;
+				}
+			}
+
+			/**
+			 * Other workers read a node's children after taking its lock,
+			 * so this makes the child visible to them.
+			 */
+			synchronized (lock_for(node))
+			{
+				int first_edge = node_first_edge[chunk(node)][index(node)];
+				edge_children[node_edge_chunk[chunk(node)][index(node)]][first_edge + edge] = child;
+			}
+
+			return child;
+		}
+		finally
+		{
+			if (reserved)
+			{
+				num_reserved.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Sets aside room for a node, returning false if the tree is full, or
+	 * the heap is.
+	 */
+	private boolean reserve_node()
+	{
+		if (--heap_check_countdown <= 0)
+		{
+			heap_check_countdown = HEAP_CHECK_INTERVAL;
+			heap_short = HeapMonitor.heap_short();
+		}
+
+		if (heap_short)
+		{
+			tree_gamer.log.log(Level.FINE, "Heap is full at {0} nodes", num_nodes);
+			return false;
+		}
+
+		if (num_reserved.incrementAndGet() > max_nodes)
+		{
+			num_reserved.decrementAndGet();
+			tree_gamer.log.log(Level.FINE, "Tree is full at {0} nodes", max_nodes);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Chooses a joint move of a node with decoupled statistics, each role
+	 * with a choice choosing its own move by UCB, and returns its number.
+	 */
+	private int select_decoupled(int node, int stats)
+	{
+		LegalJointMoves legal_moves = node_legal_moves[chunk(node)][index(node)];
+		int[] visits = move_visits[move_chunk(stats)];
+		double[] utilities = move_utilities[move_chunk(stats)];
+		int entry = move_offset(stats);
+		int edge = 0;
+
+		/**
+		 * The first role's move changes slowest in the numbering of the
+		 * joint moves.
+		 */
+		for (int role_index = 0; role_index < num_players; role_index++)
+		{
+			int num_moves = legal_moves.getLegalMoves(role_index).size();
+			int move = 0;
+
+			if (num_moves > 1)
+			{
+				move = select_move(visits, utilities, entry, num_moves);
+				entry += num_moves;
+			}
+
+			edge = edge * num_moves + move;
+		}
+
+		return edge;
+	}
+
+	/**
+	 * Returns which of a role's moves to choose, by their decoupled
+	 * statistics from first_entry on: the first that's not been tried yet,
+	 * or else the one with the highest UCB value for the role.
+	 */
+	private static int select_move(int[] visits, double[] utilities, int first_entry, int num_moves)
+	{
+		int total_visits = 0;
+
+		for (int move = 0; move < num_moves; move++)
+		{
+			int move_visits = visits[first_entry + move];
+
+			if (move_visits == 0)
+			{
+				return move;
+			}
+
+			total_visits += move_visits;
+		}
+
+		double log_visits = Math.log(total_visits);
+		double best_score = Double.NEGATIVE_INFINITY;
+		int chosen = 0;
+
+		for (int move = 0; move < num_moves; move++)
+		{
+			int move_visits = visits[first_entry + move];
+			double score = utilities[first_entry + move] / move_visits + Math.sqrt(2 * log_visits / move_visits);
+
+			if (score > best_score)
+			{
+				best_score = score;
+				chosen = move;
+			}
+		}
+
+		return chosen;
+	}
+
+	/**
+	 * Adds to the visits of each role's part of a node's joint move in its
+	 * decoupled statistics.  They're added as the joint move is selected,
+	 * and count as losses until the simulation's utilities are added, as
+	 * virtual losses do for nodes.
+	 */
+	private void add_move_visits(int node, int stats, int edge, int visits_to_add)
+	{
+		LegalJointMoves legal_moves = node_legal_moves[chunk(node)][index(node)];
+		int[] visits = move_visits[move_chunk(stats)];
+		int entry = move_offset(stats);
+
+		synchronized (lock_for(node))
+		{
+			for (int role_index = 0; role_index < num_players; role_index++)
+			{
+				int num_moves = legal_moves.getLegalMoves(role_index).size();
+
+				if (num_moves > 1)
+				{
+					visits[entry + role_move_index(legal_moves, edge, role_index)] += visits_to_add;
+					entry += num_moves;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a simulation's utilities to each role's part of a node's joint
+	 * move in its decoupled statistics.  The caller must hold the node's
+	 * lock.
+	 */
+	private void add_move_utilities(int node, int stats, int edge, double[] utilities)
+	{
+		LegalJointMoves legal_moves = node_legal_moves[chunk(node)][index(node)];
+		double[] move_utility = move_utilities[move_chunk(stats)];
+		int entry = move_offset(stats);
+
+		for (int role_index = 0; role_index < num_players; role_index++)
+		{
+			int num_moves = legal_moves.getLegalMoves(role_index).size();
+
+			if (num_moves > 1)
+			{
+				move_utility[entry + role_move_index(legal_moves, edge, role_index)] += utilities[role_index];
+				entry += num_moves;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a node keeps decoupled statistics.
+	 */
+	boolean decoupled(int node)
+	{
+		return node_move_stats[chunk(node)][index(node)] != NO_NODE;
+	}
+
+	/**
+	 * Returns the number of simulations through a node with decoupled
+	 * statistics in which the given role made its legal move with the given
+	 * number, or -1 if the role has no choice there.
+	 */
+	int move_visits(int node, int role_index, int move)
+	{
+		int stats = node_move_stats[chunk(node)][index(node)];
+		int entry = move_entry(node, stats, role_index);
+		return (entry < 0) ? -1 : move_visits[move_chunk(stats)][entry + move];
+	}
+
+	/**
+	 * Returns where a role's moves start in a node's decoupled statistics,
+	 * or -1 if the role has no choice there.
+	 */
+	private int move_entry(int node, int stats, int role_index)
+	{
+		LegalJointMoves legal_moves = node_legal_moves[chunk(node)][index(node)];
+		int entry = move_offset(stats);
+
+		if (legal_moves.getLegalMoves(role_index).size() < 2)
+		{
+			return -1;
+		}
+
+		for (int earlier_role = 0; earlier_role < role_index; earlier_role++)
+		{
+			int num_moves = legal_moves.getLegalMoves(earlier_role).size();
+
+			if (num_moves > 1)
+			{
+				entry += num_moves;
+			}
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Returns the step by which to go through num_edges joint moves: about
+	 * 0.618 of the way round each time, and coprime with num_edges so that
+	 * every one of them is reached.
+	 */
+	private static int edge_stride(int num_edges)
+	{
+		int stride = Math.max(1, (int) (num_edges * 0.618));
+
+		while (IntMath.gcd(stride, num_edges) != 1)
+		{
+			stride++;
+		}
+
+		return stride;
+	}
+
+	/**
+	 * Returns the UCT value of the child reached by the given joint move of
+	 * a node, from the point of view of the child's active player.
+	 */
+	private double uct(int parent, int edge, int node, int parent_visits)
+	{
+		/**
+		 * Virtual losses count as visits that scored nothing.  A node with
+		 * only virtual visits may not have been expanded yet, in which case
+		 * the active player isn't known.  A node that was pruned back to a
+		 * leaf still knows it.
+		 */
+		int visits = effective_visits(node);
+		int active_player = node_active_player[chunk(node)][index(node)];
+		if (visits == 0 || active_player < 0)
+		{
+			return 0;
+		}
+
+		double utility = node_base_utilities[chunk(node)][index(node) * num_players + active_player] / visits;
+
+		if (rave_equivalence > 0)
+		{
+			/**
+			 * Blend in the AMAF average, by beta = sqrt(k / (3n + k)), which
+			 * falls from 1 towards 0 as the child's own visits n outgrow the
+			 * equivalence k.
+			 */
+			int amaf_chunk = node_edge_chunk[chunk(parent)][index(parent)];
+			int amaf = node_first_edge[chunk(parent)][index(parent)] + amaf_index(parent, edge);
+			int amaf_visits = edge_amaf_visits[amaf_chunk][amaf];
+
+			if (amaf_visits > 0)
+			{
+				double amaf_utility =
+						edge_amaf_utilities[amaf_chunk][amaf * num_players + active_player] / amaf_visits;
+				double beta = Math.sqrt(rave_equivalence / (3.0 * visits + rave_equivalence));
+				utility = (1 - beta) * utility + beta * amaf_utility;
+			}
+		}
+
+		return utility + Math.sqrt(2 * Math.log(parent_visits) / visits);
+	}
+
+	/**
+	 * Returns which of a node's active player's legal moves is part of its
+	 * joint move with the given number.
+	 */
+	private int amaf_index(int node, int edge)
+	{
+		return role_move_index(node_legal_moves[chunk(node)][index(node)], edge,
+		                       node_active_player[chunk(node)][index(node)]);
+	}
+
+	/**
+	 * Returns which of a role's legal moves is part of the joint move with
+	 * the given number.
+	 */
+	private int role_move_index(LegalJointMoves legal_moves, int edge, int role_index)
+	{
+		/**
+		 * The first role's move changes slowest, so divide out the roles
+		 * after this one.
+		 */
+		for (int later_role = num_players - 1; later_role > role_index; later_role--)
+		{
+			edge /= legal_moves.getLegalMoves(later_role).size();
+		}
+
+		return edge % legal_moves.getLegalMoves(role_index).size();
+	}
+
+	/**
+	 * Records the result of a rollout from the end of a path in the AMAF
+	 * statistics of every node on the path.  played holds, for each role,
+	 * the moves that role made in the rollout; the moves made along the path
+	 * are added to it on the way up, so that each node counts everything
+	 * played below it.
+	 */
+	public void update_amaf(Path path, List<Set<Move>> played, double[] utilities)
+	{
+		for (int ii = path.size() - 1; ii >= 0; ii--)
+		{
+			int node = path.get(ii);
+
+			if (expanded(node) && !has_flag(node, TERMINAL))
+			{
+				update_amaf(node, played, utilities);
+			}
+
+			if (ii > 0)
+			{
+				int parent = path.get(ii - 1);
+				List<Move> joint_move = node_legal_moves[chunk(parent)][index(parent)].get(path.edge(ii));
+
+				for (int role_index = 0; role_index < num_players; role_index++)
+				{
+					played.get(role_index).add(joint_move.get(role_index));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records the result of a rollout from the end of a path in the move
+	 * averages of a MAST table, for every move made along the path.
+	 */
+	public void update_mast(Path path, MastTable mast, double[] utilities)
+	{
+		for (int ii = 1; ii < path.size(); ii++)
+		{
+			int parent = path.get(ii - 1);
+			LegalJointMoves legal_moves = node_legal_moves[chunk(parent)][index(parent)];
+
+			for (int role_index = 0; role_index < num_players; role_index++)
+			{
+				Move move = legal_moves.getLegalMoves(role_index).get(role_move_index(legal_moves, path.edge(ii), role_index));
+				mast.update(role_index, mast.index(role_index, move), utilities[role_index]);
+			}
+		}
+	}
+
+	private void update_amaf(int node, List<Set<Move>> played, double[] utilities)
+	{
+		int active_player = node_active_player[chunk(node)][index(node)];
+		List<Move> moves = node_legal_moves[chunk(node)][index(node)].getLegalMoves(active_player);
+		Set<Move> active_played = played.get(active_player);
+		int amaf_chunk = node_edge_chunk[chunk(node)][index(node)];
+		int first_edge = node_first_edge[chunk(node)][index(node)];
+		int[] amaf_visits = edge_amaf_visits[amaf_chunk];
+		double[] amaf_utilities = edge_amaf_utilities[amaf_chunk];
+
+		synchronized (lock_for(node))
+		{
+			for (int move = 0; move < moves.size(); move++)
+			{
+				if (active_played.contains(moves.get(move)))
+				{
+					int amaf = first_edge + move;
+					amaf_visits[amaf]++;
+
+					for (int player = 0; player < num_players; player++)
+					{
+						amaf_utilities[amaf * num_players + player] += utilities[player];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a virtual loss to a node, returning the number of visits, real
+	 * and virtual, that it had before.
+	 */
+	private int add_virtual_loss(int node)
+	{
+		synchronized (lock_for(node))
+		{
+			return node_visits[chunk(node)][index(node)] +
+				   node_virtual_losses[chunk(node)][index(node)]++;
+		}
+	}
+
+	/**
+	 * Adds a virtual loss to a node, but only if it has no visits of any
+	 * kind, so that only one worker claims each unvisited child.
+	 */
+	private boolean claim_unvisited(int node)
+	{
+		synchronized (lock_for(node))
+		{
+			if (effective_visits(node) != 0)
+			{
+				return false;
+			}
+
+			node_virtual_losses[chunk(node)][index(node)]++;
+			return true;
+		}
+	}
+
+	/**
+	 * Takes back the virtual losses added along a path by select(), when
+	 * the simulation from its end was abandoned and there's nothing to
+	 * backpropagate.
+	 */
+	public void remove_virtual_loss(Path path)
+	{
+		for (int ii = 0; ii < path.size(); ii++)
+		{
+			int node = path.get(ii);
+			int stats = node_move_stats[chunk(node)][index(node)];
+
+			synchronized (lock_for(node))
+			{
+				node_virtual_losses[chunk(node)][index(node)]--;
+			}
+
+			if (stats != NO_NODE && ii + 1 < path.size())
+			{
+				add_move_visits(node, stats, path.edge(ii + 1), -1);
+			}
+		}
+	}
+
+	/**
+	 * Records a simulation's result in every node of the path it was
+	 * selected by, starting from the bottom.
+	 */
+	public void backpropagate(Path path, double[] utilities)
+	{
+		for (int ii = path.size() - 1; ii >= 0; ii--)
+		{
+			int node = path.get(ii);
+			int edge = (ii + 1 < path.size()) ? path.edge(ii + 1) : NO_NODE;
+
+			if (backpropagate(node, edge, utilities) && ii > 0)
+			{
+				set_flag(path.get(ii - 1), SHOULD_CHECK);
+			}
+		}
+	}
+
+	/**
+	 * Records a simulation's result in one node, and in the decoupled
+	 * statistics of the joint move taken from it, if any, returning whether
+	 * that made it fully expanded.
+	 */
+	private boolean backpropagate(int node, int edge, double[] utilities)
+	{
+		int chunk = chunk(node);
+		int ii = index(node);
+
+		synchronized (lock_for(node))
+		{
+			/**
+			 * Record that we've visited this node, which replaces the
+			 * virtual loss added when it was selected.
+			 */
+			node_visits[chunk][ii]++;
+			node_virtual_losses[chunk][ii]--;
+
+			/**
+			 * Propagate the utilities.
+			 */
+			for (int player = 0; player < num_players; player++)
+			{
+				node_base_utilities[chunk][ii * num_players + player] += utilities[player];
+			}
+
+			int stats = node_move_stats[chunk][ii];
+
+			if (stats != NO_NODE && edge != NO_NODE)
+			{
+				add_move_utilities(node, stats, edge, utilities);
+			}
+
+			/**
+			 * If it's fully expanded we can determine what the best utility
+			 * for the active player is.  This must be done before the node
+			 * is marked as fully expanded, as from then on a parent may read
+			 * the chosen utilities.
+			 */
+			boolean was_fully_expanded = fully_expanded(node);
+
+			if (was_fully_expanded ||
+				(has_flag(node, SHOULD_CHECK) && check_fully_expanded(node)))
+			{
+				determine_best_utility_for_active_player(node, utilities);
+
+				if (!was_fully_expanded)
+				{
+					set_flag(node, FULLY_EXPANDED);
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns whether a node is now fully expanded: it's terminal, or all
+	 * of its children have been made and are.  The caller must hold the
+	 * node's lock.
+	 */
+	private boolean check_fully_expanded(int node)
+	{
+		if (has_flag(node, TERMINAL))
+		{
+			return true;
+		}
+
+		if (!expanded(node))
+		{
+			return false;
+		}
+
+		int num_edges = node_num_edges[chunk(node)][index(node)];
+		int first_edge = node_first_edge[chunk(node)][index(node)];
+		int[] edges = edge_children[node_edge_chunk[chunk(node)][index(node)]];
+
+		for (int edge = first_edge; edge < first_edge + num_edges; edge++)
+		{
+			if (edges[edge] == NO_NODE || !fully_expanded(edges[edge]))
+			{
+				/**
+				 * One child is not fully expanded, or not even made yet, so
+				 * neither are we.
+				 */
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void determine_best_utility_for_active_player(int node, double[] utilities)
+	{
+		double[] chosen_utilities = node_chosen_utilities[chunk(node)];
+		int offset = index(node) * num_players;
+
+		if (has_flag(node, TERMINAL))
+		{
+			/**
+			 * Because this is a terminal node, the best utilities are those
+			 * passed in.
+			 */
+			System.arraycopy(utilities, 0, chosen_utilities, offset, num_players);
+			return;
+		}
+
+		/**
+		 * Not terminal.  Thus, we should go through the children's
+		 * utilities and work out the best utility for the active player.
+		 * They should all be fully expanded otherwise we wouldn't be here.
+		 */
+		int active_player = node_active_player[chunk(node)][index(node)];
+		int num_edges = node_num_edges[chunk(node)][index(node)];
+		int first_edge = node_first_edge[chunk(node)][index(node)];
+		int[] edges = edge_children[node_edge_chunk[chunk(node)][index(node)]];
+		int chosen_child = NO_NODE;
+		double best_utility_for_ap = 0;
+
+		for (int edge = 0; edge < num_edges; edge++)
+		{
+			int child = edges[first_edge + edge];
+			double child_utility =
+					node_chosen_utilities[chunk(child)][index(child) * num_players + active_player];
+
+			if (chosen_child == NO_NODE || child_utility > best_utility_for_ap)
+			{
+				/**
+				 * This set of utilities is the best for the active player so
+				 * far, so they're likely to pick this.  We choose our move.
+				 */
+				chosen_child = edge;
+				best_utility_for_ap = child_utility;
+			}
+		}
+
+		int child = edges[first_edge + chosen_child];
+		System.arraycopy(node_chosen_utilities[chunk(child)], index(child) * num_players,
+		                 chosen_utilities, offset, num_players);
+		node_chosen_child[chunk(node)][index(node)] = chosen_child;
+	}
+
+	/**
+	 * Returns the average utilities of a node, by player.
+	 */
+	private double[] utilities(int node)
+	{
+		double[] utilities = new double[num_players];
+		int visits = visits(node);
+
+		if (visits > 0)
+		{
+			for (int player = 0; player < num_players; player++)
+			{
+				utilities[player] =
+						node_base_utilities[chunk(node)][index(node) * num_players + player] / visits;
+			}
+		}
+
+		return utilities;
+	}
+
+	private double[] chosen_utilities(int node)
+	{
+		int offset = index(node) * num_players;
+		return Arrays.copyOfRange(node_chosen_utilities[chunk(node)], offset, offset + num_players);
+	}
+
+	/**
+	 * Returns how far the given player's utility is ahead of the best of
+	 * their opponents'.
+	 */
+	private static double combat_utility(double[] utilities, int role_index)
+	{
+		double combat_utility = 0;
+		double player_combat_utility = 0;
+		double best_opponent_combat_utility = 0;
+
+		for (int ii = 0; ii < utilities.length; ii++)
+		{
+			if (ii == role_index)
+			{
+				player_combat_utility = utilities[ii];
+			}
+			else if (utilities[ii] > best_opponent_combat_utility)
+			{
+				best_opponent_combat_utility = utilities[ii];
+			}
+		}
+
+		combat_utility = player_combat_utility - best_opponent_combat_utility;
+		return combat_utility;
+	}
+
+	/**
+	 * Returns the utility by which to choose the move to play: our own in a
+	 * single player game, or how far ahead of our opponents we are.
+	 */
+	private double move_utility(double[] utilities)
+	{
+		if (tree_gamer.game_type == 0)
+		{
+			return utilities[tree_gamer.game_role_index];
+		}
+
+		return combat_utility(utilities, tree_gamer.game_role_index);
+	}
+
+	private String log_prefix()
+	{
+		switch (tree_gamer.game_type)
+		{
+		case 0:
+			return "SP";
+		case 1:
+			return "ZS";
+		default:
+			return "CB";
+		}
+	}
+
+	/**
+	 * Returns the move to play from the root.
+	 */
+	Move most_appropriate_move()
+	{
+		String prefix = log_prefix();
+
+		/**
+		 * Where we choose our move at the same time as others, choose it by
+		 * its own statistics: any joint move's outcome depends on choices
+		 * that aren't ours.
+		 */
+		Map<Move, double[]> pooled = new HashMap<Move, double[]>();
+
+		if (pool_decoupled_moves(pooled))
+		{
+			Move dc_move = best_pooled_move(tree_gamer, "DC", pooled);
+
+			if (dc_move != null)
+			{
+				return dc_move;
+			}
+		}
+
+		if (fully_expanded(root))
+		{
+			Move chosen_move = node_legal_moves[chunk(root)][index(root)]
+					.get(node_chosen_child[chunk(root)][index(root)])
+					.get(tree_gamer.game_role_index);
+
+			tree_gamer.log.log(Level.WARNING,
+	"{0}: Tree is fully expanded; the chosen move was {1} (utilities {2})",
+	new Object[]{ prefix, chosen_move, Arrays.toString(chosen_utilities(root))}
+			);
+
+			return chosen_move;
+		}
+
+		/**
+		 * Do MCTS to work out the best move.
+		 */
+		Move ma_move = null;
+		double test_utility;
+		double best_utility = 0;
+		LegalJointMoves legal_moves = node_legal_moves[chunk(root)][index(root)];
+		int[] children = children(root);
+
+		for (int edge = 0; edge < children.length; edge++)
+		{
+			if (children[edge] == NO_NODE)
+			{
+				continue;
+			}
+
+			/**
+			 * We want to select the best utility for the player.
+			 */
+			double[] utilities = utilities(children[edge]);
+			List<Move> joint_move = legal_moves.get(edge);
+
+			test_utility = move_utility(utilities);
+
+			tree_gamer.log.log(Level.WARNING, "{0}: Checking node {1} ({2}): our utility {3} utilities {4}",
+					new Object[]{prefix, children[edge], joint_move, test_utility, Arrays.toString(utilities)});
+
+			if (ma_move == null || test_utility > best_utility)
+			{
+				ma_move = joint_move.get(tree_gamer.game_role_index);
+				best_utility = test_utility;
+			}
+		}
+
+		tree_gamer.log.log(Level.WARNING,
+"{0}: Tree is partially expanded; the chosen move was {1} (utility {2})",
+new Object[]{ prefix, ma_move, best_utility}
+		);
+
+		return ma_move;
+	}
+
+	/**
+	 * Picks a move from several trees searched independently from the same
+	 * state, by pooling the statistics of each root's children: a joint
+	 * move's utilities are the totals over every tree divided by its total
+	 * visits.  If any tree has been searched to the end, its answer is exact
+	 * and is used instead.
+	 */
+	static Move most_appropriate_move(MCTSMPTree[] trees)
+	{
+		for (MCTSMPTree tree: trees)
+		{
+			if (tree.fully_expanded(tree.root))
+			{
+				return tree.most_appropriate_move();
+			}
+		}
+
+		HeavensbeeMCTSMP gamer = trees[0].tree_gamer;
+		int num_players = trees[0].num_players;
+
+		/**
+		 * Pool the decoupled statistics of our moves, if the roots keep
+		 * them.
+		 */
+		Map<Move, double[]> pooled_moves = new HashMap<Move, double[]>();
+		boolean decoupled = false;
+
+		for (MCTSMPTree tree: trees)
+		{
+			decoupled |= tree.pool_decoupled_moves(pooled_moves);
+		}
+
+		if (decoupled)
+		{
+			Move dc_move = best_pooled_move(gamer, "RP DC", pooled_moves);
+
+			if (dc_move != null)
+			{
+				return dc_move;
+			}
+		}
+
+		/**
+		 * Total up the utilities and visits of each joint move, the visits
+		 * going after the utilities.
+		 */
+		Map<List<Move>, double[]> pooled = new HashMap<List<Move>, double[]>();
+
+		for (MCTSMPTree tree: trees)
+		{
+			LegalJointMoves legal_moves = tree.node_legal_moves[chunk(tree.root)][index(tree.root)];
+			if (legal_moves == null)
+			{
+				continue;
+			}
+
+			int[] children = tree.children(tree.root);
+
+			for (int edge = 0; edge < children.length; edge++)
+			{
+				int child = children[edge];
+				if (child == NO_NODE)
+				{
+					continue;
+				}
+
+				List<Move> joint_move = legal_moves.get(edge);
+				double[] sums = pooled.get(joint_move);
+
+				if (sums == null)
+				{
+					sums = new double[num_players + 1];
+					pooled.put(joint_move, sums);
+				}
+
+				for (int player = 0; player < num_players; player++)
+				{
+					sums[player] += tree.node_base_utilities[chunk(child)][index(child) * num_players + player];
+				}
+
+				sums[num_players] += tree.visits(child);
+			}
+		}
+
+		/**
+		 * Then choose between them as a single tree would.
+		 */
+		Move ma_move = null;
+		double test_utility;
+		double best_utility = 0;
+
+		for (Map.Entry<List<Move>, double[]> entry: pooled.entrySet())
+		{
+			double[] sums = entry.getValue();
+			double visits = sums[num_players];
+			double[] utilities = new double[num_players];
+
+			if (visits > 0)
+			{
+				for (int player = 0; player < num_players; player++)
+				{
+					utilities[player] = sums[player] / visits;
+				}
+			}
+
+			test_utility = trees[0].move_utility(utilities);
+
+			gamer.log.log(Level.WARNING, "RP: Checking {0}: our utility {1} utilities {2} over {3} visits",
+					new Object[]{entry.getKey(), test_utility, Arrays.toString(utilities), visits});
+
+			if (ma_move == null || test_utility > best_utility)
+			{
+				ma_move = entry.getKey().get(gamer.game_role_index);
+				best_utility = test_utility;
+			}
+		}
+
+		gamer.log.log(Level.WARNING,
+"RP: Pooled {0} trees; the chosen move was {1} (utility {2})",
+new Object[]{ trees.length, ma_move, best_utility}
+		);
+
+		return ma_move;
+	}
+
+	/**
+	 * Adds the total utility and visits of each of our moves in the root's
+	 * decoupled statistics to those pooled, returning false if we have no
+	 * choice of moves there that's decoupled.
+	 */
+	private boolean pool_decoupled_moves(Map<Move, double[]> pooled)
+	{
+		int stats = node_move_stats[chunk(root)][index(root)];
+
+		if (stats == NO_NODE)
+		{
+			return false;
+		}
+
+		int role_index = tree_gamer.game_role_index;
+		int entry = move_entry(root, stats, role_index);
+
+		if (entry < 0)
+		{
+			return false;
+		}
+
+		List<Move> moves = node_legal_moves[chunk(root)][index(root)].getLegalMoves(role_index);
+		int[] visits = move_visits[move_chunk(stats)];
+		double[] utilities = move_utilities[move_chunk(stats)];
+
+		for (int move = 0; move < moves.size(); move++)
+		{
+			double[] sums = pooled.get(moves.get(move));
+
+			if (sums == null)
+			{
+				sums = new double[2];
+				pooled.put(moves.get(move), sums);
+			}
+
+			sums[0] += utilities[entry + move];
+			sums[1] += visits[entry + move];
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the move with the best average utility to us among those
+	 * pooled, or null if none has been tried.
+	 */
+	private static Move best_pooled_move(HeavensbeeMCTSMP gamer, String prefix, Map<Move, double[]> pooled)
+	{
+		Move ma_move = null;
+		double best_utility = 0;
+
+		for (Map.Entry<Move, double[]> entry: pooled.entrySet())
+		{
+			double[] sums = entry.getValue();
+
+			if (sums[1] == 0)
+			{
+				continue;
+			}
+
+			double test_utility = sums[0] / sums[1];
+
+			gamer.log.log(Level.WARNING, "{0}: Checking {1}: our utility {2} over {3} visits",
+					new Object[]{prefix, entry.getKey(), test_utility, sums[1]});
+
+			if (ma_move == null || test_utility > best_utility)
+			{
+				ma_move = entry.getKey();
+				best_utility = test_utility;
+			}
+		}
+
+		gamer.log.log(Level.WARNING,
+"{0}: The chosen move was {1} (utility {2})",
+new Object[]{ prefix, ma_move, best_utility}
+		);
+
+		return ma_move;
+	}
+
+	/**
+	 * Makes the node for the given state the root, keeping only what can
+	 * still be reached from it, or starts the tree again if there's no such
+	 * node.  This must not be called while any worker is searching the
+	 * tree.
+	 */
+	public void cull(MachineState cur_state)
+	{
+		int old_size = num_nodes;
+		int new_root = table_get(cur_state);
+
+		if (new_root == NO_NODE)
+		{
+			/**
+			 * A tree that was never searched as far as the state has no
+			 * node for it, so start again from a new one.
+			 */
+			reset(cur_state);
+			return;
+		}
+
+		compact(find_reachable(new_root, 0), new_root);
+
+		tree_gamer.log.log(Level.INFO, "Culled {0} nodes, leaving {1}",
+				           new Object[]{old_size - num_nodes, num_nodes});
+	}
+
+	/**
+	 * Cuts the tree down to at most target_nodes nodes, if it can, by
+	 * pruning the subtrees below the least visited nodes.  Those nodes are
+	 * kept, with their statistics, but become leaves again, to be expanded
+	 * afresh if they're selected.  Subtrees that have been fully expanded
+	 * are kept whole, as are the root's children.  This must not be called
+	 * while any worker is searching the tree.
+	 */
+	public void prune(int target_nodes)
+	{
+		int old_size = num_nodes;
+		int min_visits = 0;
+		BitSet kept = find_reachable(root, min_visits);
+
+		/**
+		 * Find the fewest visits a node needs to keep its children for the
+		 * tree to fit.  Each try keeps a subset of the last one.
+		 */
+		while (kept.cardinality() > target_nodes && min_visits <= visits(root))
+		{
+			min_visits = Math.max(1, min_visits * 2);
+			kept = find_reachable(root, min_visits);
+		}
+
+		if (min_visits == 0)
+		{
+			return;
+		}
+
+		for (int node = kept.nextSetBit(0); node >= 0; node = kept.nextSetBit(node + 1))
+		{
+			if (expanded(node) && !keeps_children(node, min_visits))
+			{
+				collapse(node);
+			}
+		}
+
+		compact(kept, root);
+
+		tree_gamer.log.log(Level.WARNING, "Pruned {0} nodes below those with fewer than {1} visits, leaving {2}",
+				           new Object[]{old_size - num_nodes, min_visits, num_nodes});
+	}
+
+	/**
+	 * Returns whether pruning at min_visits leaves a node's children in the
+	 * tree.
+	 */
+	private boolean keeps_children(int node, int min_visits)
+	{
+		return node == root || visits(node) >= min_visits || fully_expanded(node);
+	}
+
+	/**
+	 * Turns a node back into a leaf, keeping its statistics.
+	 */
+	private void collapse(int node)
+	{
+		int chunk = chunk(node);
+		int ii = index(node);
+
+		node_flags[chunk].set(ii, 0);
+		node_chosen_child[chunk][ii] = NO_NODE;
+		node_num_edges[chunk][ii] = 0;
+		node_tried_edges[chunk][ii] = 0;
+		node_move_stats[chunk][ii] = NO_NODE;
+		node_legal_moves[chunk][ii] = null;
+	}
+
+	/**
+	 * Returns every node that can be reached from the given one, going no
+	 * further than the nodes that don't keep their children when pruning at
+	 * min_visits.  With min_visits of 0, that's every node below it.
+	 */
+	private BitSet find_reachable(int from, int min_visits)
+	{
+		BitSet reachable = new BitSet(num_nodes);
+		int[] to_visit = new int[num_nodes];
+		int num_to_visit = 0;
+		reachable.set(from);
+		to_visit[num_to_visit++] = from;
+
+		while (num_to_visit > 0)
+		{
+			int node = to_visit[--num_to_visit];
+
+			if (expanded(node) && (node == from || keeps_children(node, min_visits)))
+			{
+				for (int child: children(node))
+				{
+					if (child != NO_NODE && !reachable.get(child))
+					{
+						reachable.set(child);
+						to_visit[num_to_visit++] = child;
+					}
+				}
+			}
+		}
+
+		return reachable;
+	}
+
+	/**
+	 * Keeps only the given nodes, the children of every one of which must
+	 * be among them, and makes new_root the root.  The nodes that are kept
+	 * are moved down to the lowest numbers, in the same order, and their
+	 * children into new chunks, so that all of the space after them is free
+	 * to use again.
+	 */
+	private void compact(BitSet kept, int new_root)
+	{
+		/**
+		 * Number them again from zero.  A node's new number is never more
+		 * than its old one, so they can be moved in order without
+		 * overwriting any that are still to move.
+		 */
+		int[] new_numbers = new int[num_nodes];
+		int num_kept = 0;
+
+		for (int node = kept.nextSetBit(0); node >= 0; node = kept.nextSetBit(node + 1))
+		{
+			new_numbers[node] = num_kept++;
+		}
+
+		int[][] old_edge_children = edge_children;
+		int[][] old_amaf_visits = edge_amaf_visits;
+		double[][] old_amaf_utilities = edge_amaf_utilities;
+		int[][] old_move_visits = move_visits;
+		double[][] old_move_utilities = move_utilities;
+		new_edge_arena();
+
+		for (int node = kept.nextSetBit(0); node >= 0; node = kept.nextSetBit(node + 1))
+		{
+			move_node(node, new_numbers[node], new_numbers,
+			          old_edge_children, old_amaf_visits, old_amaf_utilities,
+			          old_move_visits, old_move_utilities);
+		}
+
+		/**
+		 * Let go of the states and moves of the nodes that were dropped,
+		 * and rebuild the transposition table from those that are left.
+		 */
+		for (int node = num_kept; node < num_nodes; node++)
+		{
+			node_states[chunk(node)][index(node)] = null;
+			node_legal_moves[chunk(node)][index(node)] = null;
+		}
+
+		num_nodes = num_kept;
+		num_reserved.set(num_nodes);
+		heap_check_countdown = 0;
+		root = new_numbers[new_root];
+		Arrays.fill(table, NO_NODE);
+
+		for (int node = 0; node < num_nodes; node++)
+		{
+			table_put(node);
+		}
+	}
+
+	/**
+	 * Moves a node to a lower number, putting its children in the new
+	 * chunks under their new numbers, its AMAF statistics alongside, and
+	 * its decoupled statistics in the new chunks of their own.
+	 */
+	private void move_node(int from, int to, int[] new_numbers, int[][] old_edge_children,
+	                       int[][] old_amaf_visits, double[][] old_amaf_utilities,
+	                       int[][] old_move_visits, double[][] old_move_utilities)
+	{
+		int fc = chunk(from), fi = index(from);
+		int tc = chunk(to), ti = index(to);
+
+		node_flags[tc].set(ti, node_flags[fc].get(fi));
+		node_visits[tc][ti] = node_visits[fc][fi];
+		node_virtual_losses[tc][ti] = node_virtual_losses[fc][fi];
+		node_active_player[tc][ti] = node_active_player[fc][fi];
+		System.arraycopy(node_base_utilities[fc], fi * num_players,
+		                 node_base_utilities[tc], ti * num_players, num_players);
+		System.arraycopy(node_chosen_utilities[fc], fi * num_players,
+		                 node_chosen_utilities[tc], ti * num_players, num_players);
+		node_chosen_child[tc][ti] = node_chosen_child[fc][fi];
+		node_tried_edges[tc][ti] = node_tried_edges[fc][fi];
+		node_legal_moves[tc][ti] = node_legal_moves[fc][fi];
+		node_states[tc][ti] = node_states[fc][fi];
+
+		int num_edges = node_num_edges[fc][fi];
+		int old_chunk = node_edge_chunk[fc][fi];
+		int old_first_edge = node_first_edge[fc][fi];
+		int[] old_edges = old_edge_children[old_chunk];
+		long edges = allocate_edges(num_edges);
+		int new_chunk = (int) (edges >>> 32);
+		int new_first_edge = (int) edges;
+		int[] new_edges = edge_children[new_chunk];
+
+		for (int edge = 0; edge < num_edges; edge++)
+		{
+			int child = old_edges[old_first_edge + edge];
+			new_edges[new_first_edge + edge] = (child == NO_NODE) ? NO_NODE : new_numbers[child];
+		}
+
+		if (rave_equivalence > 0)
+		{
+			/**
+			 * There are never more AMAF entries than children, so copying
+			 * as many as there are children copies them all.
+			 */
+			System.arraycopy(old_amaf_visits[old_chunk], old_first_edge,
+			                 edge_amaf_visits[new_chunk], new_first_edge, num_edges);
+			System.arraycopy(old_amaf_utilities[old_chunk], old_first_edge * num_players,
+			                 edge_amaf_utilities[new_chunk], new_first_edge * num_players,
+			                 num_edges * num_players);
+		}
+
+		node_edge_chunk[tc][ti] = new_chunk;
+		node_first_edge[tc][ti] = new_first_edge;
+		node_num_edges[tc][ti] = num_edges;
+
+		int old_stats = node_move_stats[fc][fi];
+		int new_stats = NO_NODE;
+
+		if (old_stats != NO_NODE)
+		{
+			int num_entries = num_move_stats(node_legal_moves[tc][ti]);
+			new_stats = allocate_move_stats(num_entries);
+
+			System.arraycopy(old_move_visits[move_chunk(old_stats)], move_offset(old_stats),
+			                 move_visits[move_chunk(new_stats)], move_offset(new_stats), num_entries);
+			System.arraycopy(old_move_utilities[move_chunk(old_stats)], move_offset(old_stats),
+			                 move_utilities[move_chunk(new_stats)], move_offset(new_stats), num_entries);
+		}
+
+		node_move_stats[tc][ti] = new_stats;
+	}
+}
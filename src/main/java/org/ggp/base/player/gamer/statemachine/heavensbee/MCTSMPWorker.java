@@ -0,0 +1,417 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TimeToGetMovingException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachine;
+
+/**
+ * One of the threads searching for a HeavensbeeMCTSMP.
+ *
+ * Every worker runs the select / expand / simulate / backpropagate loop,
+ * over a tree shared with the other workers or one of its own, depending
+ * on the search mode.  It has its own state machine and its own space for
+ * the results of depth charges, as neither can be used by two threads at
+ * once.
+ */
+final class MCTSMPWorker implements Runnable
+{
+	private final HeavensbeeMCTSMP worker_gamer;
+	private final StateMachine worker_sm;
+
+	/** worker_sm, if it is a propnet machine that can do fast depth charges. */
+	private final HeavensbeePropNetStateMachine worker_propnet_sm;
+
+	/** Goal values of the last depth charge, by role index. */
+	private final int[] worker_charge_goals;
+
+	/** The moves each role made in the last rollout, for RAVE. */
+	private final List<Set<Move>> worker_played;
+
+	/** The utility of each role in the last rollout, by role index. */
+	private final double[] worker_charge_utilities;
+
+	/**
+	 * The move averages guiding rollouts, shared with the other workers, or
+	 * null to play them at random.
+	 */
+	private final MastTable worker_mast;
+
+	/**
+	 * The number of each move made by the last rollout guided by the MAST
+	 * table, role by role for each ply in turn, when it wasn't a propnet
+	 * machine's guided depth charge.
+	 */
+	private int[] worker_charge_moves = new int[64];
+	private int worker_num_charge_moves;
+
+	/** Scratch space for a joint move of a guided rollout. */
+	private final List<Move> worker_joint_move = new ArrayList<Move>();
+
+	private final Random worker_random = new Random();
+
+	/** The nodes selected on the way down to the one being simulated. */
+	private final MCTSMPTree.Path worker_path = new MCTSMPTree.Path();
+
+	private MCTSMPTree worker_tree;
+
+	/** Brought forward by halt(), from another thread. */
+	private volatile long worker_deadline;
+
+	private int worker_simulations;
+	private Exception worker_failure;
+
+	MCTSMPWorker(HeavensbeeMCTSMP gamer, StateMachine sm)
+	{
+		this(gamer, sm, null);
+	}
+
+	MCTSMPWorker(HeavensbeeMCTSMP gamer, StateMachine sm, MastTable mast)
+	{
+		worker_gamer = gamer;
+		worker_sm = sm;
+		worker_mast = mast;
+
+		if (sm instanceof HeavensbeePropNetStateMachine)
+		{
+			worker_propnet_sm = (HeavensbeePropNetStateMachine) sm;
+		}
+		else
+		{
+			worker_propnet_sm = null;
+		}
+
+		worker_charge_goals = new int[gamer.game_role_indices.size()];
+		worker_charge_utilities = new double[worker_charge_goals.length];
+		worker_played = new ArrayList<Set<Move>>();
+
+		for (int role_index = 0; role_index < worker_charge_goals.length; role_index++)
+		{
+			worker_played.add(new HashSet<Move>());
+		}
+	}
+
+	StateMachine getStateMachine()
+	{
+		return worker_sm;
+	}
+
+	/**
+	 * Sets the worker up to search the given tree until the deadline.  The
+	 * tree may be shared with other workers, or be the worker's own.
+	 */
+	void prepare(MCTSMPTree tree, long deadline)
+	{
+		worker_tree = tree;
+		worker_deadline = deadline;
+		worker_simulations = 0;
+		worker_failure = null;
+	}
+
+	/**
+	 * Stops the search as soon as the current simulation is done.  This may
+	 * be called from any thread.
+	 */
+	void halt()
+	{
+		worker_deadline = 0;
+	}
+
+	/**
+	 * Returns the tree the worker last searched.
+	 */
+	MCTSMPTree getTree()
+	{
+		return worker_tree;
+	}
+
+	int getSimulations()
+	{
+		return worker_simulations;
+	}
+
+	/**
+	 * Returns the exception that stopped the last search, if any.
+	 */
+	Exception getFailure()
+	{
+		return worker_failure;
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			search();
+		}
+		catch (Exception e)
+		{
+			worker_failure = e;
+		}
+	}
+
+	private void search() throws MoveDefinitionException,
+	                             TransitionDefinitionException,
+	                             GoalDefinitionException
+	{
+		/*
+		 * Only operate while there's time left before the deadline, and
+		 * there's still some of the tree left to search.
+		 */
+		while (System.currentTimeMillis() < worker_deadline &&
+			   !worker_tree.fully_expanded(worker_tree.root()))
+		{
+			worker_path.clear();
+			boolean backpropagated = false;
+
+			try
+			{
+				/*
+				 * Select a node to expand, making it if it's a child that
+				 * hasn't been tried yet.
+				 */
+				int chosen_node = worker_tree.select(worker_path, worker_sm);
+
+				/*
+				 * Expand that chosen node.
+				 */
+				worker_tree.expand(chosen_node, worker_sm);
+
+				/*
+				 * Simulate this node.
+				 */
+				double[] utilities = simulate(chosen_node);
+				worker_simulations++;
+
+				/*
+				 * Backpropagate that node's utility.
+				 */
+				worker_tree.backpropagate(worker_path, utilities);
+				backpropagated = true;
+			}
+			catch (TimeToGetMovingException ttgm)
+			{
+				worker_gamer.log.log(Level.WARNING, "Interrupted a depth charge");
+			}
+			finally
+			{
+				if (!backpropagated)
+				{
+					worker_tree.remove_virtual_loss(worker_path);
+				}
+			}
+		}
+	}
+
+	private double[] simulate(int chosen_node)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeToGetMovingException
+	{
+		worker_gamer.log.log(Level.INFO, "Simulating node {0}", chosen_node);
+		double[] utility_array = montecarlo(worker_tree.state(chosen_node), 5);
+		return utility_array;
+	}
+
+	private double[] montecarlo(MachineState state, int count) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException, TimeToGetMovingException
+	{
+		double[] goals = new double[worker_charge_goals.length];
+
+		worker_gamer.log.log(Level.FINE, "  Starting montecarlo in state {0}", state);
+
+		/**
+		 * Find out if the state is terminal, and its goals if so, at once.
+		 */
+		if (worker_sm.getTerminalAndGoals(state, worker_charge_goals))
+		{
+			for (int role_index = 0; role_index < worker_charge_goals.length; role_index++)
+			{
+				goals[role_index] = worker_charge_goals[role_index];
+				goals[role_index] /= 100;
+			}
+
+			worker_gamer.log.log(Level.FINE, "    Terminal state: scores are {0}", goals);
+			return goals;
+		}
+
+		int[] depth = new int[1];
+
+		double sum_goals = 0;
+		double goalvalue;
+
+		for (int ii = 0; ii < count; ii++)
+		{
+			if (worker_tree.rave() || (worker_mast != null && worker_propnet_sm == null))
+			{
+				/**
+				 * Each rollout counts towards the AMAF statistics of the
+				 * path, and the move averages, on its own.
+				 */
+				recorded_depth_charge(state);
+				set_charge_utilities();
+
+				if (worker_mast != null)
+				{
+					update_mast(worker_charge_moves, worker_num_charge_moves);
+				}
+
+				if (worker_tree.rave())
+				{
+					worker_tree.update_amaf(worker_path, worker_played, worker_charge_utilities);
+				}
+			}
+			else if (worker_mast != null)
+			{
+				/**
+				 * Neither changes the state nor allocates anything.
+				 */
+				int charge_depth = worker_propnet_sm.performGuidedDepthCharge(state, worker_deadline, worker_charge_goals,
+				                                                              worker_mast.averages(),
+				                                                              MastTable.UNSEEN_VALUE,
+				                                                              worker_mast.epsilon());
+				set_charge_utilities();
+				update_mast(worker_propnet_sm.getChargeMoves(), charge_depth * worker_charge_goals.length);
+			}
+			else if (worker_propnet_sm != null)
+			{
+				/**
+				 * Doesn't change the state or allocate anything.
+				 */
+				worker_propnet_sm.performFastDepthCharge(state, worker_deadline, worker_charge_goals);
+			}
+			else
+			{
+				MachineState stateForCharge = state.clone();
+				stateForCharge = worker_sm.performTimedDepthCharge(stateForCharge, depth, worker_deadline);
+				worker_sm.getTerminalAndGoals(stateForCharge, worker_charge_goals);
+			}
+
+			for (int role_index = 0; role_index < worker_charge_goals.length; role_index++)
+			{
+				goalvalue = worker_charge_goals[role_index];
+				goalvalue /= 100;
+
+				/**
+				 * Add the value / count as it's the average of "count"
+				 * runs.
+				 */
+				goals[role_index] += (goalvalue / count);
+
+				if (ii == 0)
+				{
+					sum_goals += goalvalue;
+				}
+			}
+		}
+
+		if (worker_gamer.game_type == -1)
+		{
+			worker_gamer.determine_game_type(sum_goals);
+		}
+
+		worker_gamer.log.log( Level.FINE, "  Montecarlo returned {0}", Arrays.toString(goals) );
+		return goals;
+	}
+
+	/**
+	 * Turns the goal values of the last rollout into utilities.
+	 */
+	private void set_charge_utilities()
+	{
+		for (int role_index = 0; role_index < worker_charge_goals.length; role_index++)
+		{
+			worker_charge_utilities[role_index] = worker_charge_goals[role_index] / 100.0;
+		}
+	}
+
+	/**
+	 * Counts the last rollout's utilities towards the averages of the moves
+	 * it made, given by number role by role for each ply in turn, and of
+	 * the moves made along the path to it.
+	 */
+	private void update_mast(int[] charge_moves, int num_charge_moves)
+	{
+		int num_roles = worker_charge_utilities.length;
+
+		for (int ii = 0; ii < num_charge_moves; ii++)
+		{
+			int role_index = ii % num_roles;
+			worker_mast.update(role_index, charge_moves[ii], worker_charge_utilities[role_index]);
+		}
+
+		worker_tree.update_mast(worker_path, worker_mast, worker_charge_utilities);
+	}
+
+	/**
+	 * Plays moves from a state until a terminal state is reached, leaving
+	 * the goal values in worker_charge_goals and the moves each role made in
+	 * worker_played.  The moves are random, unless there's a MAST table to
+	 * guide them, in which case their numbers are also left in
+	 * worker_charge_moves.
+	 */
+	private void recorded_depth_charge(MachineState state)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException, TimeToGetMovingException
+	{
+		for (Set<Move> moves: worker_played)
+		{
+			moves.clear();
+		}
+		worker_num_charge_moves = 0;
+
+		while (!worker_sm.getTerminalAndGoals(state, worker_charge_goals))
+		{
+			if (System.currentTimeMillis() > worker_deadline)
+			{
+				throw new TimeToGetMovingException(state);
+			}
+
+			List<Move> joint_move = (worker_mast == null) ? worker_sm.getRandomJointMove(state) : guided_joint_move(state);
+
+			for (int role_index = 0; role_index < joint_move.size(); role_index++)
+			{
+				worker_played.get(role_index).add(joint_move.get(role_index));
+			}
+
+			state = worker_sm.getNextState(state, joint_move);
+		}
+	}
+
+	/**
+	 * Picks each role's move from a state as the MAST table suggests, and
+	 * records their numbers in worker_charge_moves.  The joint move returned
+	 * is only good until the next call.
+	 */
+	private List<Move> guided_joint_move(MachineState state) throws MoveDefinitionException
+	{
+		List<Role> roles = worker_sm.getRoles();
+		worker_joint_move.clear();
+
+		if (worker_num_charge_moves + roles.size() > worker_charge_moves.length)
+		{
+			worker_charge_moves = Arrays.copyOf(worker_charge_moves, worker_charge_moves.length * 2);
+		}
+
+		for (int role_index = 0; role_index < roles.size(); role_index++)
+		{
+			List<Move> legal_moves = worker_sm.getLegalMoves(state, roles.get(role_index));
+			Move move = legal_moves.get(worker_mast.choose(role_index, legal_moves, worker_random));
+
+			worker_joint_move.add(move);
+			worker_charge_moves[worker_num_charge_moves++] = worker_mast.index(role_index, move);
+		}
+
+		return worker_joint_move;
+	}
+}
@@ -0,0 +1,216 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachine;
+
+/**
+ * The Move-Average Sampling Technique's table of how well each move has
+ * done, wherever in the game it was made, for guiding rollouts.  Every
+ * move made in a simulation, in the tree or in the rollout, counts towards
+ * its role's average utility for that move.  Rollouts then play the move
+ * with the best average, or one at random with probability epsilon.
+ *
+ * Each role's moves are numbered, and their averages kept in arrays by
+ * number, so that a rollout can look them up without allocating.  On a
+ * propnet machine the numbers are the moves' legal indices, all known at
+ * once, so the arrays can be handed straight to its guided depth charge;
+ * on any other, moves are numbered as they're first seen and the arrays
+ * grow to hold them.
+ *
+ * One table is shared by all the workers of a match.  The averages are
+ * updated without locking: losing the odd update to a race costs far less
+ * than making every rollout wait on a lock, and the table is only a guide.
+ */
+final class MastTable
+{
+	/**
+	 * The average of moves that haven't been made yet, which is the best
+	 * there is, so that rollouts try every move before settling on one.
+	 */
+	static final double UNSEEN_VALUE = 1.0;
+
+	private final double mast_epsilon;
+
+	/** The number of each role's moves, by role index. */
+	private final List<ConcurrentHashMap<Move, Integer>> mast_indices;
+
+	/** The average utility and count of each move, by role index and number. */
+	private final double[][] mast_averages;
+	private final int[][] mast_counts;
+
+	MastTable(StateMachine sm, double epsilon)
+	{
+		int num_roles = sm.getRoles().size();
+
+		mast_epsilon = epsilon;
+		mast_indices = new ArrayList<ConcurrentHashMap<Move, Integer>>(num_roles);
+		mast_averages = new double[num_roles][];
+		mast_counts = new int[num_roles][];
+
+		for (int role_index = 0; role_index < num_roles; role_index++)
+		{
+			ConcurrentHashMap<Move, Integer> indices = new ConcurrentHashMap<Move, Integer>();
+			int num_moves = 0;
+
+			if (sm instanceof HeavensbeePropNetStateMachine)
+			{
+				HeavensbeePropNetStateMachine propnet_sm = (HeavensbeePropNetStateMachine) sm;
+				num_moves = propnet_sm.getNumLegalIndices(role_index);
+
+				for (int legal_index = 0; legal_index < num_moves; legal_index++)
+				{
+					indices.put(propnet_sm.getMoveByLegalIndex(role_index, legal_index), legal_index);
+				}
+			}
+
+			mast_indices.add(indices);
+			mast_averages[role_index] = new double[Math.max(num_moves, 16)];
+			mast_counts[role_index] = new int[mast_averages[role_index].length];
+			Arrays.fill(mast_averages[role_index], UNSEEN_VALUE);
+		}
+	}
+
+	/**
+	 * Returns the probability of a rollout playing a random move rather
+	 * than the best one.
+	 */
+	double epsilon()
+	{
+		return mast_epsilon;
+	}
+
+	/**
+	 * Returns the average utility of each role's moves, by role index and
+	 * number, for a propnet machine's guided depth charge.  The arrays are
+	 * the table's own, so go on changing as it's updated.
+	 */
+	double[][] averages()
+	{
+		return mast_averages;
+	}
+
+	/**
+	 * Returns the number of one of a role's moves, numbering it if it's not
+	 * been seen before.
+	 */
+	int index(int role_index, Move move)
+	{
+		ConcurrentHashMap<Move, Integer> indices = mast_indices.get(role_index);
+		Integer index = indices.get(move);
+
+		if (index == null)
+		{
+			synchronized (indices)
+			{
+				index = indices.get(move);
+
+				if (index == null)
+				{
+					index = indices.size();
+					grow(role_index, index + 1);
+					indices.put(move, index);
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Makes room for a role's first num_moves moves.  Called under the
+	 * lock of the role's indices.
+	 */
+	private void grow(int role_index, int num_moves)
+	{
+		int old_length = mast_averages[role_index].length;
+
+		if (num_moves > old_length)
+		{
+			double[] averages = Arrays.copyOf(mast_averages[role_index], old_length * 2);
+			Arrays.fill(averages, old_length, averages.length, UNSEEN_VALUE);
+
+			mast_counts[role_index] = Arrays.copyOf(mast_counts[role_index], old_length * 2);
+			mast_averages[role_index] = averages;
+		}
+	}
+
+	/**
+	 * Returns the average utility of the move with the given number.
+	 */
+	double average(int role_index, int index)
+	{
+		double[] averages = mast_averages[role_index];
+		return (index < averages.length) ? averages[index] : UNSEEN_VALUE;
+	}
+
+	/**
+	 * Returns how many times the move with the given number has been
+	 * counted.
+	 */
+	int count(int role_index, int index)
+	{
+		int[] counts = mast_counts[role_index];
+		return (index < counts.length) ? counts[index] : 0;
+	}
+
+	/**
+	 * Counts the utility a role got from a simulation in which it made the
+	 * move with the given number.
+	 */
+	void update(int role_index, int index, double utility)
+	{
+		double[] averages = mast_averages[role_index];
+		int[] counts = mast_counts[role_index];
+
+		/**
+		 * Another thread may have just grown the arrays, in which case the
+		 * update is lost along with the old ones.
+		 */
+		if (index < averages.length && index < counts.length)
+		{
+			averages[index] += (utility - averages[index]) / ++counts[index];
+		}
+	}
+
+	/**
+	 * Returns which of a role's legal moves a rollout should make: one at
+	 * random with probability epsilon, or else the one with the best
+	 * average, ties being broken at random.
+	 */
+	int choose(int role_index, List<Move> legal_moves, Random random)
+	{
+		if (legal_moves.size() == 1 || random.nextDouble() < mast_epsilon)
+		{
+			return random.nextInt(legal_moves.size());
+		}
+
+		double best_average = Double.NEGATIVE_INFINITY;
+		int chosen = 0;
+		int num_best = 0;
+
+		for (int ii = 0; ii < legal_moves.size(); ii++)
+		{
+			double average = average(role_index, index(role_index, legal_moves.get(ii)));
+
+			if (average > best_average)
+			{
+				best_average = average;
+				chosen = ii;
+				num_best = 1;
+			}
+			else if (average == best_average && random.nextInt(++num_best) == 0)
+			{
+				chosen = ii;
+			}
+		}
+
+		return chosen;
+	}
+}
@@ -0,0 +1,346 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeeMachineState;
+
+/**
+ * The BatchedPropNet evaluates a PropNet for up to 64 states at once.
+ *
+ * Each component has one long word, whose bit l is the component's value in
+ * lane l.  One pass over the components in evaluation order then works out
+ * every lane, with an And being the and of its input words, a Not the
+ * complement of its input word, and so on.  The cost of walking the propnet
+ * is shared between all 64 lanes, which is a big win when there are lots of
+ * states to evaluate, as in rollouts.
+ *
+ * The lanes are set up by clearing the batch, setting the bases and inputs
+ * of each lane, then calling propagate.  After that, getMask gives the lanes
+ * in which any component is true, and getNextMask the lanes in which each
+ * base is true in the next state.
+ *
+ * A BatchedPropNet holds the values, so it must only be used by one thread
+ * at a time.  Any number can be made over the same PropNet.
+ */
+public final class BatchedPropNet
+{
+	/** The number of states evaluated at once. */
+	public static final int LANES = 64;
+
+	/** Evaluation steps. */
+	private static final byte OP_FALSE = 0;
+	private static final byte OP_TRUE = 1;
+	private static final byte OP_COPY = 2;
+	private static final byte OP_NOT = 3;
+	private static final byte OP_AND = 4;
+	private static final byte OP_OR = 5;
+
+	/**
+	 * The steps, in evaluation order: the component each one sets, what it
+	 * does, and where its inputs are in step_inputs.  The inputs of step s
+	 * are step_inputs[step_input_start[s]] up to, but not including,
+	 * step_inputs[step_input_start[s+1]].
+	 */
+	private final int[] step_outputs;
+	private final byte[] step_ops;
+	private final int[] step_input_start;
+	private final int[] step_inputs;
+
+	/**
+	 * The component whose value each base takes in the next state, by base
+	 * index; -1 for a base that is never set by a transition.
+	 */
+	private final int[] next_sources;
+
+	/** The components marked by the caller other than the bases. */
+	private final int[] input_indices;
+
+	private final long[] zobrist_keys;
+
+	/** The value word of every component, by component index. */
+	private final long[] values;
+
+	public BatchedPropNet(PropNet propNet)
+	{
+		int num_bases = propNet.getBasePropositions().size();
+		zobrist_keys = propNet.getZobristKeys();
+		values = new long[propNet.getComponents().size()];
+
+		/**
+		 * The inputs and init proposition are set by the caller, like the
+		 * bases, so don't get a step.
+		 */
+		Proposition init = propNet.getInitProposition();
+		input_indices = new int[propNet.getInputPropositions().size() + ((init == null) ? 0 : 1)];
+		int num_inputs = 0;
+		for (Proposition p : propNet.getInputPropositions().values())
+		{
+			input_indices[num_inputs++] = p.index;
+		}
+		if (init != null)
+		{
+			input_indices[num_inputs++] = init.index;
+		}
+
+		boolean[] marked = new boolean[values.length];
+		for (Proposition p : propNet.getBasePropositions().values())
+		{
+			marked[p.index] = true;
+		}
+		for (int index : input_indices)
+		{
+			marked[index] = true;
+		}
+
+		/**
+		 * Flatten the rest into steps.
+		 */
+		List<Component> order = propNet.getEvaluationOrder();
+		int num_steps = 0;
+		int num_step_inputs = 0;
+
+		for (Component c : order)
+		{
+			if (!marked[c.index])
+			{
+				num_steps++;
+				num_step_inputs += c.getInputs().size();
+			}
+		}
+
+		step_outputs = new int[num_steps];
+		step_ops = new byte[num_steps];
+		step_input_start = new int[num_steps + 1];
+		step_inputs = new int[num_step_inputs];
+		next_sources = new int[num_bases];
+		Arrays.fill(next_sources, -1);
+
+		int step = 0;
+		int step_input = 0;
+
+		for (Component c : order)
+		{
+			if (c instanceof Transition)
+			{
+				for (Component output : c.getOutputs())
+				{
+					next_sources[output.index] = c.index;
+				}
+			}
+
+			if (marked[c.index])
+			{
+				continue;
+			}
+
+			step_outputs[step] = c.index;
+			step_ops[step] = get_op(c);
+			step_input_start[step] = step_input;
+
+			if (step_ops[step] != OP_FALSE && step_ops[step] != OP_TRUE)
+			{
+				for (Component input : c.getInputs())
+				{
+					step_inputs[step_input++] = input.index;
+				}
+			}
+
+			step++;
+		}
+
+		step_input_start[step] = step_input;
+	}
+
+	/**
+	 * Returns the step that works out the value of a component which isn't
+	 * marked by the caller.
+	 */
+	private static byte get_op(Component c)
+	{
+		int num_inputs = c.getInputs().size();
+
+		if (c instanceof Constant)
+		{
+			return c.getValue() ? OP_TRUE : OP_FALSE;
+		}
+		else if (c instanceof Not)
+		{
+			return OP_NOT;
+		}
+		else if (c instanceof And)
+		{
+			return (num_inputs == 0) ? OP_TRUE : OP_AND;
+		}
+		else if (c instanceof Or)
+		{
+			return (num_inputs == 0) ? OP_FALSE : OP_OR;
+		}
+		else
+		{
+			/**
+			 * Transitions and view propositions copy their single input.
+			 * Other than the marked ones, a proposition with no input is
+			 * never true.
+			 */
+			return (num_inputs == 1) ? OP_COPY : OP_FALSE;
+		}
+	}
+
+	/**
+	 * Clears every lane, leaving no bases or inputs marked.
+	 */
+	public void clear()
+	{
+		Arrays.fill(values, 0L);
+	}
+
+	/**
+	 * Clears the inputs and init proposition of every lane, leaving the bases
+	 * marked.
+	 */
+	public void clearInputs()
+	{
+		for (int index : input_indices)
+		{
+			values[index] = 0;
+		}
+	}
+
+	/**
+	 * Marks the bases of a state in the given lanes.
+	 */
+	public void setBases(MachineState state, long lanes)
+	{
+		long[] bases = ((HeavensbeeMachineState)state).get_bases();
+
+		for (int word = 0; word < bases.length; word++)
+		{
+			long word_bits = bases[word];
+			while (word_bits != 0)
+			{
+				values[(word << 6) + Long.numberOfTrailingZeros(word_bits)] |= lanes;
+				word_bits &= word_bits - 1;
+			}
+		}
+	}
+
+	/**
+	 * Marks an input proposition, by component index, in the given lanes.
+	 * Negative indices are ignored.
+	 */
+	public void setInput(int index, long lanes)
+	{
+		if (index >= 0)
+		{
+			values[index] |= lanes;
+		}
+	}
+
+	/**
+	 * Evaluates every component in every lane.
+	 */
+	public void propagate()
+	{
+		long[] v = values;
+		int[] inputs = step_inputs;
+
+		for (int step = 0; step < step_outputs.length; step++)
+		{
+			int start = step_input_start[step];
+			int end = step_input_start[step + 1];
+			long word;
+
+			switch (step_ops[step])
+			{
+			case OP_TRUE:
+				word = -1L;
+				break;
+			case OP_COPY:
+				word = v[inputs[start]];
+				break;
+			case OP_NOT:
+				word = ~v[inputs[start]];
+				break;
+			case OP_AND:
+				word = v[inputs[start]];
+				for (int ii = start + 1; ii < end; ii++)
+				{
+					word &= v[inputs[ii]];
+				}
+				break;
+			case OP_OR:
+				word = v[inputs[start]];
+				for (int ii = start + 1; ii < end; ii++)
+				{
+					word |= v[inputs[ii]];
+				}
+				break;
+			default:
+				word = 0L;
+				break;
+			}
+
+			v[step_outputs[step]] = word;
+		}
+	}
+
+	/**
+	 * Returns the lanes in which a component is true after the last
+	 * propagate.
+	 */
+	public long getMask(Component c)
+	{
+		return values[c.index];
+	}
+
+	/**
+	 * Returns the lanes in which a base, by base index, is true in the next
+	 * state after the last propagate.
+	 */
+	public long getNextMask(int base_index)
+	{
+		int source = next_sources[base_index];
+		return (source < 0) ? 0L : values[source];
+	}
+
+	/**
+	 * Moves the given lanes on to their next state, by marking the bases set
+	 * by the transitions in the last propagate.  The other lanes keep their
+	 * bases.  The inputs are left as they are.
+	 */
+	public void advance(long lanes)
+	{
+		for (int ii = 0; ii < next_sources.length; ii++)
+		{
+			values[ii] = (values[ii] & ~lanes) | (getNextMask(ii) & lanes);
+		}
+	}
+
+	/**
+	 * Returns the next state of a lane after the last propagate.
+	 */
+	public MachineState getNextState(int lane)
+	{
+		long[] bases = new long[(next_sources.length + 63) >>> 6];
+		long hash = 0;
+
+		for (int ii = 0; ii < next_sources.length; ii++)
+		{
+			if ((getNextMask(ii) & (1L << lane)) != 0)
+			{
+				bases[ii >>> 6] |= (1L << ii);
+				hash ^= zobrist_keys[ii];
+			}
+		}
+
+		return new HeavensbeeMachineState(bases, hash);
+	}
+}
@@ -2,7 +2,6 @@ package org.ggp.base.util.propnet.architecture;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
 
@@ -16,14 +15,15 @@ public abstract class Component implements Serializable
 {
 
 	private static final long serialVersionUID = 352524175700224447L;
-    /** The inputs to the component. */
+    /**
+     * The inputs to the component.  The methods that change the links are
+     * synchronized, as OptimizingPropNetFactory builds the propnet on many
+     * threads at once.
+     */
     private final List<Component> inputs;
     /** The outputs of the component. */
     private final List<Component> outputs;
 
-    /* The bitset for this component */
-    protected BitSet curstate = null;
-
 	public int index;
 	public int topological_index;
 
@@ -43,27 +43,27 @@ public abstract class Component implements Serializable
      * @param input
      *            A new input.
      */
-    public void addInput(Component input)
+    public synchronized void addInput(Component input)
     {
         inputs.add(input);
     }
 
-    public void removeInput(Component input)
+    public synchronized void removeInput(Component input)
     {
     	inputs.remove(input);
     }
 
-    public void removeOutput(Component output)
+    public synchronized void removeOutput(Component output)
     {
     	outputs.remove(output);
     }
 
-    public void removeAllInputs()
+    public synchronized void removeAllInputs()
     {
 		inputs.clear();
 	}
 
-	public void removeAllOutputs()
+	public synchronized void removeAllOutputs()
 	{
 		outputs.clear();
 	}
@@ -74,7 +74,7 @@ public abstract class Component implements Serializable
      * @param output
      *            A new output.
      */
-    public void addOutput(Component output)
+    public synchronized void addOutput(Component output)
     {
         outputs.add(output);
     }
@@ -124,12 +124,23 @@ public abstract class Component implements Serializable
     }
 
     /**
-     * Returns the value of the Component.
+     * Returns the value of the Component, worked out from its inputs.
      *
      * @return The value of the Component.
      */
     public abstract boolean getValue();
 
+    /**
+     * Returns the value of the Component in an evaluation context, as set by
+     * the last propagation through that context.
+     *
+     * @return The value of the Component.
+     */
+    public boolean getValue(PropNetContext context)
+    {
+        return context.current_state.get(index);
+    }
+
     /**
      * Returns a representation of the Component in .dot format.
      *
@@ -175,8 +186,6 @@ public abstract class Component implements Serializable
     	return outputBuffer.toString();
     }
 
-    public abstract void augmentBitSets(BitSet current_state, BitSet next_state);
-
 	public void setIndex(int index_to_set)
 	{
 		//GamerLogger.emitToConsole("Component '" + this.toString() + "' is index " + index_to_set + "\n");
@@ -189,15 +198,18 @@ public abstract class Component implements Serializable
 		this.topological_index = index_to_set;
 	}
 
-	public void update_and_fprop(Set<Component> worklist)
+	public void update_and_fprop(PropNetContext context)
 	{
-		update_and_fprop(worklist, null, false);
+		update_and_fprop(context, null, false);
 	}
 
 	/**
+	 * Recomputes the value of this component in the given context, and adds
+	 * its outputs to the context's worklist if the value changed.
+	 *
 	 * Should never be propping a component which is already in the checkset
-	 * @param worklist
+	 * @param context
 	 * @param checkset
 	 */
-	public abstract void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing);
+	public abstract void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing);
 }
\ No newline at end of file
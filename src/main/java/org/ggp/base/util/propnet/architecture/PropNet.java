@@ -3,17 +3,18 @@ package org.ggp.base.util.propnet.architecture;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlPool;
@@ -34,13 +35,6 @@ import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeeMachineState;
 
 
-class TopologicalComparator implements Comparator<Component> {
-    @Override
-	public int compare(Component c1, Component c2) {
-        return c1.topological_index - c2.topological_index;
-    }
-}
-
 /**
  * The PropNet class is designed to represent Propositional Networks.
  *
@@ -118,27 +112,40 @@ public final class PropNet
 	/** Propcounter to index propositions */
 	private int compcounter;
 
-	/** BitSets to represent current state and next state */
-	public BitSet current_state;
-	public BitSet next_state;
-
 	/** Visitor component to link together all reachable nodes */
 	private Component visitor_root;
 
 	/** Reverse postordering */
 	private List<Component> topological_ordering;
 
+
 	/** References to every Component in the PropNet, indexed by index. */
 	private final Map<Integer, Component> idx_comps;
 
+	/** The same, as an array, for looking components up while marking. */
+	private Component[] comps_by_index;
+
+	/**
+	 * A random key for each base proposition, by base index.  The hash of a
+	 * state is the xor of the keys of its true bases (Zobrist hashing), so
+	 * flipping a base updates the hash with a single xor.
+	 */
+	private long[] zobrist_keys;
+
+	/**
+	 * Seed for the Zobrist keys.  Base indices follow HashSet order, so the
+	 * keys are only fixed within one PropNet, not across builds of a game.
+	 */
+	private static final long ZOBRIST_SEED = 0x4865617665736265L;
+
 	/**
-	 * Pristine BitSet state.  This is the state of the machine at the end
-	 * of the initial propagation, where all the Nots and Constants have been
+	 * Pristine context.  This is the state of the machine at the end of the
+	 * initial propagation, where all the Nots and Constants have been
 	 * propagated and no BaseProposition, input propositions or the init
-	 * proposition have been set.  We use this pristine state at the start
-	 * of some functions.
+	 * proposition have been set.  Every evaluation context starts off as a
+	 * copy of this.
 	 */
-	private BitSet pristine_state;
+	private PropNetContext pristine_context;
 
 	private String dot_timestamp;
 
@@ -171,10 +178,6 @@ public final class PropNet
 		this.visitor_root = new VisitorComp();
 		this.idx_comps = new HashMap<Integer, Component>();
 
-		/* Set up bit states for current and next */
-		current_state = new BitSet();
-		next_state = new BitSet();
-
 		/* Set up propositions */
 		compcounter = 0;
 		this.propositions = recordPropositions();
@@ -187,6 +190,7 @@ public final class PropNet
 
 		/* Setup the remaining indices */
 		setupRemainingIndices();
+		setupZobristKeys();
 
 		/* Carry on recording props */
 		this.legalPropositions = recordLegalPropositions();
@@ -201,10 +205,7 @@ public final class PropNet
 		/* Actually do the visitation */
 		setupVisitationList();
 
-		/* Augment the components so they're running on BitSets */
-		augmentComponents();
-
-		/* Do the initial propagation so that we are in the pristine state */
+		/* Do the initial propagation to set up the pristine context */
 		initial_propagate();
 	}
 
@@ -361,13 +362,6 @@ public final class PropNet
 		if (c instanceof Proposition) propositions.add((Proposition)c);
 	}
 
-	private void augmentComponents() {
-		for (Component c: components)
-		{
-			c.augmentBitSets(current_state, next_state);
-		}
-	}
-
 	private void setupVisitationList() {
 		ArrayList<Component> visited_components = new ArrayList<Component>();
 		depth_first_visit(visitor_root, visited_components);
@@ -769,6 +763,108 @@ public final class PropNet
 		}
 	}
 
+	private void setupZobristKeys()
+	{
+		comps_by_index = new Component[compcounter];
+		for (Map.Entry<Integer, Component> entry : idx_comps.entrySet())
+		{
+			comps_by_index[entry.getKey()] = entry.getValue();
+		}
+
+		Random random = new Random(ZOBRIST_SEED);
+		zobrist_keys = new long[basePropositions.size()];
+		for (int ii = 0; ii < zobrist_keys.length; ii++)
+		{
+			zobrist_keys[ii] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Returns the Zobrist key of each base proposition, by base index.  The
+	 * array must not be changed.
+	 */
+	public long[] getZobristKeys()
+	{
+		return zobrist_keys;
+	}
+
+	/**
+	 * Orders the components so that every component comes after all of its
+	 * inputs, not counting the links out of transitions, which are what
+	 * make the propnet cyclic.
+	 *
+	 * The topological ordering used by the worklist can't be used for this:
+	 * it comes from a depth first search that treats some other link in each
+	 * cycle as the back link, which is fine for a worklist but not for a
+	 * single pass.
+	 */
+	public List<Component> getEvaluationOrder()
+	{
+		List<Component> order = getEvaluationOrder(components);
+
+		if (order.size() != components.size())
+		{
+			throw new IllegalStateException("Propnet has a cycle that doesn't pass through a transition");
+		}
+
+		return order;
+	}
+
+	/**
+	 * Orders a set of components as getEvaluationOrder does, for the
+	 * optimizer to use before there's a PropNet.  Any component on a cycle
+	 * that doesn't pass through a transition, or that depends on one, is
+	 * left out.
+	 */
+	public static List<Component> getEvaluationOrder(Collection<Component> components)
+	{
+		Map<Component, Integer> num_inputs_left = new HashMap<Component, Integer>();
+		Deque<Component> ready = new ArrayDeque<Component>();
+
+		for (Component c : components)
+		{
+			int num_inputs = 0;
+			for (Component input : c.getInputs())
+			{
+				if (!(input instanceof Transition))
+				{
+					num_inputs++;
+				}
+			}
+
+			num_inputs_left.put(c, num_inputs);
+			if (num_inputs == 0)
+			{
+				ready.add(c);
+			}
+		}
+
+		List<Component> order = new ArrayList<Component>(num_inputs_left.size());
+
+		while (!ready.isEmpty())
+		{
+			Component c = ready.poll();
+			order.add(c);
+
+			if (c instanceof Transition)
+			{
+				continue;
+			}
+
+			for (Component output : c.getOutputs())
+			{
+				int left = num_inputs_left.get(output) - 1;
+				num_inputs_left.put(output, left);
+				if (left == 0)
+				{
+					ready.add(output);
+				}
+			}
+		}
+
+		return order;
+	}
+
 	private void setupVisitorRoot()
 	{
 		for ( Component c : components )
@@ -884,21 +980,30 @@ public final class PropNet
 		//c.removeAllOutputs();
 	}
 
-	public MachineState getStateFromBase()
+	/**
+	 * Creates a new evaluation context for this PropNet, starting in the
+	 * pristine state.  Each thread evaluating the PropNet needs its own.
+	 */
+	public PropNetContext createContext()
 	{
-		return new HeavensbeeMachineState(next_state);
+		return new PropNetContext(pristine_context);
 	}
 
-	public MachineState mark_init()
+	public MachineState getStateFromBase(PropNetContext context)
+	{
+		return new HeavensbeeMachineState(context.next_state.clone(), context.next_hash);
+	}
+
+	public MachineState mark_init(PropNetContext context)
 	{
 		/* Mark the init node and propagate */
-		 SortedSet<Component> worklist = mark_things(true);
+		mark_things(context, true);
 
 		/* Now forward propagate */
-		forwardprop(worklist, false);
+		forwardprop(context, false);
 
 		/* The state is this state */
-		MachineState state = getStateFromBase();
+		MachineState state = getStateFromBase(context);
 
 		/**
 		 * Log out this initial state.
@@ -908,8 +1013,9 @@ public final class PropNet
 		return state;
 	}
 
-	public void forwardprop(SortedSet<Component> worklist, boolean tracing)
+	public void forwardprop(PropNetContext context, boolean tracing)
 	{
+		TopologicalWorklist worklist = context.worklist;
 		int workcounter = 0;
 
 		while (!worklist.isEmpty())
@@ -917,8 +1023,7 @@ public final class PropNet
 			/**
 			 * Get the top item in the workset to work on.
 			 */
-			Component top_item = worklist.first();
-			worklist.remove(top_item);
+			Component top_item = worklist.poll();
 
 			if (tracing)
 			{
@@ -926,7 +1031,7 @@ public final class PropNet
 						    " (index " + top_item.topological_index + " ) \n");
 			}
 
-			top_item.update_and_fprop(worklist, null, tracing);
+			top_item.update_and_fprop(context, null, tracing);
 
 			workcounter++;
 		}
@@ -941,35 +1046,37 @@ public final class PropNet
 	public void reveal_hbstate(MachineState state)
 	{
 		GamerLogger.log("debug.log", "Revealing state:" + state + "\n");
-		HeavensbeeMachineState hbstate = (HeavensbeeMachineState)state;
-		BitSet bs = hbstate.get_bs();
-		for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i+1))
+		long[] bases = get_bases_from_state(state);
+		for (int i = 0; i < basePropositions.size(); i++)
 		{
-			Component c = idx_comps.get(i);
-			GamerLogger.log("debug.log", "  Component " + c + "\n");
+			if ((bases[i >>> 6] & (1L << i)) != 0)
+			{
+				Component c = idx_comps.get(i);
+				GamerLogger.log("debug.log", "  Component " + c + "\n");
+			}
 		}
 	}
 
-	public void check_transitions()
+	public void check_transitions(PropNetContext context)
 	{
 		for (Component c: getComponents())
 		{
 			if (c instanceof Transition)
 			{
-				check_transition((Transition)c, 0);
+				check_transition(context, (Transition)c, 0);
 			}
 		}
 	}
 
-	public void check_legal_props(Role r)
+	public void check_legal_props(PropNetContext context, Role r)
 	{
 		for (Proposition p: getLegalPropositions().get(r))
 		{
-			check_component(p, 0);
+			check_component(context, p, 0);
 		}
 	}
 
-	private void check_transition(Transition c, int indent) {
+	private void check_transition(PropNetContext context, Transition c, int indent) {
 		// Iterate back up the tree to see what the values for these transitions are.
 		String strindent = c.makeindent(indent);
 
@@ -978,26 +1085,26 @@ public final class PropNet
 //		{
 //			check_component(cc, indent + 2);
 //		}
-		GamerLogger.log("debug.log", strindent + c + ": " + c.getSingleInput().getValue()
-				+ "; target = " + next_state.get(c.getSingleOutput().index) + " = " + c.getSingleOutput() +  "\n");
-		if (c.getSingleInput().getValue())
+		GamerLogger.log("debug.log", strindent + c + ": " + c.getSingleInput().getValue(context)
+				+ "; target = " + context.isNextSet(c.getSingleOutput().index) + " = " + c.getSingleOutput() +  "\n");
+		if (c.getSingleInput().getValue(context))
 		{
 			for (Component cc: c.getInputs())
 			{
-				check_component(cc, indent + 2);
+				check_component(context, cc, indent + 2);
 			}
 		}
 	}
 
-	private void check_component(Component c, int indent) {
+	private void check_component(PropNetContext context, Component c, int indent) {
 		String strindent = c.makeindent(indent);
 
-		GamerLogger.log("debug.log", strindent + c + ": " + c.getValue() + "\n");
+		GamerLogger.log("debug.log", strindent + c + ": " + c.getValue(context) + "\n");
 		for (Component cc: c.getInputs())
 		{
 			if (! (cc instanceof Transition))
 			{
-				check_component(cc, indent + 2);
+				check_component(context, cc, indent + 2);
 			}
 		}
 	}
@@ -1006,32 +1113,26 @@ public final class PropNet
 	{
 		GamerLogger.log("debug.log", "Starting initial propagation\n");
 
+		PropNetContext context =
+				new PropNetContext(new TopologicalWorklist(topological_ordering),
+				                   components.size(),
+				                   zobrist_keys);
+
 		/**
 		 * Start the initial propagation by updating and propping all Nots
 		 * and Constants; this adds their values to the blank state but
-		 * doesn't propagate.  This state is the "pristine" state; we
-		 * revert to this when working out next values, before propagating.
+		 * doesn't propagate.
 		 */
-		SortedSet<Component> worklist = getnewWorklist();
-
 		for (Component c: getComponents())
 		{
 			if (c instanceof Not || c instanceof Constant)
 			{
-				c.update_and_fprop(worklist, null, true);
+				c.update_and_fprop(context, null, true);
 			}
 		}
 
 		GamerLogger.log("debug.log", "After initial update, the following states were set\n");
-		GamerLogger.log("debug.log", current_state.toString());
-
-		/**
-		 * Save off the pristine state
-		 */
-		pristine_state = (BitSet) current_state.clone();
-
-		GamerLogger.log("debug.log", "The pristine state is as follows\n");
-		for (int i = pristine_state.nextSetBit(0); i >= 0; i = pristine_state.nextSetBit(i+1))
+		for (int i = context.current_state.nextSetBit(0); i >= 0; i = context.current_state.nextSetBit(i+1))
 		{
 			Component c = idx_comps.get(i);
 			GamerLogger.log("debug.log", "  Component " + c + "\n");
@@ -1039,23 +1140,21 @@ public final class PropNet
 
 		/* Now forward propagate */
 		GamerLogger.log("debug.log", "Now forward propping\n");
-		forwardprop(worklist, true);
+		forwardprop(context, true);
 		GamerLogger.log("debug.log", "Ending initial propagation\n");
-	}
 
-	public SortedSet<Component> getnewWorklist()
-	{
-		Comparator<Component> compy = new TopologicalComparator();
-		SortedSet<Component> wl = new TreeSet<Component>(compy);
-		return wl;
+		/**
+		 * With nothing marked, this is the "pristine" state; every context
+		 * starts here.
+		 */
+		pristine_context = context;
 	}
 
 	/**
-	 * This function marks base propositions, and clears any inputs and the
-	 * init proposition.
+	 * Returns the bases of a state, one bit per base index.
 	 * @param state
 	 */
-	private BitSet get_bitset_from_state(MachineState state)
+	private long[] get_bases_from_state(MachineState state)
 	{
 		if (!(state instanceof HeavensbeeMachineState))
 		{
@@ -1064,54 +1163,40 @@ public final class PropNet
 		}
 
 		HeavensbeeMachineState hbstate = (HeavensbeeMachineState)state;
-		BitSet bs = hbstate.get_bs();
-		return bs;
+		return hbstate.get_bases();
 	}
 
-	public SortedSet<Component> mark_things(MachineState state)
+	public void mark_things(PropNetContext context, MachineState state)
 	{
-		return mark_things(state, null);
+		mark_things(context, state, null);
 	}
 
 
-	public SortedSet<Component> mark_things(MachineState state,
-											 List<GdlSentence> doeses)
+	public void mark_things(PropNetContext context,
+			                MachineState state,
+			                List<GdlSentence> doeses)
 	{
-		return mark_things(state, doeses, false);
+		mark_things(context, state, doeses, false);
 	}
 
-	public SortedSet<Component> mark_things(boolean mark_init)
+	public void mark_things(PropNetContext context, boolean mark_init)
 	{
-	return mark_things(null, null, mark_init);
+		mark_things(context, null, null, mark_init);
 	}
 
-	public SortedSet<Component> mark_things(MachineState state,
-			                                List<GdlSentence> doeses,
-			                                boolean mark_init)
+	/**
+	 * Marks the bases of the given state, the given inputs and (optionally)
+	 * the init proposition in the context, unmarking everything else, and
+	 * fills the context's worklist with the propositions whose marking
+	 * changed.  Call forwardprop afterwards to propagate the change.
+	 */
+	public void mark_things(PropNetContext context,
+			                MachineState state,
+			                List<GdlSentence> doeses,
+			                boolean mark_init)
 	{
-		/**
-		 * Copy the pristine state that we have to our target
-		 */
-		BitSet target_state = (BitSet) pristine_state.clone();
-
-		//GamerLogger.emitToConsole("Target State " + target_state + "\n");
-
-		if (state != null)
-		{
-			/**
-			 * Get the bitset from the machine state with the bases.
-			 */
-			BitSet base_set = get_bitset_from_state(state);
-			//GamerLogger.emitToConsole("Base set " + base_set + "\n");
-			//reveal_hbstate(state);
-
-			/**
-			 * Apply the base set to the target state.  This sets the base props
-			 */
-			target_state.or(base_set);
-
-			//GamerLogger.emitToConsole("Target State w/ base " + target_state + "\n");
-		}
+		long[] base_set = (state == null) ? null : get_bases_from_state(state);
+		long[] target_state = start_marking(context, base_set);
 
 		if (doeses != null)
 		{
@@ -1125,7 +1210,7 @@ public final class PropNet
 
 				if (p != null)
 				{
-					target_state.set(p.index);
+					target_state[p.index >>> 6] |= (1L << p.index);
 				}
 				else
 				{
@@ -1144,123 +1229,173 @@ public final class PropNet
 		{
 			Proposition ip = getInitProposition();
 			//GamerLogger.emitToConsole("Setting init bit " + ip.index + "\n");
-			target_state.set(ip.index);
+			target_state[ip.index >>> 6] |= (1L << ip.index);
 		}
 
-		/**
-		 * Now, take our target state, copy it, and xor it with our current
-		 * state, to get a list of differing states.
-		 */
-		//GamerLogger.emitToConsole("Current State " + current_state + "\n");
+		finish_marking(context);
+	}
 
+	/**
+	 * As mark_things, but with the inputs given by component index rather
+	 * than by sentence, which saves building and looking up sentences.
+	 * Negative indices are ignored; they stand for moves whose input
+	 * proposition was pruned as having no effect.
+	 */
+	public void mark_things_indexed(PropNetContext context,
+			                        MachineState state,
+			                        int[] input_indices)
+	{
+		long[] base_set = (state == null) ? null : get_bases_from_state(state);
+		long[] target_state = start_marking(context, base_set);
 
-		BitSet differing_bits = (BitSet) target_state.clone();
-		differing_bits.xor(current_state);
+		mark_input_bits(target_state, input_indices);
+		finish_marking(context);
+	}
 
-		//GamerLogger.emitToConsole("Differing bits " + differing_bits + "\n");
+	/**
+	 * Keeps the bases that are marked in the context, but replaces the
+	 * marked inputs with the given ones.
+	 */
+	public void mark_inputs(PropNetContext context, int[] input_indices)
+	{
+		long[] target_state = start_marking(context, context.marked_state);
 
 		/**
-		 * Ok, now override the current state, and add any different
-		 * states to a work list to update those states.
+		 * Bases have the lowest indices, so everything above them is an
+		 * input or the init proposition.
 		 */
-		current_state = target_state;
-
-		SortedSet<Component> worklist = getnewWorklist();
-
-		for (int i = differing_bits.nextSetBit(0);
-			 i >= 0;
-			 i = differing_bits.nextSetBit(i+1))
+		int num_bases = basePropositions.size();
+		int word = num_bases >>> 6;
+		if (word < target_state.length)
 		{
-			Component c = idx_comps.get(i);
-
-			/**
-			 * If this component is a proposition, we need to set the value
-			 * we think it should be in here.  This only affects base props?
-			 */
-			if (c instanceof Proposition)
+			target_state[word] &= (1L << num_bases) - 1;
+			for (word++; word < target_state.length; word++)
 			{
-				Proposition p = (Proposition) c;
-				boolean p_value = target_state.get(i);
-
-//				GamerLogger.emitToConsole(
-//					"  Component "+c+" is proposition " + p
-//					+ "; setting to " + p_value + "\n");
-				p.setValue(p_value);
+				target_state[word] = 0;
 			}
-
-//			GamerLogger.emitToConsole("  Adding component " + i +
-//					                  " " + c + " to worklist \n");
-			worklist.add(c);
 		}
 
-		return worklist;
+		mark_input_bits(target_state, input_indices);
+		finish_marking(context);
 	}
 
-	public void cache_marked_bases(MachineState state)
+	/**
+	 * Marks the next state that the context's transitions have produced as
+	 * the bases, with no inputs.  This moves the context on to the next
+	 * state without making a MachineState for it.
+	 */
+	public void mark_next_state(PropNetContext context)
 	{
-		if (!(state instanceof HeavensbeeMachineState))
+		start_marking(context, context.next_state);
+		finish_marking(context);
+	}
+
+	private void mark_input_bits(long[] target_state, int[] input_indices)
+	{
+		if (input_indices != null)
 		{
-			throw new RuntimeException(
-					                 "State is not a Heavensbee MachineState");
+			for (int index : input_indices)
+			{
+				if (index >= 0)
+				{
+					target_state[index >>> 6] |= (1L << index);
+				}
+			}
 		}
+	}
 
-		HeavensbeeMachineState hbstate = (HeavensbeeMachineState)state;
+	/**
+	 * Starts building a new marking in the context's scratch space, with the
+	 * given bases marked, and returns it.
+	 *
+	 * @param base_set
+	 *            The bases, one bit per base index, or null for none.  Bases
+	 *            have the lowest component indices, so these bits go straight
+	 *            into the marking.
+	 */
+	private long[] start_marking(PropNetContext context, long[] base_set)
+	{
+		/**
+		 * Whatever state the context held values for, it won't any more.
+		 */
+		context.propagated_state = null;
+
+		/**
+		 * Build up the new marking in the context's scratch space.
+		 */
+		long[] target_state = context.target_state;
+		int base_words = 0;
 
-		if (!hbstate.is_cached())
+		if (base_set != null)
 		{
-//			GamerLogger.emitToConsole("After forward propping, we ended up in this current state\n");
-//			for (int i = current_state.nextSetBit(0); i >= 0; i = current_state.nextSetBit(i+1))
-//			{
-//				Component c = idx_comps.get(i);
-//				GamerLogger.emitToConsole("  Component " + c + "\n");
-//			}
-//
-//			GamerLogger.emitToConsole("After forward propping, we ended up in this next state\n");
-//			for (int i = next_state.nextSetBit(0); i >= 0; i = next_state.nextSetBit(i+1))
-//			{
-//				Component c = idx_comps.get(i);
-//				GamerLogger.emitToConsole("  Component " + c + "\n");
-//			}
-//
-//			GamerLogger.emitToConsole("Checking our transitions\n");
-//			check_transitions();
-//
-//			GamerLogger.emitToConsole("\n\n\n");
-
-			hbstate.set_cache(current_state, next_state);
+			base_words = Math.min(base_set.length, target_state.length);
+			System.arraycopy(base_set, 0, target_state, 0, base_words);
 		}
-		else
+
+		Arrays.fill(target_state, base_words, target_state.length, 0L);
+
+		return target_state;
+	}
+
+	/**
+	 * Makes the marking built up in the context's scratch space the current
+	 * one, and fills the worklist with the propositions whose marking
+	 * changed.
+	 */
+	private void finish_marking(PropNetContext context)
+	{
+		long[] target_state = context.target_state;
+		long[] marked_state = context.marked_state;
+
+		TopologicalWorklist worklist = context.worklist;
+		worklist.clear();
+
+		/**
+		 * Add the propositions whose marking differs to the work list to
+		 * update them.  The propositions read their new values from the
+		 * marking.
+		 */
+		for (int word = 0; word < target_state.length; word++)
 		{
-			hbstate.check_cache(current_state, next_state);
-			//throw new RuntimeException("Didn't need to redo this");
+			long differing_bits = target_state[word] ^ marked_state[word];
+
+			while (differing_bits != 0)
+			{
+				int i = (word << 6) + Long.numberOfTrailingZeros(differing_bits);
+				differing_bits &= differing_bits - 1;
+				worklist.add(comps_by_index[i]);
+			}
 		}
+
+		/**
+		 * Ok, now make the target the current marking.
+		 */
+		context.target_state = marked_state;
+		context.marked_state = target_state;
 	}
 
-	public boolean use_cache_if_there(MachineState state)
+	/**
+	 * Records that the context now holds the values for the given state,
+	 * with no inputs marked.  Call after marking the state and forward
+	 * propagating it.
+	 */
+	public void cache_marked_bases(PropNetContext context, MachineState state)
 	{
-		return false;
+		context.propagated_state = state;
+	}
 
-//		if (!(state instanceof HeavensbeeMachineState))
-//		{
-//			throw new RuntimeException(
-//					                 "State is not a Heavensbee MachineState");
-//		}
-//
-//		HeavensbeeMachineState hbstate = (HeavensbeeMachineState)state;
-//
-//		boolean retval;
-//
-//		if (hbstate.is_cached())
-//		{
-//			retval = true;
-//			current_state = (BitSet) hbstate.get_current_cache().clone();
-//			next_state = (BitSet) hbstate.get_next_cache().clone();
-//		}
-//		else
-//		{
-//			retval = false;
-//		}
-//
-//		return retval;
+	/**
+	 * Returns true if the context already holds the values for the given
+	 * state, with no inputs marked, so that marking and propagating it again
+	 * can be skipped.
+	 *
+	 * This is a pointer comparison, which is enough for the usual run of
+	 * isTerminal, getLegalMoves and getGoal queries on one state object; an
+	 * equal state in a different object is re-marked, which finds no
+	 * differing bits and so does very little propagation anyway.
+	 */
+	public boolean use_cache_if_there(PropNetContext context, MachineState state)
+	{
+		return (state != null) && (state == context.propagated_state);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,147 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.BitSet;
+
+import org.ggp.base.util.statemachine.MachineState;
+
+/**
+ * The PropNetContext class holds everything that changes while a PropNet is
+ * being evaluated: the value of every component, the next state that the
+ * transitions have produced, which bases and inputs are marked, and the
+ * worklist used for propagation.
+ *
+ * The PropNet itself (its components, their inputs and outputs, and their
+ * indices) is never written to after it has been built.  That means any
+ * number of threads can evaluate the same PropNet at once, provided each of
+ * them uses its own context.  Contexts are made by
+ * {@link PropNet#createContext()}, and are not thread-safe themselves.
+ */
+public final class PropNetContext
+{
+	/** Value of every component, indexed by component index. */
+	public final BitSet current_state;
+
+	/**
+	 * Value of every base proposition in the next state, one bit per base
+	 * index, packed into words as in a HeavensbeeMachineState.
+	 */
+	final long[] next_state;
+
+	/** Zobrist hash of next_state, updated as its bits flip. */
+	long next_hash;
+
+	/** Zobrist key of each base proposition; shared with the PropNet. */
+	private final long[] zobrist_keys;
+
+	/**
+	 * The bases, inputs and init proposition that are currently marked true,
+	 * one bit per component index.  Propositions without inputs take their
+	 * value from here.
+	 */
+	long[] marked_state;
+
+	/** Scratch space for the marking being applied; swapped with marked. */
+	long[] target_state;
+
+	/** Components waiting to be updated. */
+	final TopologicalWorklist worklist;
+
+	/**
+	 * Number of true inputs of each component, by component index.  Kept up
+	 * to date as inputs change, so that And and Or gates can work out their
+	 * value without looking at their inputs.
+	 */
+	final int[] true_inputs;
+
+	/**
+	 * The state whose values this context holds, if it has been marked with
+	 * no inputs and fully propagated; otherwise null.
+	 */
+	MachineState propagated_state;
+
+	PropNetContext(TopologicalWorklist template, int num_components, long[] zobrist_keys)
+	{
+		current_state = new BitSet();
+		next_state = new long[(zobrist_keys.length + 63) >>> 6];
+		next_hash = 0;
+		this.zobrist_keys = zobrist_keys;
+		marked_state = new long[(num_components + 63) >>> 6];
+		target_state = new long[marked_state.length];
+		worklist = new TopologicalWorklist(template);
+		true_inputs = new int[num_components];
+	}
+
+	/**
+	 * Creates a copy of an existing context, which must not be in the middle
+	 * of a propagation.
+	 */
+	PropNetContext(PropNetContext other)
+	{
+		current_state = (BitSet) other.current_state.clone();
+		next_state = other.next_state.clone();
+		next_hash = other.next_hash;
+		zobrist_keys = other.zobrist_keys;
+		marked_state = other.marked_state.clone();
+		target_state = new long[other.target_state.length];
+		worklist = new TopologicalWorklist(other.worklist);
+		true_inputs = other.true_inputs.clone();
+	}
+
+	/**
+	 * Returns true if the given base, input or init proposition is marked.
+	 */
+	public boolean isMarked(int index)
+	{
+		return (marked_state[index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Returns true if the given base is true in the next state.
+	 */
+	public boolean isNextSet(int base_index)
+	{
+		return (next_state[base_index >>> 6] & (1L << base_index)) != 0;
+	}
+
+	/**
+	 * Flips the given base in the next state.  Called by transitions whose
+	 * input has changed.
+	 */
+	public void flipNext(int base_index)
+	{
+		next_state[base_index >>> 6] ^= (1L << base_index);
+		next_hash ^= zobrist_keys[base_index];
+	}
+
+	/**
+	 * Adds a component to the worklist of this context, and updates its count
+	 * of true inputs.  Called by components whose value has changed, for each
+	 * of their outputs.
+	 *
+	 * @param c
+	 *            The output to update.
+	 * @param input_value
+	 *            The new value of the input that changed.
+	 */
+	public void enqueue(Component c, boolean input_value)
+	{
+		if (input_value)
+		{
+			true_inputs[c.index]++;
+		}
+		else
+		{
+			true_inputs[c.index]--;
+		}
+
+		worklist.add(c);
+	}
+
+	/**
+	 * Returns how many inputs of a component are true.
+	 */
+	public int getTrueInputs(Component c)
+	{
+		return true_inputs[c.index];
+	}
+}
@@ -0,0 +1,127 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.List;
+
+/**
+ * The TopologicalWorklist holds the components waiting to be updated during
+ * forward propagation, and always hands back the waiting component with the
+ * lowest topological index.
+ *
+ * It is a bitmap over topological indices together with a table from index
+ * back to component.  Both are allocated once when the propnet is set up, so
+ * adding a component is O(1) and propagating through the worklist allocates
+ * nothing.
+ */
+public final class TopologicalWorklist
+{
+	/** Components, indexed by topological index. */
+	private final Component[] topo_comps;
+
+	/** One bit per topological index; set if that component is waiting. */
+	private final long[] pending;
+
+	/** No word below this one in pending has a bit set. */
+	private int lowest_word;
+
+	/** Number of components currently waiting. */
+	private int num_pending;
+
+	/**
+	 * Creates an empty worklist over the given topological ordering.
+	 *
+	 * @param topological_ordering
+	 *            Every component in the propnet; the component at position i
+	 *            must have a topological index of i.
+	 */
+	public TopologicalWorklist(List<Component> topological_ordering)
+	{
+		int size = topological_ordering.size();
+
+		topo_comps = topological_ordering.toArray(new Component[size]);
+		pending = new long[(size + 63) >>> 6];
+		lowest_word = pending.length;
+		num_pending = 0;
+	}
+
+	/**
+	 * Creates an empty worklist over the same topological ordering as an
+	 * existing one.  The component table is shared, so this is cheap.
+	 */
+	public TopologicalWorklist(TopologicalWorklist other)
+	{
+		topo_comps = other.topo_comps;
+		pending = new long[other.pending.length];
+		lowest_word = pending.length;
+		num_pending = 0;
+	}
+
+	/**
+	 * Adds a component to the worklist.  Adding a component which is already
+	 * waiting has no effect.
+	 */
+	public void add(Component c)
+	{
+		int topo = c.topological_index;
+		int word = topo >>> 6;
+		long mask = 1L << topo;
+
+		if ((pending[word] & mask) == 0)
+		{
+			pending[word] |= mask;
+			num_pending++;
+
+			if (word < lowest_word)
+			{
+				lowest_word = word;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the waiting component with the lowest topological
+	 * index.  Must not be called on an empty worklist.
+	 */
+	public Component poll()
+	{
+		while (pending[lowest_word] == 0)
+		{
+			lowest_word++;
+		}
+
+		long word = pending[lowest_word];
+		int topo = (lowest_word << 6) + Long.numberOfTrailingZeros(word);
+		pending[lowest_word] = word & (word - 1);
+
+		num_pending--;
+		if (num_pending == 0)
+		{
+			lowest_word = pending.length;
+		}
+
+		return topo_comps[topo];
+	}
+
+	public boolean isEmpty()
+	{
+		return num_pending == 0;
+	}
+
+	public int size()
+	{
+		return num_pending;
+	}
+
+	/**
+	 * Removes every waiting component.
+	 */
+	public void clear()
+	{
+		for (int ii = lowest_word; ii < pending.length; ii++)
+		{
+			pending[ii] = 0;
+		}
+
+		lowest_word = pending.length;
+		num_pending = 0;
+	}
+}
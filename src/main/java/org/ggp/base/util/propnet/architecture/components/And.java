@@ -1,10 +1,10 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 /**
  * The And class is designed to represent logical AND gates.
@@ -20,7 +20,14 @@ public final class And extends Component
 	@Override
 	public boolean getValue()
 	{
-		return curstate.get(index);
+		for ( Component component : getInputs() )
+		{
+			if ( !component.getValue() )
+			{
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -43,38 +50,26 @@ public final class And extends Component
 	}
 
 	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-		curstate = current_state;
-	}
-
-	@Override
-	public void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing)
+	public void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing)
 	{
 		if (tracing)
 		{
 			GamerLogger.emitToConsole("Checking " + this + ": ");
 		}
 
-		boolean have_a_negative_input = false;
-
-		for (Component c: getInputs())
-		{
-			if (!c.getValue())
-			{
-				have_a_negative_input = true;
-				break;
-			}
-		}
-
-		boolean and_value = !have_a_negative_input;
+		/**
+		 * The context counts the true inputs as they change, so there's no
+		 * need to look at them.
+		 */
+		boolean and_value = (context.getTrueInputs(this) == getInputs().size());
 
-		if (curstate.get(index) != and_value)
+		if (context.current_state.get(index) != and_value)
 		{
 			if (tracing)
 			{
 				GamerLogger.emitToConsole("Change in state to "+ and_value +"; ");
 			}
-			curstate.set(index, and_value);
+			context.current_state.set(index, and_value);
 			for (Component c: getOutputs())
 			{
 				if (checkset != null && checkset.contains(c))
@@ -87,7 +82,7 @@ public final class And extends Component
 					GamerLogger.emitToConsole("  Adding '" + c.toString() + "' to worklist");
 				}
 
-				worklist.add(c);
+				context.enqueue(c, and_value);
 			}
 		}
 		else if (tracing)
@@ -1,10 +1,10 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 /**
  * The Constant class is designed to represent nodes with fixed logical values.
@@ -37,6 +37,12 @@ public final class Constant extends Component
 		return this.value;
 	}
 
+	@Override
+	public boolean getValue(PropNetContext context)
+	{
+		return this.value;
+	}
+
 	/**
 	 * @see org.ggp.base.util.propnet.architecture.Component#toString()
 	 */
@@ -53,21 +59,16 @@ public final class Constant extends Component
 	}
 
 	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-		curstate = current_state;
-	}
-
-	@Override
-	public void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing)
+	public void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing)
 	{
-		if (this.value != curstate.get(index))
+		if (this.value != context.current_state.get(index))
 		{
 			if (tracing)
 			{
 				GamerLogger.emitToConsole("Marking and propping " + this + " to " + this.value + "\n");
 			}
 
-			curstate.set(index, this.value);
+			context.current_state.set(index, this.value);
 			for (Component c: getOutputs())
 			{
 				if (checkset != null && checkset.contains(c))
@@ -79,7 +80,7 @@ public final class Constant extends Component
 				{
 					GamerLogger.emitToConsole("Adding '" + c.toString() + "' to worklist \n");
 				}
-				worklist.add(c);
+				context.enqueue(c, this.value);
 			}
 		}
 		else if (tracing)
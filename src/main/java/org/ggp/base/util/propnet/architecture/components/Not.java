@@ -1,10 +1,10 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 /**
  * The Not class is designed to represent logical NOT gates.
@@ -20,7 +20,7 @@ public final class Not extends Component
 	@Override
 	public boolean getValue()
 	{
-		return curstate.get(index);
+		return !getSingleInput().getValue();
 	}
 
 	/**
@@ -39,27 +39,22 @@ public final class Not extends Component
 	}
 
 	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-		curstate = current_state;
-	}
-
-	@Override
-	public void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing)
+	public void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing)
 	{
 		if (tracing)
 		{
 			GamerLogger.emitToConsole("Checking " + this + ": ");
 		}
 
-		boolean not_input = !getSingleInput().getValue();
+		boolean not_input = !getSingleInput().getValue(context);
 
-		if (not_input != curstate.get(index))
+		if (not_input != context.current_state.get(index))
 		{
 			if (tracing)
 			{
 				GamerLogger.emitToConsole("change in state to " + not_input + "; ");
 			}
-			curstate.set(index, not_input);
+			context.current_state.set(index, not_input);
 			for (Component c: getOutputs())
 			{
 				if (checkset != null && checkset.contains(c))
@@ -71,7 +66,7 @@ public final class Not extends Component
 				{
 					GamerLogger.emitToConsole("Adding '" + c.toString() + "' to worklist \n");
 				}
-				worklist.add(c);
+				context.enqueue(c, not_input);
 			}
 		}
 		else if (tracing)
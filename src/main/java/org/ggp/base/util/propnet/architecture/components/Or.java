@@ -1,10 +1,10 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 /**
  * The Or class is designed to represent logical OR gates.
@@ -50,35 +50,25 @@ public final class Or extends Component
 	}
 
 	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-		curstate = current_state;
-	}
-
-	@Override
-	public void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing)
+	public void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing)
 	{
 		if (tracing)
 		{
 			GamerLogger.emitToConsole("Checking " + this + ": ");
 		}
-		boolean have_a_positive_input = false;
-
-		for (Component c: getInputs())
-		{
-			if (c.getValue())
-			{
-				have_a_positive_input = true;
-				break;
-			}
-		}
+		/**
+		 * The context counts the true inputs as they change, so there's no
+		 * need to look at them.
+		 */
+		boolean have_a_positive_input = (context.getTrueInputs(this) > 0);
 
-		if (have_a_positive_input != curstate.get(index))
+		if (have_a_positive_input != context.current_state.get(index))
 		{
 			if (tracing)
 			{
 				GamerLogger.emitToConsole("Change in state to "+ have_a_positive_input +"; ");
 			}
-			curstate.set(index, have_a_positive_input);
+			context.current_state.set(index, have_a_positive_input);
 			for (Component c: getOutputs())
 			{
 				if (checkset != null && checkset.contains(c))
@@ -90,7 +80,7 @@ public final class Or extends Component
 				{
 					GamerLogger.emitToConsole("Adding '" + c.toString() + "' to worklist;");
 				}
-				worklist.add(c);
+				context.enqueue(c, have_a_positive_input);
 			}
 		}
 		else if (tracing)
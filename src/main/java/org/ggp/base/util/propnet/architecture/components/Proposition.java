@@ -1,12 +1,12 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 /**
  * The Proposition class is designed to represent named latches.
@@ -20,7 +20,6 @@ public final class Proposition extends Component
 	private boolean value;
 
 	public int priority;
-	private BitSet nxstate;
 
 	/**
 	 * Creates a new Proposition with name <tt>name</tt>.
@@ -66,7 +65,7 @@ public final class Proposition extends Component
 	@Override
 	public boolean getValue()
 	{
-		return curstate.get(index);
+		return value;
 	}
 
 	/**
@@ -155,19 +154,13 @@ public final class Proposition extends Component
 		this.index = index_to_set;
 	}
 
-	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-		curstate = current_state;
-		nxstate = next_state;
-	}
-
-	public boolean getNextValue()
+	public boolean getNextValue(PropNetContext context)
 	{
-		return nxstate.get(index);
+		return context.isNextSet(index);
 	}
 
 	@Override
-	public void update_and_fprop(Set<Component> worklist,
+	public void update_and_fprop(PropNetContext context,
 			                     Set<Component> checkset,
 			                     boolean tracing)
 	{
@@ -176,7 +169,7 @@ public final class Proposition extends Component
 
 		if (isViewProposition())
 		{
-			target_value = getSingleInput().getValue();
+			target_value = getSingleInput().getValue(context);
 			if (tracing)
 			{
 				GamerLogger.emitToConsole("  ViewProp with 1 input; use that value " +
@@ -187,13 +180,13 @@ public final class Proposition extends Component
 		{
 			if (tracing)
 			{
-				GamerLogger.emitToConsole("  Not a ViewProp; use set value " +
-			                              this.value + "; ");
+				GamerLogger.emitToConsole("  Not a ViewProp; use marked value " +
+			                              context.isMarked(index) + "; ");
 			}
-			target_value = this.value;
+			target_value = context.isMarked(index);
 		}
 
-		if (curstate.get(index) != target_value)
+		if (context.current_state.get(index) != target_value)
 		{
 			if (tracing)
 			{
@@ -202,7 +195,7 @@ public final class Proposition extends Component
 			                               "; ");
 			}
 
-			curstate.set(index, target_value);
+			context.current_state.set(index, target_value);
 
 			for (Component c: getOutputs())
 			{
@@ -211,7 +204,7 @@ public final class Proposition extends Component
 					GamerLogger.emitToConsole("Adding '" + c.toString() +
 							                  "' to worklist; ");
 				}
-				worklist.add(c);
+				context.enqueue(c, target_value);
 			}
 		}
 		else if (tracing)
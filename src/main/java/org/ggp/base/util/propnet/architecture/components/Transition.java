@@ -1,10 +1,10 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 /**
  * The Transition class is designed to represent pass-through gates.
@@ -12,8 +12,6 @@ import org.ggp.base.util.propnet.architecture.Component;
 @SuppressWarnings("serial")
 public final class Transition extends Component
 {
-	private BitSet nxstate;
-
 	/**
 	 * Returns the value of the input to the transition.
 	 *
@@ -22,9 +20,13 @@ public final class Transition extends Component
 	@Override
 	public boolean getValue()
 	{
-		return nxstate.get(index);
+		return getSingleInput().getValue();
+	}
 
-		// return getSingleInput().getValue();
+	@Override
+	public boolean getValue(PropNetContext context)
+	{
+		return getSingleInput().getValue(context);
 	}
 
 	/**
@@ -46,20 +48,14 @@ public final class Transition extends Component
 		}
 	}
 
-	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-		curstate = current_state;
-		nxstate = next_state;
-	}
-
-	public void update_and_fprop(Set<Component> worklist, boolean tracing)
+	public void update_and_fprop(PropNetContext context, boolean tracing)
 	{
-		boolean in_value = getSingleInput().getValue();
+		boolean in_value = getSingleInput().getValue(context);
 
 		/* Get the index of our single output */
 		int out_index = getSingleOutput().index;
 
-		if (nxstate.get(out_index) != in_value)
+		if (context.isNextSet(out_index) != in_value)
 		{
 			if (tracing)
 			{
@@ -68,7 +64,7 @@ public final class Transition extends Component
 					+ out_index + " " + getSingleOutput() + "\n");
 			}
 
-			nxstate.set(out_index, in_value);
+			context.flipNext(out_index);
 		}
 		else if (tracing)
 		{
@@ -79,9 +75,9 @@ public final class Transition extends Component
 	}
 
 	@Override
-	public void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing)
+	public void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing)
 	{
-		this.update_and_fprop(worklist, tracing);
+		this.update_and_fprop(context, tracing);
 	}
 
 	@Override
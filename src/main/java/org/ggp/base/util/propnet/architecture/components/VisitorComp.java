@@ -1,9 +1,9 @@
 package org.ggp.base.util.propnet.architecture.components;
 
-import java.util.BitSet;
 import java.util.Set;
 
 import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 
 @SuppressWarnings("serial")
 public final class VisitorComp extends Component
@@ -31,11 +31,7 @@ public final class VisitorComp extends Component
 	}
 
 	@Override
-	public void augmentBitSets(BitSet current_state, BitSet next_state) {
-	}
-
-	@Override
-	public void update_and_fprop(Set<Component> worklist, Set<Component> checkset, boolean tracing)
+	public void update_and_fprop(PropNetContext context, Set<Component> checkset, boolean tracing)
 	{
 	}
 
@@ -0,0 +1,41 @@
+package org.ggp.base.util.propnet.compiler;
+
+/**
+ * The CompiledPropNet class is the superclass of the classes generated by
+ * {@link PropNetCompiler}.  A generated class evaluates every component of
+ * one PropNet, in order, in straight-line code.
+ *
+ * Values are held in long[] bitmaps indexed by component index, exactly as
+ * in a PropNetContext: bit i of word (i / 64) is the value of the component
+ * with index i.  Generated classes hold no state, so one instance can be
+ * shared between any number of threads, provided each has its own arrays.
+ */
+public abstract class CompiledPropNet
+{
+	/**
+	 * Zobrist key of each base, by base index, as given by
+	 * PropNet.getZobristKeys.  Set by the PropNetCompiler.
+	 */
+	protected long[] zobrist_keys;
+
+	void setZobristKeys(long[] keys)
+	{
+		zobrist_keys = keys;
+	}
+
+	/**
+	 * Evaluates the whole propnet.
+	 *
+	 * On entry, values must have the marked bases, inputs and init
+	 * proposition set, and every other bit clear; next_state must be clear.
+	 * On return, values holds the value of every component and next_state
+	 * holds the bases set by the transitions, by base index.
+	 *
+	 * @param values
+	 *            Values by component index.
+	 * @param next_state
+	 *            Next state by base index.
+	 * @return The Zobrist hash of next_state.
+	 */
+	public abstract long propagate(long[] values, long[] next_state);
+}
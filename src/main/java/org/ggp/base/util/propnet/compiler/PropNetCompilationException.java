@@ -0,0 +1,16 @@
+package org.ggp.base.util.propnet.compiler;
+
+@SuppressWarnings("serial")
+public final class PropNetCompilationException extends Exception
+{
+	public PropNetCompilationException(Throwable cause) {
+		super(cause);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Failed to compile propnet: " + super.toString();
+	}
+
+}
@@ -0,0 +1,316 @@
+package org.ggp.base.util.propnet.compiler;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+/**
+ * The PropNetCompiler turns a PropNet into bytecode, using javassist.
+ *
+ * The generated class is a {@link CompiledPropNet} whose propagate method
+ * evaluates every gate once, in topological order, with one if statement
+ * per component and no virtual calls.  It also works out the Zobrist hash
+ * of the next state as it sets each base.  The code is split over many small
+ * methods, as the JIT compiler ignores huge ones.
+ *
+ * This is meant to be run once, straight after the PropNet has been built
+ * by OptimizingPropNetFactory.create; the PropNet must not be changed
+ * afterwards.
+ */
+public final class PropNetCompiler
+{
+	/**
+	 * Rough limit on the number of terms (component reads) in one generated
+	 * method.  Each term is about 15 bytes of bytecode, so this keeps each
+	 * method under the 8000 bytes above which HotSpot won't JIT compile it.
+	 */
+	private static final int MAX_TERMS_PER_METHOD = 400;
+
+	/**
+	 * Longest chain of && or || in one expression.  The javassist compiler
+	 * recurses on each operand, so very wide gates are broken up.
+	 */
+	private static final int MAX_TERMS_PER_EXPRESSION = 32;
+
+	/** Makes the generated class names unique. */
+	private static final AtomicInteger class_counter = new AtomicInteger();
+
+	private PropNetCompiler()
+	{
+	}
+
+	/**
+	 * Compiles a propnet.
+	 *
+	 * @param propNet
+	 *            A fully built propnet.
+	 * @return A new instance of the generated class.
+	 * @throws PropNetCompilationException
+	 *            If javassist fails to generate or load the class.
+	 */
+	public static CompiledPropNet compile(PropNet propNet) throws PropNetCompilationException
+	{
+		long start = System.currentTimeMillis();
+
+		List<Component> order = propNet.getEvaluationOrder();
+		Set<Component> marked = getMarkedComponents(propNet);
+
+		/**
+		 * Write the body of each chunk method.
+		 */
+		List<String> chunks = new ArrayList<String>();
+		StringBuilder body = new StringBuilder();
+		int terms = 0;
+
+		for (Component c : order)
+		{
+			if (marked.contains(c))
+			{
+				continue;
+			}
+
+			int before = body.length();
+			emit_component(c, body);
+
+			if (body.length() != before)
+			{
+				terms += c.getInputs().size() + 1;
+
+				if (terms >= MAX_TERMS_PER_METHOD)
+				{
+					chunks.add(body.toString());
+					body.setLength(0);
+					terms = 0;
+				}
+			}
+		}
+		chunks.add(body.toString());
+
+		/**
+		 * Build and load the class.
+		 */
+		String class_name = CompiledPropNet.class.getName() + "$Generated" + class_counter.incrementAndGet();
+
+		try
+		{
+			ClassPool pool = new ClassPool(true);
+			pool.insertClassPath(new ClassClassPath(CompiledPropNet.class));
+
+			CtClass cc = pool.makeClass(class_name, pool.get(CompiledPropNet.class.getName()));
+			cc.addConstructor(CtNewConstructor.defaultConstructor(cc));
+
+			StringBuilder propagate = new StringBuilder();
+			propagate.append("public long propagate(long[] v, long[] n) {\n");
+			propagate.append("long h = 0L;\n");
+
+			for (int ii = 0; ii < chunks.size(); ii++)
+			{
+				cc.addMethod(CtNewMethod.make("private long propagate" + ii + "(long[] v, long[] n) {\n"
+				                              + "boolean ok;\nlong h = 0L;\n" + chunks.get(ii)
+				                              + "return h;\n}", cc));
+				propagate.append("h ^= propagate" + ii + "(v, n);\n");
+			}
+
+			propagate.append("return h;\n}");
+			cc.addMethod(CtNewMethod.make(propagate.toString(), cc));
+
+			byte[] bytecode = cc.toBytecode();
+			cc.detach();
+
+			GeneratedClassLoader loader = new GeneratedClassLoader(CompiledPropNet.class.getClassLoader());
+			Class<?> generated = loader.define(class_name, bytecode);
+			CompiledPropNet compiled = (CompiledPropNet) generated.getDeclaredConstructor().newInstance();
+			compiled.setZobristKeys(propNet.getZobristKeys());
+
+			GamerLogger.log("debug.log", "Compiled propnet with " + order.size() + " components into "
+			                + chunks.size() + " methods, " + bytecode.length + " bytes, in "
+			                + (System.currentTimeMillis() - start) + "ms\n");
+
+			return compiled;
+		}
+		catch (NotFoundException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+		catch (CannotCompileException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+		catch (IOException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+		catch (InstantiationException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw new PropNetCompilationException(e);
+		}
+	}
+
+	/**
+	 * Returns the components whose values are set by the caller rather than
+	 * worked out from inputs: the bases, the inputs and the init proposition.
+	 */
+	private static Set<Component> getMarkedComponents(PropNet propNet)
+	{
+		Set<Component> marked = new HashSet<Component>();
+		marked.addAll(propNet.getBasePropositions().values());
+		marked.addAll(propNet.getInputPropositions().values());
+
+		if (propNet.getInitProposition() != null)
+		{
+			marked.add(propNet.getInitProposition());
+		}
+
+		return marked;
+	}
+
+	/**
+	 * Appends the code that evaluates one component.  Components which are
+	 * always false need no code, as the caller clears every value first.
+	 */
+	private static void emit_component(Component c, StringBuilder sb)
+	{
+		List<Component> inputs = c.getInputs();
+
+		if (c instanceof Transition)
+		{
+			for (Component output : c.getOutputs())
+			{
+				sb.append("if (").append(read(c.getSingleInput())).append(") { ");
+				sb.append(write("n", output.index));
+				sb.append(" h ^= zobrist_keys[").append(output.index).append("]; }\n");
+			}
+		}
+		else if (c instanceof Constant)
+		{
+			if (c.getValue())
+			{
+				sb.append(write("v", c.index)).append("\n");
+			}
+		}
+		else if (c instanceof Not)
+		{
+			sb.append("if (!").append(read(c.getSingleInput())).append(") ");
+			sb.append(write("v", c.index)).append("\n");
+		}
+		else if (c instanceof Proposition)
+		{
+			/**
+			 * Other than the marked ones, which are skipped, a proposition
+			 * with no input is never true.
+			 */
+			if (inputs.size() == 1)
+			{
+				sb.append("if (").append(read(c.getSingleInput())).append(") ");
+				sb.append(write("v", c.index)).append("\n");
+			}
+		}
+		else if (c instanceof And || c instanceof Or)
+		{
+			boolean is_and = (c instanceof And);
+
+			if (inputs.isEmpty())
+			{
+				if (is_and)
+				{
+					sb.append(write("v", c.index)).append("\n");
+				}
+				return;
+			}
+
+			/**
+			 * ok = t0 && ... && t31;
+			 * if (ok) ok = t32 && ...;
+			 * if (ok) v[..] |= ...;
+			 */
+			String op = is_and ? " && " : " || ";
+			String keep_going = is_and ? "if (ok) " : "if (!ok) ";
+
+			for (int ii = 0; ii < inputs.size(); ii++)
+			{
+				if (ii % MAX_TERMS_PER_EXPRESSION == 0)
+				{
+					if (ii != 0)
+					{
+						sb.append(";\n").append(keep_going);
+					}
+					sb.append("ok = ");
+				}
+				else
+				{
+					sb.append(op);
+				}
+				sb.append(read(inputs.get(ii)));
+			}
+			sb.append(";\n");
+			sb.append("if (ok) ").append(write("v", c.index)).append("\n");
+		}
+	}
+
+	/**
+	 * Returns an expression for the value of a component.
+	 */
+	private static String read(Component c)
+	{
+		return "((v[" + (c.index >>> 6) + "] & (1L << " + (c.index & 63) + ")) != 0L)";
+	}
+
+	/**
+	 * Returns a statement which sets a bit in an array.
+	 */
+	private static String write(String array, int index)
+	{
+		return array + "[" + (index >>> 6) + "] |= (1L << " + (index & 63) + ");";
+	}
+
+	/**
+	 * Loads the generated classes.  Each compilation gets its own loader, so
+	 * a class can be unloaded once its propnet is no longer used.
+	 */
+	private static final class GeneratedClassLoader extends ClassLoader
+	{
+		GeneratedClassLoader(ClassLoader parent)
+		{
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytecode)
+		{
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+	}
+}
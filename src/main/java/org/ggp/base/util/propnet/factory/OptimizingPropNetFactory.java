@@ -12,6 +12,11 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.ggp.base.util.Pair;
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
@@ -46,6 +51,7 @@ import org.ggp.base.util.gdl.transforms.DeORer;
 import org.ggp.base.util.gdl.transforms.GdlCleaner;
 import org.ggp.base.util.gdl.transforms.Relationizer;
 import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.And;
@@ -103,6 +109,12 @@ public class OptimizingPropNetFactory {
     static final private GdlConstant INPUT = GdlPool.getConstant("input");
 	static final private GdlProposition TEMP = GdlPool.getProposition(GdlPool.getConstant("TEMP"));
 
+	/**
+	 * Pool for adding sentence forms and rules in parallel.  Its threads are
+	 * daemons, so it never holds up the player shutting down.
+	 */
+	static final private ForkJoinPool BUILD_POOL = new ForkJoinPool();
+
 	/**
 	 * Creates a PropNet for the game with the given description.
 	 *
@@ -117,6 +129,7 @@ public class OptimizingPropNetFactory {
 		System.out.println("Building propnet...");
 
 		long startTime = System.currentTimeMillis();
+		PhaseTimer timer = new PhaseTimer();
 
 		description = GdlCleaner.run(description);
 		description = DeORer.run(description);
@@ -124,7 +137,7 @@ public class OptimizingPropNetFactory {
 		description = Relationizer.run(description);
 
 		description = CondensationIsolator.run(description);
-
+		timer.endPhase("transforms");
 
 		if(verbose)
 			for(Gdl gdl : description)
@@ -137,6 +150,7 @@ public class OptimizingPropNetFactory {
 		//See chinesecheckers4's "count" relation for an example of why this
 		//could be useful.
 		model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+		timer.endPhase("model");
 
 		if(verbose)
 			System.out.println("Setting constants...");
@@ -144,6 +158,7 @@ public class OptimizingPropNetFactory {
 		ConstantChecker constantChecker = ConstantCheckerFactory.createWithForwardChaining(model);
 		if(verbose)
 			System.out.println("Done setting constants");
+		timer.endPhase("constants");
 
 		Set<String> sentenceFormNames = SentenceForms.getNames(model.getSentenceForms());
 		boolean usingBase = sentenceFormNames.contains("base");
@@ -163,60 +178,20 @@ public class OptimizingPropNetFactory {
 		List<SentenceForm> topologicalOrdering = getTopologicalOrdering(model.getSentenceForms(), dependencyGraph, usingBase, usingInput);
 		if(verbose)
 			System.out.println("done");
+		List<List<SentenceForm>> strata = getStrata(topologicalOrdering, dependencyGraph, usingBase, usingInput);
+		timer.endPhase("ordering");
 
 		List<Role> roles = Role.computeRoles(description);
-		Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
-		Map<GdlSentence, Component> negations = new HashMap<GdlSentence, Component>();
+		//The forms in each stratum are added at the same time, so these are
+		//shared between threads
+		Map<GdlSentence, Component> components = new ConcurrentHashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> negations = new ConcurrentHashMap<GdlSentence, Component>();
 		Constant trueComponent = new Constant(true);
 		Constant falseComponent = new Constant(false);
 		Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
 		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-		for(SentenceForm form : topologicalOrdering) {
-			ConcurrencyUtils.checkForInterruption();
-
-			if(verbose) {
-				System.out.print("Adding sentence form " + form);
-				System.out.flush();
-			}
-			if(constantChecker.isConstantForm(form)) {
-				if(verbose)
-					System.out.println(" (constant)");
-				//Only add it if it's important
-				if(form.getName().equals(LEGAL)
-						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
-					//Add it
-					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-						Proposition trueProp = new Proposition(trueSentence);
-						trueProp.addInput(trueComponent);
-						trueComponent.addOutput(trueProp);
-						components.put(trueSentence, trueComponent);
-					}
-				}
-
-				if(verbose)
-					System.out.println("Checking whether " + form + " is a functional constant...");
-				addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
-
-				continue;
-			}
-			if(verbose)
-				System.out.println();
-			//TODO: Adjust "recursive forms" appropriately
-			//Add a temporary sentence form thingy? ...
-			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-			//TODO: Pass these over groups of multiple sentence forms
-			if(verbose && !temporaryComponents.isEmpty())
-				System.out.println("Processing temporary components...");
-			processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-			addFormToCompletedValues(form, completedSentenceFormValues, components);
-			//if(verbose)
-				//TODO: Add this, but with the correct total number of components (not just Propositions)
-				//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
-		}
+		addSentenceForms(strata, model, dependencyGraph, constantChecker, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, completedSentenceFormValues, verbose);
+		timer.endPhase("forms (" + strata.size() + " strata)");
 		//Connect "next" to "true"
 		if(verbose)
 			System.out.println("Adding transitions...");
@@ -227,6 +202,7 @@ public class OptimizingPropNetFactory {
 		setUpInit(components, trueComponent, falseComponent);
 		//Now we can safely...
 		removeUselessBasePropositions(components, negations, trueComponent, falseComponent);
+		timer.endPhase("transitions");
 		if(verbose)
 			System.out.println("Creating component set...");
 		Set<Component> componentSet = new HashSet<Component>(components.values());
@@ -240,7 +216,10 @@ public class OptimizingPropNetFactory {
 		//Make it look the same as the PropNetFactory results, until we decide
 		//how we want it to look
 		normalizePropositions(componentSet);
+		timer.endPhase("component set");
 		PropNet propnet = new PropNet(roles, componentSet);
+		timer.endPhase("propnet");
+		GamerLogger.log("debug.log", "Built propnet in " + (System.currentTimeMillis() - startTime) + "ms: " + timer + "\n");
 		if(verbose) {
 			System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
 			System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
@@ -250,6 +229,102 @@ public class OptimizingPropNetFactory {
 	}
 
 
+	/**
+	 * Adds the sentence forms, a stratum at a time.  The forms in a stratum
+	 * don't depend on each other, so are added in parallel, as are the rules
+	 * of each form that doesn't depend on itself.
+	 */
+	private static void addSentenceForms(List<List<SentenceForm>> strata,
+			final SentenceDomainModel model,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph,
+			final ConstantChecker constantChecker,
+			final Map<GdlSentence, Component> components,
+			final Map<GdlSentence, Component> negations,
+			final Constant trueComponent, final Constant falseComponent,
+			final boolean usingBase, final boolean usingInput,
+			final Map<SentenceForm, FunctionInfo> functionInfoMap,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			boolean verbose) throws InterruptedException {
+		for(List<SentenceForm> stratum : strata) {
+			ConcurrencyUtils.checkForInterruption();
+
+			//Constant forms are quick, and change the shared function info, so
+			//do them first
+			List<SentenceForm> formsToAdd = new ArrayList<SentenceForm>();
+			for(SentenceForm form : stratum) {
+				if(!constantChecker.isConstantForm(form)) {
+					formsToAdd.add(form);
+					continue;
+				}
+				if(verbose)
+					System.out.println("Adding sentence form " + form + " (constant)");
+				//Only add it if it's important
+				if(form.getName().equals(LEGAL)
+						|| form.getName().equals(GOAL)
+						|| form.getName().equals(INIT)) {
+					//Add it
+					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+						Proposition trueProp = new Proposition(trueSentence);
+						trueProp.addInput(trueComponent);
+						trueComponent.addOutput(trueProp);
+						components.put(trueSentence, trueComponent);
+					}
+				}
+
+				if(verbose)
+					System.out.println("Checking whether " + form + " is a functional constant...");
+				addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+			}
+
+			//No form in a stratum depends on another, so they can all be
+			//added at once
+			List<Callable<TemporaryComponents>> formTasks = new ArrayList<Callable<TemporaryComponents>>();
+			for(final SentenceForm form : formsToAdd) {
+				if(verbose)
+					System.out.println("Adding sentence form " + form);
+				final boolean recursive = dependencyGraph.get(form).contains(form);
+				formTasks.add(new Callable<TemporaryComponents>() {
+					@Override
+					public TemporaryComponents call() throws InterruptedException {
+						//TODO: Adjust "recursive forms" appropriately
+						//Add a temporary sentence form thingy? ...
+						TemporaryComponents temporaries = new TemporaryComponents();
+						addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaries.components, temporaries.negations, functionInfoMap, constantChecker, completedSentenceFormValues, !recursive);
+						return temporaries;
+					}
+				});
+			}
+			List<TemporaryComponents> temporaries = runInParallel(formTasks);
+
+			//Putting the temporary components back touches the whole propnet,
+			//so is done one form at a time
+			for(int i = 0; i < formsToAdd.size(); i++) {
+				//TODO: Pass these over groups of multiple sentence forms
+				if(verbose && !temporaries.get(i).components.isEmpty())
+					System.out.println("Processing temporary components for " + formsToAdd.get(i) + "...");
+				processTemporaryComponents(temporaries.get(i).components, temporaries.get(i).negations, components, negations, trueComponent, falseComponent);
+			}
+
+			List<Callable<List<GdlSentence>>> valueTasks = new ArrayList<Callable<List<GdlSentence>>>();
+			for(final SentenceForm form : formsToAdd) {
+				valueTasks.add(new Callable<List<GdlSentence>>() {
+					@Override
+					public List<GdlSentence> call() throws InterruptedException {
+						return getFormValues(form, components);
+					}
+				});
+			}
+			List<List<GdlSentence>> values = runInParallel(valueTasks);
+			for(int i = 0; i < formsToAdd.size(); i++) {
+				completedSentenceFormValues.put(formsToAdd.get(i), values.get(i));
+				//if(verbose)
+					//TODO: Add this, but with the correct total number of components (not just Propositions)
+					//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+			}
+		}
+	}
+
 	private static void removeUselessBasePropositions(
 			Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations, Constant trueComponent,
 			Constant falseComponent) throws InterruptedException {
@@ -304,13 +379,11 @@ public class OptimizingPropNetFactory {
 	}
 
 
-	private static void addFormToCompletedValues(
+	private static List<GdlSentence> getFormValues(
 			SentenceForm form,
-			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
 			Map<GdlSentence, Component> components) throws InterruptedException {
 		//Kind of inefficient. Could do better by collecting these as we go,
 		//then adding them back into the CSFV map once the sentence forms are complete.
-		//completedSentenceFormValues.put(form, new ArrayList<GdlSentence>());
 		List<GdlSentence> sentences = new ArrayList<GdlSentence>();
 		for(GdlSentence sentence : components.keySet()) {
 			ConcurrencyUtils.checkForInterruption();
@@ -319,7 +392,7 @@ public class OptimizingPropNetFactory {
 				sentences.add(sentence);
 			}
 		}
-		completedSentenceFormValues.put(form, sentences);
+		return sentences;
 	}
 
 
@@ -828,15 +901,175 @@ public class OptimizingPropNetFactory {
 		return ordering;
 	}
 
-	private static void addSentenceForm(SentenceForm form, SentenceDomainModel model,
-			Map<GdlSentence, Component> components,
-			Map<GdlSentence, Component> negations,
-			Constant trueComponent, Constant falseComponent,
+	/**
+	 * Groups the forms in a topological ordering into strata: each form is in
+	 * the stratum after the last of the forms it depends on (other than
+	 * itself), so no two forms in a stratum depend on each other.  As in
+	 * getTopologicalOrdering, true/next/init forms count as depending on their
+	 * base form, and does/legal forms on their input form.
+	 */
+	private static List<List<SentenceForm>> getStrata(
+			List<SentenceForm> ordering,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph, boolean usingBase, boolean usingInput) {
+		Map<SentenceForm, Integer> strataByForm = new HashMap<SentenceForm, Integer>();
+		List<List<SentenceForm>> strata = new ArrayList<List<SentenceForm>>();
+		for(SentenceForm form : ordering) {
+			List<SentenceForm> dependencies = new ArrayList<SentenceForm>(dependencyGraph.get(form));
+			if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT))) {
+				dependencies.add(form.withName(BASE));
+			}
+			if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL))) {
+				dependencies.add(form.withName(INPUT));
+			}
+
+			int stratum = 0;
+			for(SentenceForm dependency : dependencies) {
+				Integer dependencyStratum = strataByForm.get(dependency);
+				if(!dependency.equals(form) && dependencyStratum != null) {
+					stratum = Math.max(stratum, dependencyStratum + 1);
+				}
+			}
+			strataByForm.put(form, stratum);
+
+			while(strata.size() <= stratum) {
+				strata.add(new ArrayList<SentenceForm>());
+			}
+			strata.get(stratum).add(form);
+		}
+		return strata;
+	}
+
+	/**
+	 * Runs tasks on the build pool and returns their results, in the same
+	 * order.  A single task is just run on this thread.  If this thread is
+	 * interrupted, the tasks still running are interrupted too.
+	 */
+	private static <T> List<T> runInParallel(List<Callable<T>> tasks) throws InterruptedException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		if(tasks.size() == 1) {
+			try {
+				results.add(tasks.get(0).call());
+			} catch(InterruptedException e) {
+				throw e;
+			} catch(RuntimeException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+			return results;
+		}
+
+		List<BuildTask<T>> buildTasks = new ArrayList<BuildTask<T>>(tasks.size());
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for(Callable<T> task : tasks) {
+			BuildTask<T> buildTask = new BuildTask<T>(task);
+			buildTasks.add(buildTask);
+			futures.add(BUILD_POOL.submit(buildTask));
+		}
+
+		try {
+			for(Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch(InterruptedException e) {
+			cancelAll(buildTasks);
+			throw e;
+		} catch(ExecutionException e) {
+			cancelAll(buildTasks);
+			Throwable cause = e.getCause();
+			if(cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+		return results;
+	}
+
+	private static <T> void cancelAll(List<BuildTask<T>> buildTasks) {
+		for(BuildTask<T> buildTask : buildTasks) {
+			buildTask.cancel();
+		}
+	}
+
+	/**
+	 * A task run on the build pool, which can be interrupted while it runs.
+	 * The pool's threads aren't interrupted when the thread waiting for the
+	 * results is, so that has to be passed on by hand.
+	 */
+	private static final class BuildTask<T> implements Callable<T> {
+		private final Callable<T> task;
+		private volatile boolean cancelled;
+		private volatile Thread runner;
+
+		BuildTask(Callable<T> task) {
+			this.task = task;
+		}
+
+		@Override
+		public T call() throws Exception {
+			runner = Thread.currentThread();
+			try {
+				if(cancelled)
+					throw new InterruptedException();
+				return task.call();
+			} finally {
+				runner = null;
+				//Don't leave the pool's thread interrupted
+				Thread.interrupted();
+			}
+		}
+
+		void cancel() {
+			cancelled = true;
+			Thread thread = runner;
+			if(thread != null)
+				thread.interrupt();
+		}
+	}
+
+	/**
+	 * The temporary components and negations made while adding one
+	 * sentence form, to be put back into the propnet afterwards.
+	 */
+	private static final class TemporaryComponents {
+		final Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
+		final Map<GdlSentence, Component> negations = new HashMap<GdlSentence, Component>();
+	}
+
+	/**
+	 * Times the phases of building a propnet, for the log.
+	 */
+	private static final class PhaseTimer {
+		private final StringBuilder phases = new StringBuilder();
+		private long phaseStart = System.currentTimeMillis();
+
+		void endPhase(String name) {
+			long now = System.currentTimeMillis();
+			if(phases.length() > 0)
+				phases.append(", ");
+			phases.append(name).append(' ').append(now - phaseStart).append("ms");
+			phaseStart = now;
+		}
+
+		@Override
+		public String toString() {
+			return phases.toString();
+		}
+	}
+
+	private static void addSentenceForm(SentenceForm form, final SentenceDomainModel model,
+			final Map<GdlSentence, Component> components,
+			final Map<GdlSentence, Component> negations,
+			final Constant trueComponent, final Constant falseComponent,
 			boolean usingBase, boolean usingInput,
-			Set<SentenceForm> recursionForms,
-			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
-			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
-			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+			final Set<SentenceForm> recursionForms,
+			final Map<GdlSentence, Component> temporaryComponents, final Map<GdlSentence, Component> temporaryNegations,
+			final Map<SentenceForm, FunctionInfo> functionInfoMap, final ConstantChecker constantChecker,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			boolean splitRules) throws InterruptedException {
 		//This is the meat of it (along with the entire Assignments class).
 		//We need to enumerate the possible propositions in the sentence form...
 		//We also need to hook up the sentence form to the inputs that can make it true.
@@ -887,168 +1120,31 @@ public class OptimizingPropNetFactory {
 		}
 
 		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
-		for(GdlRule rule : rules) {
-			Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
-
-			//Calculate vars in live (non-constant, non-distinct) conjuncts
-			Set<GdlVariable> varsInLiveConjuncts = getVarsInLiveConjuncts(rule, constantChecker.getConstantSentenceForms());
-			varsInLiveConjuncts.addAll(GdlUtils.getVariables(rule.getHead()));
-			Set<GdlVariable> varsInRule = new HashSet<GdlVariable>(GdlUtils.getVariables(rule));
-			boolean preventDuplicatesFromConstants =
-				(varsInRule.size() > varsInLiveConjuncts.size());
-
-			//Do we just pass those to the Assignments class in that case?
-			for(AssignmentIterator asnItr = assignments.getIterator(); asnItr.hasNext(); ) {
-				Map<GdlVariable, GdlConstant> assignment = asnItr.next();
-				if(assignment == null) continue; //Not sure if this will ever happen
-
-				ConcurrencyUtils.checkForInterruption();
-
-				GdlSentence sentence = CommonTransforms.replaceVariables(rule.getHead(), assignment);
-
-				//Now we go through the conjuncts as before, but we wait to hook them up.
-				List<Component> componentsToConnect = new ArrayList<Component>(rule.arity());
-				for(GdlLiteral literal : rule.getBody()) {
-					if(literal instanceof GdlSentence) {
-						//Get the sentence post-substitutions
-						GdlSentence transformed = CommonTransforms.replaceVariables((GdlSentence) literal, assignment);
-
-						//Check for constant-ness
-						SentenceForm conjunctForm = model.getSentenceForm(transformed);
-						if(constantChecker.isConstantForm(conjunctForm)) {
-							if(!constantChecker.isTrueConstant(transformed)) {
-								List<GdlVariable> varsToChange = getVarsInConjunct(literal);
-								asnItr.changeOneInNext(varsToChange, assignment);
-								componentsToConnect.add(null);
-							}
-							continue;
-						}
-
-						Component conj = components.get(transformed);
-						//If conj is null and this is a sentence form we're still handling,
-						//hook up to a temporary sentence form
-						if(conj == null) {
-							conj = temporaryComponents.get(transformed);
-						}
-						if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
-							//Set up a temporary component
-							Proposition tempProp = new Proposition(transformed);
-							temporaryComponents.put(transformed, tempProp);
-							conj = tempProp;
-						}
-						//Let's say this is false; we want to backtrack and change the right variable
-						if(conj == null || isThisConstant(conj, falseComponent)) {
-							List<GdlVariable> varsInConjunct = getVarsInConjunct(literal);
-							asnItr.changeOneInNext(varsInConjunct, assignment);
-							//These last steps just speed up the process
-							//telling the factory to ignore this rule
-							componentsToConnect.add(null);
-							continue; //look at all the other restrictions we'll face
-						}
-
-						componentsToConnect.add(conj);
-					} else if(literal instanceof GdlNot) {
-						//Add a "not" if necessary
-						//Look up the negation
-						GdlSentence internal = (GdlSentence) ((GdlNot) literal).getBody();
-						GdlSentence transformed = CommonTransforms.replaceVariables(internal, assignment);
-
-						//Add constant-checking here...
-						SentenceForm conjunctForm = model.getSentenceForm(transformed);
-						if(constantChecker.isConstantForm(conjunctForm)) {
-							if(constantChecker.isTrueConstant(transformed)) {
-								List<GdlVariable> varsToChange = getVarsInConjunct(literal);
-								asnItr.changeOneInNext(varsToChange, assignment);
-								componentsToConnect.add(null);
-							}
-							continue;
-						}
-
-						Component conj = negations.get(transformed);
-						if(isThisConstant(conj, falseComponent)) {
-							//We need to change one of the variables inside
-							List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
-							asnItr.changeOneInNext(varsInConjunct, assignment);
-							//ignore this rule
-							componentsToConnect.add(null);
-							continue;
-						}
-						if(conj == null) {
-							conj = temporaryNegations.get(transformed);
-						}
-						//Check for the recursive case:
-						if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
-							Component positive = components.get(transformed);
-							if(positive == null) {
-								positive = temporaryComponents.get(transformed);
-							}
-							if(positive == null) {
-								//Make the temporary proposition
-								Proposition tempProp = new Proposition(transformed);
-								temporaryComponents.put(transformed, tempProp);
-								positive = tempProp;
-							}
-							//Positive is now set and in temporaryComponents
-							//Evidently, wasn't in temporaryNegations
-							//So we add the "not" gate and set it in temporaryNegations
-							Not not = new Not();
-							//Add positive as input
-							not.addInput(positive);
-							positive.addOutput(not);
-							temporaryNegations.put(transformed, not);
-							conj = not;
-						}
-						if(conj == null) {
-							Component positive = components.get(transformed);
-							//No, because then that will be attached to "negations", which could be bad
-
-							if(positive == null) {
-								//So the positive can't possibly be true (unless we have recurstion)
-								//and so this would be positive always
-								//We want to just skip this conjunct, so we continue to the next
-
-								continue; //to the next conjunct
-							}
-
-							//Check if we're sharing a component with another sentence with a negation
-							//(i.e. look for "nots" in our outputs and use those instead)
-							Not existingNotOutput = getNotOutput(positive);
-							if(existingNotOutput != null) {
-								componentsToConnect.add(existingNotOutput);
-								negations.put(transformed, existingNotOutput);
-								continue; //to the next conjunct
-							}
-
-							Not not = new Not();
-							not.addInput(positive);
-							positive.addOutput(not);
-							negations.put(transformed, not);
-							conj = not;
-						}
-						componentsToConnect.add(conj);
-					} else if(literal instanceof GdlDistinct) {
-						//Already handled; ignore
-					} else {
-						throw new RuntimeException("Unwanted GdlLiteral type");
-					}
-				}
-				if(!componentsToConnect.contains(null)) {
-					//Connect all the components
-					Proposition andComponent = new Proposition(TEMP);
-
-					andify(componentsToConnect, andComponent, trueComponent);
-					if(!isThisConstant(andComponent, falseComponent)) {
-						if(!inputsToOr.containsKey(sentence))
-							inputsToOr.put(sentence, new HashSet<Component>());
-						inputsToOr.get(sentence).add(andComponent);
-						//We'll want to make sure at least one of the non-constant
-						//components is changing
-						if(preventDuplicatesFromConstants) {
-							asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
-						}
+		if(splitRules && rules.size() > 1) {
+			//The rules only share the components of earlier forms, so can be
+			//worked through at the same time
+			List<Callable<Map<GdlSentence, Set<Component>>>> ruleTasks = new ArrayList<Callable<Map<GdlSentence, Set<Component>>>>();
+			for(final GdlRule rule : rules) {
+				ruleTasks.add(new Callable<Map<GdlSentence, Set<Component>>>() {
+					@Override
+					public Map<GdlSentence, Set<Component>> call() throws InterruptedException {
+						Map<GdlSentence, Set<Component>> ruleInputsToOr = new HashMap<GdlSentence, Set<Component>>();
+						addRule(rule, model, components, negations, trueComponent, falseComponent, recursionForms, temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues, ruleInputsToOr);
+						return ruleInputsToOr;
 					}
+				});
+			}
+			for(Map<GdlSentence, Set<Component>> ruleInputsToOr : runInParallel(ruleTasks)) {
+				for(Entry<GdlSentence, Set<Component>> entry : ruleInputsToOr.entrySet()) {
+					if(!inputsToOr.containsKey(entry.getKey()))
+						inputsToOr.put(entry.getKey(), new HashSet<Component>());
+					inputsToOr.get(entry.getKey()).addAll(entry.getValue());
 				}
 			}
+		} else {
+			for(GdlRule rule : rules) {
+				addRule(rule, model, components, negations, trueComponent, falseComponent, recursionForms, temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues, inputsToOr);
+			}
 		}
 
 		//At the end, we hook up the conjuncts
@@ -1089,6 +1185,182 @@ public class OptimizingPropNetFactory {
 	}
 
 
+	/**
+	 * Adds the and gates for every assignment of a rule to inputsToOr, keyed
+	 * by the sentence each makes true.
+	 */
+	private static void addRule(GdlRule rule, SentenceDomainModel model,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent,
+			Set<SentenceForm> recursionForms,
+			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
+			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			Map<GdlSentence, Set<Component>> inputsToOr) throws InterruptedException {
+		Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
+
+		//Calculate vars in live (non-constant, non-distinct) conjuncts
+		Set<GdlVariable> varsInLiveConjuncts = getVarsInLiveConjuncts(rule, constantChecker.getConstantSentenceForms());
+		varsInLiveConjuncts.addAll(GdlUtils.getVariables(rule.getHead()));
+		Set<GdlVariable> varsInRule = new HashSet<GdlVariable>(GdlUtils.getVariables(rule));
+		boolean preventDuplicatesFromConstants =
+			(varsInRule.size() > varsInLiveConjuncts.size());
+
+		//Do we just pass those to the Assignments class in that case?
+		for(AssignmentIterator asnItr = assignments.getIterator(); asnItr.hasNext(); ) {
+			Map<GdlVariable, GdlConstant> assignment = asnItr.next();
+			if(assignment == null) continue; //Not sure if this will ever happen
+
+			ConcurrencyUtils.checkForInterruption();
+
+			GdlSentence sentence = CommonTransforms.replaceVariables(rule.getHead(), assignment);
+
+			//Now we go through the conjuncts as before, but we wait to hook them up.
+			List<Component> componentsToConnect = new ArrayList<Component>(rule.arity());
+			for(GdlLiteral literal : rule.getBody()) {
+				if(literal instanceof GdlSentence) {
+					//Get the sentence post-substitutions
+					GdlSentence transformed = CommonTransforms.replaceVariables((GdlSentence) literal, assignment);
+
+					//Check for constant-ness
+					SentenceForm conjunctForm = model.getSentenceForm(transformed);
+					if(constantChecker.isConstantForm(conjunctForm)) {
+						if(!constantChecker.isTrueConstant(transformed)) {
+							List<GdlVariable> varsToChange = getVarsInConjunct(literal);
+							asnItr.changeOneInNext(varsToChange, assignment);
+							componentsToConnect.add(null);
+						}
+						continue;
+					}
+
+					Component conj = components.get(transformed);
+					//If conj is null and this is a sentence form we're still handling,
+					//hook up to a temporary sentence form
+					if(conj == null) {
+						conj = temporaryComponents.get(transformed);
+					}
+					if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
+						//Set up a temporary component
+						Proposition tempProp = new Proposition(transformed);
+						temporaryComponents.put(transformed, tempProp);
+						conj = tempProp;
+					}
+					//Let's say this is false; we want to backtrack and change the right variable
+					if(conj == null || isThisConstant(conj, falseComponent)) {
+						List<GdlVariable> varsInConjunct = getVarsInConjunct(literal);
+						asnItr.changeOneInNext(varsInConjunct, assignment);
+						//These last steps just speed up the process
+						//telling the factory to ignore this rule
+						componentsToConnect.add(null);
+						continue; //look at all the other restrictions we'll face
+					}
+
+					componentsToConnect.add(conj);
+				} else if(literal instanceof GdlNot) {
+					//Add a "not" if necessary
+					//Look up the negation
+					GdlSentence internal = (GdlSentence) ((GdlNot) literal).getBody();
+					GdlSentence transformed = CommonTransforms.replaceVariables(internal, assignment);
+
+					//Add constant-checking here...
+					SentenceForm conjunctForm = model.getSentenceForm(transformed);
+					if(constantChecker.isConstantForm(conjunctForm)) {
+						if(constantChecker.isTrueConstant(transformed)) {
+							List<GdlVariable> varsToChange = getVarsInConjunct(literal);
+							asnItr.changeOneInNext(varsToChange, assignment);
+							componentsToConnect.add(null);
+						}
+						continue;
+					}
+
+					Component conj = negations.get(transformed);
+					if(isThisConstant(conj, falseComponent)) {
+						//We need to change one of the variables inside
+						List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
+						asnItr.changeOneInNext(varsInConjunct, assignment);
+						//ignore this rule
+						componentsToConnect.add(null);
+						continue;
+					}
+					if(conj == null) {
+						conj = temporaryNegations.get(transformed);
+					}
+					//Check for the recursive case:
+					if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
+						Component positive = components.get(transformed);
+						if(positive == null) {
+							positive = temporaryComponents.get(transformed);
+						}
+						if(positive == null) {
+							//Make the temporary proposition
+							Proposition tempProp = new Proposition(transformed);
+							temporaryComponents.put(transformed, tempProp);
+							positive = tempProp;
+						}
+						//Positive is now set and in temporaryComponents
+						//Evidently, wasn't in temporaryNegations
+						//So we add the "not" gate and set it in temporaryNegations
+						Not not = new Not();
+						//Add positive as input
+						not.addInput(positive);
+						positive.addOutput(not);
+						temporaryNegations.put(transformed, not);
+						conj = not;
+					}
+					if(conj == null) {
+						Component positive = components.get(transformed);
+						//No, because then that will be attached to "negations", which could be bad
+
+						if(positive == null) {
+							//So the positive can't possibly be true (unless we have recurstion)
+							//and so this would be positive always
+							//We want to just skip this conjunct, so we continue to the next
+
+							continue; //to the next conjunct
+						}
+
+						//Check if we're sharing a component with another sentence with a negation
+						//(i.e. look for "nots" in our outputs and use those instead).
+						//Other forms may be looking for the same "not" at the same time.
+						Not not;
+						synchronized(positive) {
+							not = getNotOutput(positive);
+							if(not == null) {
+								not = new Not();
+								not.addInput(positive);
+								positive.addOutput(not);
+							}
+						}
+						negations.put(transformed, not);
+						conj = not;
+					}
+					componentsToConnect.add(conj);
+				} else if(literal instanceof GdlDistinct) {
+					//Already handled; ignore
+				} else {
+					throw new RuntimeException("Unwanted GdlLiteral type");
+				}
+			}
+			if(!componentsToConnect.contains(null)) {
+				//Connect all the components
+				Proposition andComponent = new Proposition(TEMP);
+
+				andify(componentsToConnect, andComponent, trueComponent);
+				if(!isThisConstant(andComponent, falseComponent)) {
+					if(!inputsToOr.containsKey(sentence))
+						inputsToOr.put(sentence, new HashSet<Component>());
+					inputsToOr.get(sentence).add(andComponent);
+					//We'll want to make sure at least one of the non-constant
+					//components is changing
+					if(preventDuplicatesFromConstants) {
+						asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
+					}
+				}
+			}
+		}
+	}
+
 	private static Set<GdlVariable> getVarsInLiveConjuncts(
 			GdlRule rule, Set<SentenceForm> constantSentenceForms) {
 		Set<GdlVariable> result = new HashSet<GdlVariable>();
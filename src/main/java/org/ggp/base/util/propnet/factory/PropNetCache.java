@@ -0,0 +1,745 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.propnet.factory.optimizer.PropNetOptimizer;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * The PropNetCache keeps the propnets built by OptimizingPropNetFactory, and
+ * shrunk by the PropNetOptimizer, in a directory, so that a game which has
+ * been played before doesn't have to be built again, which can take a good
+ * part of the start clock.
+ *
+ * Each propnet is in its own file, named by a hash of the game's rules.  The
+ * rules are normalised first by sorting them, so the same game with its
+ * rules in a different order is found, but a game whose symbols have been
+ * scrambled is not: the propositions are named by those symbols, so it
+ * needs its own propnet anyway.
+ *
+ * A propnet is only as good as the code that built it, so each file also
+ * records the version of that code: a hash of the class files of the
+ * factory, the optimizer and the GDL transforms and models they use.  A
+ * file written by any other version is rebuilt, so a change to how
+ * propnets are built can't leave old ones being used.
+ *
+ * The files are in a compact binary format, which is read through a memory
+ * mapping:
+ *
+ *   int      magic number
+ *   string   builder version
+ *   int      number of constants, then each constant as a string
+ *   int      number of roles, then each role as a constant id
+ *   int      number of components, then each component's type, followed
+ *            for a proposition by its name as a sentence
+ *   for each component, its number of inputs then each input's id
+ *
+ * Strings are an int length then UTF-8 bytes.  A sentence is a byte giving
+ * its kind, a constant id for its name and, for a relation, its arity and
+ * then its terms, which are written in the same way.
+ */
+public final class PropNetCache
+{
+	/** "HBP3"; change it whenever the format changes. */
+	private static final int MAGIC = 0x48425033;
+
+	/** The directory used when none is given, or set by DIRECTORY_PROPERTY. */
+	public static final String DEFAULT_DIRECTORY = "propnets";
+
+	/** The system property that sets the directory used when none is given. */
+	public static final String DIRECTORY_PROPERTY = "heavensbee.propnet.cache";
+
+	/**
+	 * The packages, as resource paths, whose classes decide what propnet a
+	 * game gets, with their subpackages.
+	 */
+	private static final String[] BUILDER_PACKAGES = {
+		"org/ggp/base/util/propnet/factory/",
+		"org/ggp/base/util/gdl/transforms/",
+		"org/ggp/base/util/gdl/model/",
+	};
+
+	/** Component types. */
+	private static final byte TYPE_PROPOSITION = 0;
+	private static final byte TYPE_TRUE = 1;
+	private static final byte TYPE_FALSE = 2;
+	private static final byte TYPE_NOT = 3;
+	private static final byte TYPE_AND = 4;
+	private static final byte TYPE_OR = 5;
+	private static final byte TYPE_TRANSITION = 6;
+
+	/** Kinds of sentence and term. */
+	private static final byte GDL_CONSTANT = 0;
+	private static final byte GDL_PROPOSITION = 1;
+	private static final byte GDL_RELATION = 2;
+	private static final byte GDL_FUNCTION = 3;
+	private static final byte GDL_VARIABLE = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The builder version, worked out when first needed, or "" if it can't
+	 * be, in which case nothing is cached.
+	 */
+	private static String builder_version;
+
+	private final File directory;
+
+	public PropNetCache()
+	{
+		this(new File(System.getProperty(DIRECTORY_PROPERTY, DEFAULT_DIRECTORY)));
+	}
+
+	public PropNetCache(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the propnet for a game, from the cache if it is there, and
+	 * otherwise by building it and adding it to the cache.  Problems with
+	 * the cache are logged, and the propnet is then built as usual.
+	 */
+	public PropNet create(List<Gdl> description) throws InterruptedException
+	{
+		if (getBuilderVersion().isEmpty())
+		{
+			return build(description);
+		}
+
+		File file = getFile(description);
+
+		if (file.exists())
+		{
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				PropNet propNet = read(file);
+				GamerLogger.log("debug.log", "Read propnet from " + file + " in "
+				                + (System.currentTimeMillis() - start) + "ms\n");
+				return propNet;
+			}
+			catch (IOException e)
+			{
+				GamerLogger.log("debug.log", "Failed to read propnet from " + file + "\n");
+				GamerLogger.logStackTrace("debug.log", e);
+			}
+		}
+
+		PropNet propNet = build(description);
+
+		try
+		{
+			write(file, propNet);
+		}
+		catch (IOException e)
+		{
+			GamerLogger.log("debug.log", "Failed to write propnet to " + file + "\n");
+			GamerLogger.logStackTrace("debug.log", e);
+		}
+
+		return propNet;
+	}
+
+	private static PropNet build(List<Gdl> description) throws InterruptedException
+	{
+		return PropNetOptimizer.createDefault().optimize(OptimizingPropNetFactory.create(description));
+	}
+
+	/**
+	 * Returns the file that holds, or would hold, the propnet for a game.
+	 */
+	public File getFile(List<Gdl> description)
+	{
+		return new File(directory, getKey(description) + ".propnet");
+	}
+
+	/**
+	 * Returns the key of a game in the cache: the SHA1 hash of its roles, in
+	 * order, and its rules, in sorted order.
+	 */
+	public static String getKey(List<Gdl> description)
+	{
+		List<String> rules = new ArrayList<String>(description.size());
+		for (Gdl gdl : description)
+		{
+			rules.add(gdl.toString());
+		}
+		Collections.sort(rules);
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(Role.computeRoles(description)).append('\n');
+		for (String rule : rules)
+		{
+			sb.append(rule).append('\n');
+		}
+
+		return BaseHashing.computeSHA1Hash(sb.toString());
+	}
+
+	/**
+	 * Returns the version of the code that builds propnets: the SHA1 hash
+	 * of the names and contents of the class files in BUILDER_PACKAGES, or
+	 * "" if they can't all be found, e.g. under an unusual class loader.
+	 */
+	public static synchronized String getBuilderVersion()
+	{
+		if (builder_version == null)
+		{
+			try
+			{
+				builder_version = compute_builder_version();
+			}
+			catch (IOException e)
+			{
+				GamerLogger.log("debug.log", "Can't version the propnet builder, so not caching propnets\n");
+				GamerLogger.logStackTrace("debug.log", e);
+				builder_version = "";
+			}
+		}
+
+		return builder_version;
+	}
+
+	private static String compute_builder_version() throws IOException
+	{
+		/**
+		 * Sort the class files by name, so that the hash doesn't depend on
+		 * the order they're listed in.
+		 */
+		Map<String, URL> class_files = new TreeMap<String, URL>();
+		ClassLoader loader = PropNetCache.class.getClassLoader();
+
+		for (String pkg : BUILDER_PACKAGES)
+		{
+			Enumeration<URL> roots = loader.getResources(pkg);
+			if (!roots.hasMoreElements())
+			{
+				throw new IOException("No classes in " + pkg);
+			}
+
+			while (roots.hasMoreElements())
+			{
+				list_class_files(roots.nextElement(), pkg, class_files);
+			}
+		}
+
+		MessageDigest sha1;
+		try
+		{
+			sha1 = MessageDigest.getInstance("SHA1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException(e);
+		}
+
+		byte[] bytes = new byte[8192];
+		for (Map.Entry<String, URL> entry : class_files.entrySet())
+		{
+			sha1.update(entry.getKey().getBytes(UTF8));
+
+			InputStream in = entry.getValue().openStream();
+			try
+			{
+				for (int read = in.read(bytes); read >= 0; read = in.read(bytes))
+				{
+					sha1.update(bytes, 0, read);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : sha1.digest())
+		{
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Adds the class files under a package's root, in a directory or a jar,
+	 * to class_files by their resource paths.
+	 */
+	private static void list_class_files(URL root, String pkg, Map<String, URL> class_files) throws IOException
+	{
+		if ("file".equals(root.getProtocol()))
+		{
+			try
+			{
+				list_class_files(new File(root.toURI()), pkg, class_files);
+			}
+			catch (URISyntaxException e)
+			{
+				throw new IOException(e);
+			}
+		}
+		else if ("jar".equals(root.getProtocol()))
+		{
+			JarURLConnection connection = (JarURLConnection) root.openConnection();
+			connection.setUseCaches(false);
+			JarFile jar = connection.getJarFile();
+			try
+			{
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements())
+				{
+					String name = entries.nextElement().getName();
+					if (name.startsWith(pkg) && name.endsWith(".class"))
+					{
+						class_files.put(name, new URL("jar:" + connection.getJarFileURL() + "!/" + name));
+					}
+				}
+			}
+			finally
+			{
+				jar.close();
+			}
+		}
+		else
+		{
+			throw new IOException("Can't list classes in " + root);
+		}
+	}
+
+	private static void list_class_files(File dir, String path, Map<String, URL> class_files) throws IOException
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+		{
+			throw new IOException("Can't list " + dir);
+		}
+
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				list_class_files(file, path + file.getName() + "/", class_files);
+			}
+			else if (file.getName().endsWith(".class"))
+			{
+				class_files.put(path + file.getName(), file.toURI().toURL());
+			}
+		}
+	}
+
+	/**
+	 * Writes a propnet to a file.  It is written to a temporary file which
+	 * is then renamed, so that another player reading the cache never sees
+	 * half a file.
+	 */
+	public static void write(File file, PropNet propNet) throws IOException
+	{
+		List<Component> components = new ArrayList<Component>(propNet.getComponents());
+		Map<Component, Integer> component_ids = new HashMap<Component, Integer>();
+		for (int ii = 0; ii < components.size(); ii++)
+		{
+			component_ids.put(components.get(ii), ii);
+		}
+
+		/**
+		 * Number every constant used in a role or proposition name.
+		 */
+		Map<GdlConstant, Integer> constant_ids = new HashMap<GdlConstant, Integer>();
+		List<GdlConstant> constants = new ArrayList<GdlConstant>();
+		for (Role role : propNet.getRoles())
+		{
+			add_constant(role.getName(), constant_ids, constants);
+		}
+		for (Component c : components)
+		{
+			if (c instanceof Proposition)
+			{
+				add_constants(((Proposition) c).getName(), constant_ids, constants);
+			}
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File temp = File.createTempFile("propnet", ".tmp", parent);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(MAGIC);
+			write_string(out, getBuilderVersion());
+
+			out.writeInt(constants.size());
+			for (GdlConstant constant : constants)
+			{
+				write_string(out, constant.getValue());
+			}
+
+			out.writeInt(propNet.getRoles().size());
+			for (Role role : propNet.getRoles())
+			{
+				out.writeInt(constant_ids.get(role.getName()));
+			}
+
+			out.writeInt(components.size());
+			for (Component c : components)
+			{
+				out.writeByte(get_type(c));
+				if (c instanceof Proposition)
+				{
+					write_gdl(out, ((Proposition) c).getName(), constant_ids);
+				}
+			}
+
+			for (Component c : components)
+			{
+				out.writeInt(c.getInputs().size());
+				for (Component input : c.getInputs())
+				{
+					out.writeInt(component_ids.get(input));
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Failed to rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * Reads a propnet from a file.
+	 */
+	public static PropNet read(File file) throws IOException
+	{
+		ByteBuffer buffer;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		try
+		{
+			if (buffer.getInt() != MAGIC)
+			{
+				throw new IOException("Not a propnet file: " + file);
+			}
+
+			if (!read_string(buffer).equals(getBuilderVersion()))
+			{
+				throw new IOException("Propnet file built by another version: " + file);
+			}
+
+			GdlConstant[] constants = new GdlConstant[read_count(buffer, 4)];
+			for (int ii = 0; ii < constants.length; ii++)
+			{
+				constants[ii] = GdlPool.getConstant(read_string(buffer));
+			}
+
+			List<Role> roles = new ArrayList<Role>();
+			int num_roles = read_count(buffer, 4);
+			for (int ii = 0; ii < num_roles; ii++)
+			{
+				roles.add(new Role(constants[buffer.getInt()]));
+			}
+
+			Component[] components = new Component[read_count(buffer, 1)];
+			for (int ii = 0; ii < components.length; ii++)
+			{
+				components[ii] = create_component(buffer, constants);
+			}
+
+			for (Component c : components)
+			{
+				int num_inputs = read_count(buffer, 4);
+				for (int ii = 0; ii < num_inputs; ii++)
+				{
+					Component input = components[buffer.getInt()];
+					c.addInput(input);
+					input.addOutput(c);
+				}
+			}
+
+			Set<Component> component_set = new HashSet<Component>(components.length * 2);
+			Collections.addAll(component_set, components);
+
+			return new PropNet(roles, component_set);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated propnet file: " + file, e);
+		}
+		catch (ClassCastException e)
+		{
+			throw new IOException("Corrupt propnet file: " + file, e);
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			throw new IOException("Corrupt propnet file: " + file, e);
+		}
+	}
+
+	/**
+	 * Reads the number of things that follow, each of which takes at least
+	 * min_bytes, checking that there's room for them all, so that a corrupt
+	 * count can't make a huge or negative array.
+	 */
+	private static int read_count(ByteBuffer buffer, int min_bytes) throws IOException
+	{
+		int count = buffer.getInt();
+
+		if (count < 0 || count > buffer.remaining() / min_bytes)
+		{
+			throw new IOException("Bad count " + count + " at " + (buffer.position() - 4));
+		}
+
+		return count;
+	}
+
+	private static void write_string(DataOutputStream out, String string) throws IOException
+	{
+		byte[] bytes = string.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String read_string(ByteBuffer buffer) throws IOException
+	{
+		byte[] bytes = new byte[read_count(buffer, 1)];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static byte get_type(Component c) throws IOException
+	{
+		if (c instanceof Proposition)
+		{
+			return TYPE_PROPOSITION;
+		}
+		else if (c instanceof Constant)
+		{
+			return c.getValue() ? TYPE_TRUE : TYPE_FALSE;
+		}
+		else if (c instanceof Not)
+		{
+			return TYPE_NOT;
+		}
+		else if (c instanceof And)
+		{
+			return TYPE_AND;
+		}
+		else if (c instanceof Or)
+		{
+			return TYPE_OR;
+		}
+		else if (c instanceof Transition)
+		{
+			return TYPE_TRANSITION;
+		}
+
+		throw new IOException("Can't write component " + c);
+	}
+
+	private static Component create_component(ByteBuffer buffer, GdlConstant[] constants) throws IOException
+	{
+		byte type = buffer.get();
+
+		switch (type)
+		{
+		case TYPE_PROPOSITION:
+			return new Proposition((GdlSentence) read_gdl(buffer, constants));
+		case TYPE_TRUE:
+			return new Constant(true);
+		case TYPE_FALSE:
+			return new Constant(false);
+		case TYPE_NOT:
+			return new Not();
+		case TYPE_AND:
+			return new And();
+		case TYPE_OR:
+			return new Or();
+		case TYPE_TRANSITION:
+			return new Transition();
+		default:
+			throw new IOException("Unknown component type " + type);
+		}
+	}
+
+	private static void add_constant(GdlConstant constant,
+	                                 Map<GdlConstant, Integer> constant_ids,
+	                                 List<GdlConstant> constants)
+	{
+		if (!constant_ids.containsKey(constant))
+		{
+			constant_ids.put(constant, constants.size());
+			constants.add(constant);
+		}
+	}
+
+	/**
+	 * Numbers the constants in a sentence or term, and the names of its
+	 * variables, which are kept with the constants.
+	 */
+	private static void add_constants(Gdl gdl,
+	                                  Map<GdlConstant, Integer> constant_ids,
+	                                  List<GdlConstant> constants)
+	{
+		if (gdl instanceof GdlConstant)
+		{
+			add_constant((GdlConstant) gdl, constant_ids, constants);
+		}
+		else if (gdl instanceof GdlVariable)
+		{
+			add_constant(GdlPool.getConstant(((GdlVariable) gdl).getName()), constant_ids, constants);
+		}
+		else if (gdl instanceof GdlProposition)
+		{
+			add_constant(((GdlProposition) gdl).getName(), constant_ids, constants);
+		}
+		else if (gdl instanceof GdlRelation)
+		{
+			add_constant(((GdlRelation) gdl).getName(), constant_ids, constants);
+			for (GdlTerm term : ((GdlRelation) gdl).getBody())
+			{
+				add_constants(term, constant_ids, constants);
+			}
+		}
+		else if (gdl instanceof GdlFunction)
+		{
+			add_constant(((GdlFunction) gdl).getName(), constant_ids, constants);
+			for (GdlTerm term : ((GdlFunction) gdl).getBody())
+			{
+				add_constants(term, constant_ids, constants);
+			}
+		}
+	}
+
+	private static void write_gdl(DataOutputStream out, Gdl gdl, Map<GdlConstant, Integer> constant_ids)
+	throws IOException
+	{
+		if (gdl instanceof GdlConstant)
+		{
+			out.writeByte(GDL_CONSTANT);
+			out.writeInt(constant_ids.get(gdl));
+		}
+		else if (gdl instanceof GdlVariable)
+		{
+			out.writeByte(GDL_VARIABLE);
+			out.writeInt(constant_ids.get(GdlPool.getConstant(((GdlVariable) gdl).getName())));
+		}
+		else if (gdl instanceof GdlProposition)
+		{
+			out.writeByte(GDL_PROPOSITION);
+			out.writeInt(constant_ids.get(((GdlProposition) gdl).getName()));
+		}
+		else if (gdl instanceof GdlRelation)
+		{
+			GdlRelation relation = (GdlRelation) gdl;
+			out.writeByte(GDL_RELATION);
+			out.writeInt(constant_ids.get(relation.getName()));
+			out.writeInt(relation.arity());
+			for (GdlTerm term : relation.getBody())
+			{
+				write_gdl(out, term, constant_ids);
+			}
+		}
+		else if (gdl instanceof GdlFunction)
+		{
+			GdlFunction function = (GdlFunction) gdl;
+			out.writeByte(GDL_FUNCTION);
+			out.writeInt(constant_ids.get(function.getName()));
+			out.writeInt(function.arity());
+			for (GdlTerm term : function.getBody())
+			{
+				write_gdl(out, term, constant_ids);
+			}
+		}
+		else
+		{
+			throw new IOException("Can't write proposition name " + gdl);
+		}
+	}
+
+	private static Gdl read_gdl(ByteBuffer buffer, GdlConstant[] constants) throws IOException
+	{
+		byte kind = buffer.get();
+		GdlConstant name = constants[buffer.getInt()];
+
+		switch (kind)
+		{
+		case GDL_CONSTANT:
+			return name;
+		case GDL_VARIABLE:
+			return GdlPool.getVariable(name.getValue());
+		case GDL_PROPOSITION:
+			return GdlPool.getProposition(name);
+		case GDL_RELATION:
+		case GDL_FUNCTION:
+			GdlTerm[] body = new GdlTerm[read_count(buffer, 5)];
+			for (int ii = 0; ii < body.length; ii++)
+			{
+				body[ii] = (GdlTerm) read_gdl(buffer, constants);
+			}
+			return (kind == GDL_RELATION) ? GdlPool.getRelation(name, body) : GdlPool.getFunction(name, body);
+		default:
+			throw new IOException("Unknown sentence kind " + kind);
+		}
+	}
+}
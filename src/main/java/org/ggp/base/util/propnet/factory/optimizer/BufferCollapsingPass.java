@@ -0,0 +1,56 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+
+/**
+ * Takes out the components that only pass a value on: Ands and Ors with a
+ * single input and view propositions that aren't read by the state machine,
+ * whose outputs are moved onto their input, and pairs of Nots, whose outputs
+ * are moved onto the input of the first Not.
+ */
+public final class BufferCollapsingPass extends PropNetPass
+{
+	@Override
+	public String getName()
+	{
+		return "buffer collapsing";
+	}
+
+	@Override
+	public boolean apply(Set<Component> components)
+	{
+		boolean changed = false;
+
+		for (Component c : new ArrayList<Component>(components))
+		{
+			if (!components.contains(c) || isEssential(c) || c.getInputs().size() != 1)
+			{
+				continue;
+			}
+
+			Component input = c.getSingleInput();
+
+			if (isGate(c) || (c instanceof Proposition))
+			{
+				replace(components, c, input);
+				changed = true;
+			}
+			else if ((c instanceof Not) && (input instanceof Not) && input.getInputs().size() == 1)
+			{
+				/**
+				 * The first Not is left alone, as it may have other outputs.
+				 * If not, it's removed as dead.
+				 */
+				replace(components, c, input.getSingleInput());
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+}
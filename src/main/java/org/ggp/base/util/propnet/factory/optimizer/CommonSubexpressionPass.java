@@ -0,0 +1,72 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Not;
+
+/**
+ * Merges Ands, Ors and Nots of the same type with the same inputs, moving
+ * the outputs of each duplicate onto the first.  Repeated inputs of an And
+ * or Or are dropped along the way, as they don't change its value.
+ *
+ * The gates are visited in evaluation order, so by the time a gate is
+ * looked at its inputs have already been merged, and duplicates made by
+ * earlier merges are found in the same pass.
+ */
+public final class CommonSubexpressionPass extends PropNetPass
+{
+	@Override
+	public String getName()
+	{
+		return "common subexpressions";
+	}
+
+	@Override
+	public boolean apply(Set<Component> components)
+	{
+		boolean changed = false;
+		Map<List<Object>, Component> gates = new HashMap<List<Object>, Component>();
+
+		for (Component c : PropNet.getEvaluationOrder(components))
+		{
+			if (!isGate(c) && !(c instanceof Not))
+			{
+				continue;
+			}
+
+			Set<Component> inputs = new HashSet<Component>(c.getInputs());
+			if (inputs.size() != c.getInputs().size())
+			{
+				for (Component input : inputs)
+				{
+					while (c.getInputs().indexOf(input) != c.getInputs().lastIndexOf(input))
+					{
+						unlink(input, c);
+					}
+				}
+				changed = true;
+			}
+
+			List<Object> key = Arrays.<Object>asList(c.getClass(), inputs);
+			Component existing = gates.get(key);
+			if (existing == null)
+			{
+				gates.put(key, c);
+			}
+			else
+			{
+				replace(components, c, existing);
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+}
@@ -0,0 +1,122 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Set;
+
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+
+/**
+ * Pushes the constants through the propnet.  A gate with a constant input
+ * either takes a constant value itself, and is replaced by that constant,
+ * or doesn't depend on that input, which is dropped:
+ *
+ *   And: a false input makes it false; a true input is dropped
+ *   Or:  a true input makes it true; a false input is dropped
+ *   Not: the opposite constant
+ *
+ * An And left with no inputs is true, and an Or with none is false, as is a
+ * proposition nothing sets.  Essential components keep their constant
+ * input.
+ */
+public final class ConstantFoldingPass extends PropNetPass
+{
+	@Override
+	public String getName()
+	{
+		return "constant folding";
+	}
+
+	@Override
+	public boolean apply(Set<Component> components)
+	{
+		boolean changed = false;
+
+		/**
+		 * Gates and propositions with nothing to set them are constants too.
+		 */
+		for (Component c : new ArrayList<Component>(components))
+		{
+			if (c.getInputs().isEmpty() && !isEssential(c))
+			{
+				if (c instanceof And)
+				{
+					replace(components, c, getConstant(components, true));
+					changed = true;
+				}
+				else if ((c instanceof Or) || (c instanceof Proposition))
+				{
+					replace(components, c, getConstant(components, false));
+					changed = true;
+				}
+			}
+		}
+
+		Deque<Constant> to_fold = new ArrayDeque<Constant>();
+		for (Component c : components)
+		{
+			if (c instanceof Constant)
+			{
+				to_fold.add((Constant) c);
+			}
+		}
+
+		while (!to_fold.isEmpty())
+		{
+			Constant constant = to_fold.remove();
+			boolean value = constant.getValue();
+
+			for (Component output : new ArrayList<Component>(constant.getOutputs()))
+			{
+				if (!components.contains(output) || isEssential(output))
+				{
+					continue;
+				}
+
+				Component folded = null;
+
+				if (output instanceof Not)
+				{
+					folded = getConstant(components, !value);
+				}
+				else if (output instanceof Proposition)
+				{
+					folded = constant;
+				}
+				else if (isGate(output))
+				{
+					/**
+					 * A false input decides an And, and a true one an Or.
+					 */
+					if ((output instanceof And) != value)
+					{
+						folded = constant;
+					}
+					else
+					{
+						unlink(constant, output);
+						if (output.getInputs().isEmpty())
+						{
+							folded = constant;
+						}
+					}
+				}
+
+				if (folded != null)
+				{
+					replace(components, output, folded);
+					to_fold.add((Constant) folded);
+				}
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+}
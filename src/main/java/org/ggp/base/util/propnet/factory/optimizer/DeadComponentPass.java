@@ -0,0 +1,65 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.propnet.architecture.Component;
+
+/**
+ * Removes every component whose value can't reach an essential component,
+ * working back from the essential components through their inputs.
+ * Anything not found that way is never read, however it's connected.
+ */
+public final class DeadComponentPass extends PropNetPass
+{
+	@Override
+	public String getName()
+	{
+		return "dead components";
+	}
+
+	@Override
+	public boolean apply(Set<Component> components)
+	{
+		Set<Component> live = new HashSet<Component>();
+		Deque<Component> to_visit = new ArrayDeque<Component>();
+
+		for (Component c : components)
+		{
+			if (isEssential(c))
+			{
+				live.add(c);
+				to_visit.add(c);
+			}
+		}
+
+		while (!to_visit.isEmpty())
+		{
+			for (Component input : to_visit.remove().getInputs())
+			{
+				if (live.add(input))
+				{
+					to_visit.add(input);
+				}
+			}
+		}
+
+		if (live.size() == components.size())
+		{
+			return false;
+		}
+
+		for (Component c : new ArrayList<Component>(components))
+		{
+			if (!live.contains(c))
+			{
+				remove(components, c);
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,96 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+
+/**
+ * The PropNetOptimizer shrinks a propnet by running a list of passes over
+ * its components.  Every component taken out is one less to update in
+ * every propagation, so this pays for itself over the first few rollouts.
+ *
+ * One pass often opens up work for another, e.g. folding a constant into an
+ * And can leave it with a single input, which can then be collapsed, so the
+ * passes are run in turn until a whole round changes nothing.  The result is
+ * a new PropNet over the same components, which means the PropNet passed in
+ * must not be used afterwards.
+ */
+public final class PropNetOptimizer
+{
+	/** Rounds after which to stop, even if the passes are still finding work. */
+	private static final int MAX_ROUNDS = 20;
+
+	private final List<PropNetPass> passes = new ArrayList<PropNetPass>();
+
+	/**
+	 * Returns an optimizer with the standard passes.
+	 */
+	public static PropNetOptimizer createDefault()
+	{
+		PropNetOptimizer optimizer = new PropNetOptimizer();
+		optimizer.addPass(new ConstantFoldingPass());
+		optimizer.addPass(new BufferCollapsingPass());
+		optimizer.addPass(new CommonSubexpressionPass());
+		optimizer.addPass(new DeadComponentPass());
+		return optimizer;
+	}
+
+	/**
+	 * Adds a pass, to run after those already added.
+	 */
+	public void addPass(PropNetPass pass)
+	{
+		passes.add(pass);
+	}
+
+	/**
+	 * Runs the passes over a propnet, and returns the optimized propnet.
+	 */
+	public PropNet optimize(PropNet propNet)
+	{
+		long start = System.currentTimeMillis();
+		String before = describe(propNet);
+
+		Set<Component> components = new HashSet<Component>(propNet.getComponents());
+		StringBuilder log = new StringBuilder();
+		boolean changed = true;
+
+		for (int round = 0; changed && round < MAX_ROUNDS; round++)
+		{
+			changed = false;
+
+			for (PropNetPass pass : passes)
+			{
+				int size = components.size();
+				if (pass.apply(components))
+				{
+					changed = true;
+					log.append("  Round ").append(round).append(", ").append(pass.getName())
+					   .append(": ").append(size).append(" -> ").append(components.size())
+					   .append(" components\n");
+				}
+			}
+		}
+
+		PropNet optimized = new PropNet(propNet.getRoles(), components);
+
+		log.append("Optimized propnet in ").append(System.currentTimeMillis() - start)
+		   .append("ms, from ").append(before).append(" to ").append(describe(optimized))
+		   .append("\n");
+		GamerLogger.log("debug.log", log.toString(), GamerLogger.LOG_LEVEL_IMPORTANT);
+
+		return optimized;
+	}
+
+	private static String describe(PropNet propNet)
+	{
+		return propNet.getSize() + " components (" + propNet.getNumAnds() + " ands, "
+		       + propNet.getNumOrs() + " ors, " + propNet.getNumNots() + " nots), "
+		       + propNet.getNumLinks() + " links";
+	}
+}
@@ -0,0 +1,151 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+/**
+ * A PropNetPass is one optimisation run by the PropNetOptimizer.  It works
+ * on the components of a propnet before they are made into a PropNet, and
+ * changes them in place.
+ *
+ * A pass can do anything that leaves the same values on the propositions
+ * the state machine reads: the bases, inputs, legals, goals, terminal and
+ * init, which are the "essential" components, along with the transitions.
+ * Those are never removed.  The helpers here keep the links on both ends of
+ * each connection in step.
+ */
+public abstract class PropNetPass
+{
+	private static final GdlSentence INIT = GdlPool.getProposition(GdlPool.getConstant("INIT"));
+
+	/**
+	 * Returns the name of the pass, for the log.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Applies the pass to a set of components, adding and removing
+	 * components from the set as it goes.
+	 *
+	 * @return Whether anything was changed.
+	 */
+	public abstract boolean apply(Set<Component> components);
+
+	/**
+	 * Returns whether a component must be kept, because the PropNet reads
+	 * it.
+	 */
+	protected static boolean isEssential(Component c)
+	{
+		if (c instanceof Transition)
+		{
+			return true;
+		}
+		if (!(c instanceof Proposition))
+		{
+			return false;
+		}
+
+		Proposition p = (Proposition) c;
+		if (p.isBaseProposition() || p.isInputProposition())
+		{
+			return true;
+		}
+
+		GdlSentence name = p.getName();
+		return name.getName() == GdlPool.LEGAL || name.getName() == GdlPool.GOAL
+		       || name.getName() == GdlPool.TERMINAL || name.equals(INIT);
+	}
+
+	/**
+	 * Returns whether a component is an And or an Or.
+	 */
+	protected static boolean isGate(Component c)
+	{
+		return (c instanceof And) || (c instanceof Or);
+	}
+
+	/**
+	 * Returns a constant with the given value from the set, adding one if
+	 * there isn't one yet.
+	 */
+	protected static Constant getConstant(Set<Component> components, boolean value)
+	{
+		for (Component c : components)
+		{
+			if ((c instanceof Constant) && c.getValue() == value)
+			{
+				return (Constant) c;
+			}
+		}
+
+		Constant constant = new Constant(value);
+		components.add(constant);
+		return constant;
+	}
+
+	/**
+	 * Connects an input to a component.
+	 */
+	protected static void link(Component input, Component output)
+	{
+		input.addOutput(output);
+		output.addInput(input);
+	}
+
+	/**
+	 * Disconnects an input from a component, once.
+	 */
+	protected static void unlink(Component input, Component output)
+	{
+		input.removeOutput(output);
+		output.removeInput(input);
+	}
+
+	/**
+	 * Moves every output of a component onto its replacement, which always
+	 * has the same value, then removes the component from the set.  An And
+	 * or Or which already has the replacement as an input doesn't get it
+	 * twice.
+	 */
+	protected static void replace(Set<Component> components, Component c, Component replacement)
+	{
+		for (Component output : new ArrayList<Component>(c.getOutputs()))
+		{
+			unlink(c, output);
+
+			if (!(isGate(output) && output.getInputs().contains(replacement)))
+			{
+				link(replacement, output);
+			}
+		}
+
+		remove(components, c);
+	}
+
+	/**
+	 * Disconnects a component from everything and removes it from the set.
+	 */
+	protected static void remove(Set<Component> components, Component c)
+	{
+		for (Component input : new ArrayList<Component>(c.getInputs()))
+		{
+			unlink(input, c);
+		}
+		for (Component output : new ArrayList<Component>(c.getOutputs()))
+		{
+			unlink(c, output);
+		}
+
+		components.remove(c);
+	}
+}
@@ -0,0 +1,79 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.math.IntMath;
+
+/**
+ * The legal moves of every role in a state, along with the joint moves they
+ * make up.
+ * <p>
+ * As a list, this is the Cartesian product of the legal moves of the roles,
+ * in the same order as {@link StateMachine#getLegalJointMoves(MachineState)}:
+ * the first role's move changes slowest.  The joint moves aren't stored,
+ * but made as they are asked for, so a state with many joint moves doesn't
+ * cost anything until they are looked at, and a caller that only wants the
+ * legal moves of each role doesn't pay for the product at all.
+ */
+public final class LegalJointMoves extends AbstractList<List<Move>>
+{
+    private final List<List<Move>> legals;
+    private final int size;
+
+    /**
+     * @param legals
+     *            The legal moves of each role, in role order.  The lists
+     *            must not be changed afterwards.
+     */
+    public LegalJointMoves(List<List<Move>> legals)
+    {
+        this.legals = legals;
+
+        int size = 1;
+        for (List<Move> moves : legals) {
+            size = IntMath.checkedMultiply(size, moves.size());
+        }
+        this.size = size;
+    }
+
+    /**
+     * Returns the legal moves of the role with the given index.
+     */
+    public List<Move> getLegalMoves(int roleIndex)
+    {
+        return legals.get(roleIndex);
+    }
+
+    /**
+     * Returns the legal moves of every role, in role order.
+     */
+    public List<List<Move>> getLegalMoves()
+    {
+        return legals;
+    }
+
+    @Override
+    public List<Move> get(int index)
+    {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size + " joint moves");
+        }
+
+        Move[] jointMove = new Move[legals.size()];
+        for (int ii = legals.size() - 1; ii >= 0; ii--) {
+            List<Move> moves = legals.get(ii);
+            jointMove[ii] = moves.get(index % moves.size());
+            index /= moves.size();
+        }
+
+        return ImmutableList.copyOf(jointMove);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+}
@@ -171,6 +171,25 @@ public abstract class StateMachine
         return crossProduct;
     }
 
+    /**
+     * Returns the legal moves of every role in the given state, which is
+     * also a list of every joint move possible in that state, made as the
+     * joint moves are looked at.
+     * <p>
+     * This asks {@link #getLegalMoves(MachineState, Role)} for each role in
+     * turn.  State machines which can work out the legal moves of all the
+     * roles at once should override it.
+     */
+    public LegalJointMoves getAllLegalMoves(MachineState state) throws MoveDefinitionException
+    {
+        List<List<Move>> legals = new ArrayList<List<Move>>();
+        for (Role role : getRoles()) {
+            legals.add(getLegalMoves(state, role));
+        }
+
+        return new LegalJointMoves(legals);
+    }
+
     /**
      * Returns a list of every joint move possible in the given state in which
      * the given role makes the given move. This will be a subset of the list
@@ -286,6 +305,31 @@ public abstract class StateMachine
         return theGoals;
     }
 
+    /**
+     * Returns whether the given state is terminal and, if it is, writes the
+     * goal value of each role into goals, in the same order as
+     * {@link #getRoles()}.  If the state isn't terminal, goals is left alone.
+     * <p>
+     * This is what a search needs at every node it reaches, and state
+     * machines which can answer both at once should override it rather
+     * than working the state out for isTerminal and then again for each
+     * getGoal.
+     *
+     * @throws GoalDefinitionException if the state is terminal, but there is
+     * no goal value or more than one goal value for any one role in it.
+     */
+    public boolean getTerminalAndGoals(MachineState state, int[] goals) throws GoalDefinitionException {
+        if (!isTerminal(state)) {
+            return false;
+        }
+
+        List<Role> roles = getRoles();
+        for (int i = 0; i < roles.size(); i++) {
+            goals[i] = getGoal(state, roles.get(i));
+        }
+        return true;
+    }
+
     /**
      * Returns a random joint move from among all the possible joint moves in
      * the given state.
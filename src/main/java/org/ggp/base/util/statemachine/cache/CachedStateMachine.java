@@ -112,6 +112,37 @@ public final class CachedStateMachine extends StateMachine
 		}
 	}
 
+	@Override
+	public boolean getTerminalAndGoals(MachineState state, int[] goals) throws GoalDefinitionException
+	{
+		Entry entry = getEntry(state);
+		synchronized (entry)
+		{
+			List<Role> roles = getRoles();
+
+			if (entry.terminal == null || (entry.terminal && entry.goals.size() < roles.size()))
+			{
+				entry.terminal = backingStateMachine.getTerminalAndGoals(state, goals);
+				if (entry.terminal)
+				{
+					for (int i = 0; i < roles.size(); i++)
+					{
+						entry.goals.put(roles.get(i), goals[i]);
+					}
+				}
+			}
+			else if (entry.terminal)
+			{
+				for (int i = 0; i < roles.size(); i++)
+				{
+					goals[i] = entry.goals.get(roles.get(i));
+				}
+			}
+
+			return entry.terminal;
+		}
+	}
+
 	@Override
 	public void doPerMoveWork()
 	{
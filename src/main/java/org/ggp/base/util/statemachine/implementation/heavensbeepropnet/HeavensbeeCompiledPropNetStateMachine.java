@@ -0,0 +1,220 @@
+package org.ggp.base.util.statemachine.implementation.heavensbeepropnet;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.compiler.CompiledPropNet;
+import org.ggp.base.util.propnet.compiler.PropNetCompilationException;
+import org.ggp.base.util.propnet.compiler.PropNetCompiler;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+
+/**
+ * A HeavensbeePropNetStateMachine which evaluates the propnet with bytecode
+ * generated by the PropNetCompiler, rather than by propagating through the
+ * components.
+ *
+ * Each query evaluates the whole propnet in one pass.  This does more gate
+ * updates than the differential propagation of the interpreted machine, but
+ * each update is a couple of instructions with no virtual calls, which is
+ * much faster overall.  If the propnet can't be compiled, this falls back to
+ * the interpreted machine.
+ */
+public class HeavensbeeCompiledPropNetStateMachine extends HeavensbeePropNetStateMachine {
+	/** The generated evaluator; null if compilation failed. */
+	private CompiledPropNet compiled;
+
+	/** Values by component index, as set by the last propagate. */
+	private long[] values;
+
+	/** The next state by base index, as set by the last propagate. */
+	private long[] next_values;
+
+	/** The Zobrist hash of next_values. */
+	private long next_hash;
+
+	/** The bases marked for the last propagate, by base index. */
+	private long[] marked_bases;
+
+	private int init_index;
+
+	/**
+	 * The state the values were last worked out for, if that was done with
+	 * no inputs marked; otherwise null.  Lets the usual run of queries on one
+	 * state (isTerminal, getLegalMoves for each role, getGoal) share a single
+	 * evaluation.
+	 */
+	private MachineState evaluated_state;
+
+	public HeavensbeeCompiledPropNetStateMachine()
+	{
+	}
+
+	public HeavensbeeCompiledPropNetStateMachine(PropNetCache cache)
+	{
+		super(cache);
+	}
+
+	private HeavensbeeCompiledPropNetStateMachine(HeavensbeeCompiledPropNetStateMachine shared)
+	{
+		super(shared);
+		compiled = shared.compiled;
+		init_index = shared.init_index;
+		values = new long[shared.values.length];
+		next_values = new long[shared.next_values.length];
+		marked_bases = new long[shared.marked_bases.length];
+	}
+
+	@Override
+	public HeavensbeeCompiledPropNetStateMachine createWorkerCopy()
+	{
+		return new HeavensbeeCompiledPropNetStateMachine(this);
+	}
+
+	@Override
+	public void initialize(List<Gdl> description) {
+		super.initialize(description);
+
+		PropNet propNet = getPropNet();
+
+		try {
+			compiled = PropNetCompiler.compile(propNet);
+		} catch (PropNetCompilationException e) {
+			GamerLogger.logStackTrace("debug.log", e);
+			GamerLogger.log("debug.log", "Falling back to the interpreted propnet\n");
+			compiled = null;
+		}
+
+		values = new long[(propNet.getComponents().size() + 63) >>> 6];
+		next_values = new long[(propNet.getBasePropositions().size() + 63) >>> 6];
+		marked_bases = new long[next_values.length];
+
+		Proposition init = propNet.getInitProposition();
+		init_index = (init == null) ? -1 : init.index;
+	}
+
+	/**
+	 * Returns true if the propnet has been compiled, false if this machine
+	 * is running the interpreted propnet instead.
+	 */
+	public boolean isCompiled()
+	{
+		return compiled != null;
+	}
+
+	@Override
+	protected void propagate(MachineState state, int[] input_indices)
+	{
+		if (compiled == null)
+		{
+			super.propagate(state, input_indices);
+			return;
+		}
+
+		if (input_indices == null && state == evaluated_state)
+		{
+			return;
+		}
+
+		long[] bases = ((HeavensbeeMachineState)state).get_bases();
+		System.arraycopy(bases, 0, marked_bases, 0, marked_bases.length);
+
+		evaluate(input_indices);
+		evaluated_state = (input_indices == null) ? state : null;
+	}
+
+	@Override
+	protected boolean getPropValue(Proposition p)
+	{
+		if (compiled == null)
+		{
+			return super.getPropValue(p);
+		}
+
+		return (values[p.index >>> 6] & (1L << p.index)) != 0;
+	}
+
+	@Override
+	protected MachineState getPropagatedNextState()
+	{
+		if (compiled == null)
+		{
+			return super.getPropagatedNextState();
+		}
+
+		return new HeavensbeeMachineState(next_values.clone(), next_hash);
+	}
+
+	@Override
+	protected MachineState propagateInit()
+	{
+		if (compiled == null)
+		{
+			return super.propagateInit();
+		}
+
+		Arrays.fill(marked_bases, 0L);
+		evaluate(new int[] {init_index});
+		evaluated_state = null;
+
+		return getPropagatedNextState();
+	}
+
+	@Override
+	protected void propagateInputs(int[] input_indices)
+	{
+		if (compiled == null)
+		{
+			super.propagateInputs(input_indices);
+			return;
+		}
+
+		evaluate(input_indices);
+		evaluated_state = null;
+	}
+
+	@Override
+	protected void propagateNextState()
+	{
+		if (compiled == null)
+		{
+			super.propagateNextState();
+			return;
+		}
+
+		System.arraycopy(next_values, 0, marked_bases, 0, next_values.length);
+		evaluate(null);
+		evaluated_state = null;
+	}
+
+	/**
+	 * Evaluates the propnet with the marked bases and the given inputs.
+	 */
+	private void evaluate(int[] input_indices)
+	{
+		/**
+		 * The bases have the lowest component indices, so their words go
+		 * straight in.
+		 */
+		Arrays.fill(values, 0L);
+		System.arraycopy(marked_bases, 0, values, 0, marked_bases.length);
+
+		if (input_indices != null)
+		{
+			for (int index : input_indices)
+			{
+				if (index >= 0)
+				{
+					values[index >>> 6] |= (1L << index);
+				}
+			}
+		}
+
+		Arrays.fill(next_values, 0L);
+		next_hash = compiled.propagate(values, next_values);
+	}
+}
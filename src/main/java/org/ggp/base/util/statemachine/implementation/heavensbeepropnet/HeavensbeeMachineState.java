@@ -1,55 +1,86 @@
 package org.ggp.base.util.statemachine.implementation.heavensbeepropnet;
 
-import java.util.BitSet;
-import java.util.Map;
+import java.util.Arrays;
 
-import org.ggp.base.util.logging.GamerLogger;
-import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.statemachine.MachineState;
-import org.ggp.base.util.statemachine.Role;
 
+/**
+ * A state of a propnet machine: which base propositions are true, one bit
+ * per base index, packed into words.
+ *
+ * The state also carries its Zobrist hash, the xor of the keys of its true
+ * bases (see PropNet.getZobristKeys), which the propnet keeps up to date as
+ * it propagates.  So hashing a state is free, and two states are only
+ * compared bit by bit if their hashes match.
+ *
+ * States are immutable.
+ */
 public class HeavensbeeMachineState extends MachineState {
-	private BitSet bs;
-	public boolean is_terminal;
-	public Map<Role, Proposition> rolemap;
-	private BitSet cache_current_state;
-	private BitSet cache_next_state;
-	private boolean cache_active;
-
-	public HeavensbeeMachineState(BitSet b) {
-		bs = (BitSet) b.clone();
-//		is_terminal = qterminal;
-//		rolemap = qrolemap;
-		cache_active = false;
+	private final long[] bases;
+	private final long hash;
+
+	/**
+	 * Creates a state.  The array is kept, not copied, so must not be changed
+	 * afterwards.
+	 *
+	 * @param bases
+	 *            The true bases, one bit per base index.
+	 * @param hash
+	 *            The Zobrist hash of those bases.
+	 */
+	public HeavensbeeMachineState(long[] bases, long hash) {
+		this.bases = bases;
+		this.hash = hash;
 	}
 
 	@Override
 	public String toString() {
-		return "MachineState[" + bs + "]";
+		StringBuilder sb = new StringBuilder("MachineState[{");
+		boolean first = true;
+		for (int i = 0; i < bases.length * 64; i++)
+		{
+			if ((bases[i >>> 6] & (1L << i)) != 0)
+			{
+				if (!first)
+				{
+					sb.append(", ");
+				}
+				sb.append(i);
+				first = false;
+			}
+		}
+		return sb.append("}]").toString();
 	}
 
 	@Override
 	public int hashCode()
     {
-        return bs.hashCode();
+        return (int)(hash ^ (hash >>> 32));
     }
 
-	public BitSet get_bs()
+	/**
+	 * Returns the 64-bit Zobrist hash of the state.
+	 */
+	public long get_zobrist_hash()
 	{
-		return bs;
+		return hash;
+	}
+
+	/**
+	 * Returns the true bases, one bit per base index.  The array must not be
+	 * changed.
+	 */
+	public long[] get_bases()
+	{
+		return bases;
 	}
 
 	@Override
 	public MachineState clone() {
-//		if (is_terminal)
-//		{
-//			return new HeavensbeeMachineState(bs, is_terminal, new HashMap<Role, Proposition>(rolemap));
-//		}
-//		else
-//		{
-//			return new HeavensbeeMachineState(bs, is_terminal, null);
-//		}
-		return new HeavensbeeMachineState(bs);
+		/**
+		 * As states are immutable, the clone can share the bases.
+		 */
+		return new HeavensbeeMachineState(bases, hash);
 	}
 
     @Override
@@ -58,54 +89,9 @@ public class HeavensbeeMachineState extends MachineState {
         if ((o != null) && (o instanceof HeavensbeeMachineState))
         {
         	HeavensbeeMachineState state = (HeavensbeeMachineState) o;
-            return state.get_bs().equals(get_bs());
+            return (state.hash == hash) && Arrays.equals(state.bases, bases);
         }
 
         return false;
     }
-
-    public BitSet get_current_cache()
-    {
-    	return cache_current_state;
-    }
-
-    public BitSet get_next_cache()
-    {
-    	return cache_next_state;
-    }
-
-    public boolean is_cached()
-    {
-    	return cache_active;
-    }
-
-    public void check_cache(BitSet current_state, BitSet next_state)
-    {
-		//GamerLogger.emitToConsole("Reference current set " + current_state + "\n");
-		//GamerLogger.emitToConsole("Cache set " + cache_current_state + "\n");
-
-		if (!current_state.equals(cache_current_state))
-		{
-			GamerLogger.emitToConsole("!! Current states do not match \n");
-		}
-		//GamerLogger.emitToConsole("Reference next set " + next_state + "\n");
-		//GamerLogger.emitToConsole("Cache set " + cache_next_state + "\n");
-
-		if (!next_state.equals(cache_next_state))
-		{
-			GamerLogger.emitToConsole("!! Next states do not match \n");
-		}
-
-    }
-
-    /**
-     * This function is called by the propnet to cache the BitSet after
-     * forward propping.
-     */
-	public void set_cache(BitSet current_state, BitSet next_state) {
-		// TODO Auto-generated method stub
-    	cache_active = true;
-    	cache_current_state = (BitSet) current_state.clone();
-    	cache_next_state = (BitSet) next_state.clone();
-	}
 }
@@ -1,30 +1,38 @@
 package org.ggp.base.util.statemachine.implementation.heavensbeepropnet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.SortedSet;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.BatchedPropNet;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.PropNetContext;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
-import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.LegalJointMoves;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TimeToGetMovingException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+
+import com.google.common.collect.ImmutableList;
 
 
 public class HeavensbeePropNetStateMachine extends StateMachine {
@@ -34,9 +42,125 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
     private List<Proposition> ordering;
     /** The player roles */
     private List<Role> roles;
+    /**
+     * The values of the propnet as seen by this state machine.  The propnet
+     * is shared with any worker copies; each copy has its own context.
+     */
+    private PropNetContext context;
 
     private boolean enable_tracing;
 
+    /** Where initialize() looks for the propnet before building it. */
+    private final PropNetCache cache;
+
+    /** Legal and goal tables for each role, in role order. */
+    private RoleTables[] role_tables;
+
+    /**
+     * For each role, the state whose legal moves were last asked for, and
+     * the list that was returned for it.
+     */
+    private MachineState[] legal_cache_states;
+    private List<List<Move>> legal_cache_lists;
+
+    /** Scratch space for the input indices of a joint move. */
+    private int[] joint_inputs;
+
+    /** Scratch space for depth charges. */
+    private int[] charge_legals;
+    private Random charge_random;
+
+    /**
+     * The legal index of each move made by the last guided depth charge,
+     * role by role for each ply in turn.  Grown as needed.
+     */
+    private int[] charge_moves;
+
+    /**
+     * Evaluator for the batch queries, made when first needed, and scratch
+     * space for batched depth charges, by lane.
+     */
+    private BatchedPropNet batch;
+    private int[] batch_num_legals;
+    private int[] batch_choices;
+
+    /**
+     * Everything about a role's legal and goal propositions that is needed
+     * to answer queries, worked out once when the machine is initialized so
+     * that no query has to allocate a Move or parse a goal value.  Shared
+     * with worker copies, and never changed.
+     */
+    private static final class RoleTables
+    {
+    	/** The legal propositions of the role. */
+    	final Proposition[] legal_props;
+
+    	/** The move for each legal proposition. */
+    	final Move[] legal_moves;
+
+    	/** An immutable list of just the move, for each legal proposition. */
+    	final List<List<Move>> single_move_lists;
+
+    	/**
+    	 * The component index of the input proposition for each legal
+    	 * proposition, or -1 if the input was pruned as having no effect.
+    	 */
+    	final int[] legal_inputs;
+
+    	/** The index in legal_props of each move. */
+    	final Map<Move, Integer> legal_indices;
+
+    	/** The component index of the input proposition of each move. */
+    	final Map<Move, Integer> move_inputs;
+
+    	/** The goal propositions of the role. */
+    	final Proposition[] goal_props;
+
+    	/** The value of each goal proposition. */
+    	final int[] goal_values;
+
+    	RoleTables(PropNet propNet, Role role)
+    	{
+    		Set<Proposition> legals = getOrEmpty(propNet.getLegalPropositions(), role);
+    		Set<Proposition> goals = getOrEmpty(propNet.getGoalPropositions(), role);
+    		Map<Proposition, Proposition> legal_input_map = propNet.getLegalInputMap();
+
+    		legal_props = legals.toArray(new Proposition[legals.size()]);
+    		legal_moves = new Move[legal_props.length];
+    		single_move_lists = new ArrayList<List<Move>>(legal_props.length);
+    		legal_inputs = new int[legal_props.length];
+    		legal_indices = new HashMap<Move, Integer>();
+
+    		for (int ii = 0; ii < legal_props.length; ii++)
+    		{
+    			legal_moves[ii] = getMoveFromProposition(legal_props[ii]);
+    			single_move_lists.add(ImmutableList.of(legal_moves[ii]));
+    			legal_indices.put(legal_moves[ii], ii);
+
+    			Proposition input = legal_input_map.get(legal_props[ii]);
+    			legal_inputs[ii] = (input == null) ? -1 : input.index;
+    		}
+
+    		move_inputs = new HashMap<Move, Integer>();
+    		for (Proposition input : propNet.getInputPropositions().values())
+    		{
+    			GdlRelation does = (GdlRelation) input.getName();
+    			if (does.get(0).equals(role.getName()))
+    			{
+    				move_inputs.put(getMoveFromProposition(input), input.index);
+    			}
+    		}
+
+    		goal_props = goals.toArray(new Proposition[goals.size()]);
+    		goal_values = new int[goal_props.length];
+
+    		for (int ii = 0; ii < goal_props.length; ii++)
+    		{
+    			goal_values[ii] = getGoalValue(goal_props[ii]);
+    		}
+    	}
+    }
+
 	private Comparator<Proposition> propcompare = new Comparator<Proposition>()
 	{
 		@Override
@@ -57,6 +181,45 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 		}
 	};
 
+    public HeavensbeePropNetStateMachine()
+    {
+    	this(new PropNetCache());
+    }
+
+    /**
+     * Creates a state machine that keeps its propnets in the given cache.
+     */
+    public HeavensbeePropNetStateMachine(PropNetCache cache)
+    {
+    	this.cache = cache;
+    }
+
+    /**
+     * Creates a state machine for another thread to use, over the same
+     * propnet as an initialized state machine.
+     */
+    protected HeavensbeePropNetStateMachine(HeavensbeePropNetStateMachine shared)
+    {
+    	cache = shared.cache;
+    	propNet = shared.propNet;
+    	roles = shared.roles;
+    	enable_tracing = shared.enable_tracing;
+    	role_tables = shared.role_tables;
+    	context = propNet.createContext();
+    	setUpScratchSpace();
+    }
+
+    /**
+     * Returns a new state machine that shares this one's propnet, but has its
+     * own evaluation context.  A state machine must only be used by one
+     * thread at a time, so give each worker thread its own copy; making one
+     * is cheap as the propnet isn't rebuilt.
+     */
+    public HeavensbeePropNetStateMachine createWorkerCopy()
+    {
+    	return new HeavensbeePropNetStateMachine(this);
+    }
+
     /**
      * Initializes the PropNetStateMachine. You should compute the topological
      * ordering here. Additionally you may compute the initial state here, at
@@ -67,11 +230,23 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
     	//GamerLogger.setSuppressLoggerOutput(true);
 
         try {
-			propNet = OptimizingPropNetFactory.create(description);
+			/**
+			 * Games are played over and over, so keep their propnets on disk
+			 * rather than building them every time.
+			 */
+			propNet = cache.create(description);
 	        roles = propNet.getRoles();
+	        context = propNet.createContext();
 
 	        enable_tracing = false;
 
+	        role_tables = new RoleTables[roles.size()];
+	        for (int ii = 0; ii < roles.size(); ii++)
+	        {
+	        	role_tables[ii] = new RoleTables(propNet, roles.get(ii));
+	        }
+	        setUpScratchSpace();
+
 	        //hb_propnet = new HeavensbeePropnet(propNet);
 
 	        /*ordering = getOrdering();*/
@@ -80,6 +255,39 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 		}
     }
 
+	private static Set<Proposition> getOrEmpty(Map<Role, Set<Proposition>> props, Role role)
+	{
+		Set<Proposition> role_props = props.get(role);
+		return (role_props == null) ? Collections.<Proposition>emptySet() : role_props;
+	}
+
+	private void setUpScratchSpace()
+	{
+		joint_inputs = new int[roles.size()];
+
+		int max_legals = 0;
+		for (RoleTables tables : role_tables)
+		{
+			max_legals = Math.max(max_legals, tables.legal_props.length);
+		}
+
+		charge_legals = new int[max_legals];
+		charge_random = new Random();
+		charge_moves = new int[64 * roles.size()];
+
+		legal_cache_states = new MachineState[roles.size()];
+		legal_cache_lists = new ArrayList<List<Move>>(roles.size());
+		for (int ii = 0; ii < roles.size(); ii++)
+		{
+			legal_cache_lists.add(null);
+		}
+	}
+
+	private RoleTables getRoleTables(Role role)
+	{
+		return role_tables[getRoleIndices().get(role)];
+	}
+
 	/**
 	 * Computes if the state is terminal. Should return the value
 	 * of the terminal proposition for the state.
@@ -88,24 +296,13 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 	public boolean isTerminal(MachineState state) {
 		//GamerLogger.emitToConsole("\n\nStart isTerminal {\n");
 
-		SortedSet<Component> worklist;
-
-//		if (!propNet.use_cache_if_there(state))
-//		{
-			// Mark the base propositions.
-			worklist = propNet.mark_things(state);
-
-			// Forward propagate the bases.
-			propNet.forwardprop(worklist, enable_tracing);
-
-			// Do cache checking here.
-//			propNet.cache_marked_bases(state);
-//		}
+		// Mark the base propositions and forward propagate them.
+		propagate(state, null);
 
 		// Run the propmark algorithm on the terminal prop
 		Proposition termprop = propNet.getTerminalProposition();
 
-		boolean isTerminal = termprop.getValue();
+		boolean isTerminal = getPropValue(termprop);
 
 		// Check the terminal node
 		//GamerLogger.emitToConsole("End isTerminal, returning " + isTerminal + " }\n\n\n");
@@ -124,31 +321,20 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 	throws GoalDefinitionException {
 		//GamerLogger.emitToConsole("\n\nStart getGoal {\n");
 
-		Set<Proposition> goalprops = propNet.getGoalPropositions().get(role);
-
-		SortedSet<Component> worklist;
-
-//		if (!propNet.use_cache_if_there(state))
-//		{
-			// Mark the base propositions.
-			worklist = propNet.mark_things(state);
+		RoleTables tables = getRoleTables(role);
 
-			// Forward propagate the bases.
-			propNet.forwardprop(worklist, enable_tracing);
-
-			// Do cache checking here.
-//			propNet.cache_marked_bases(state);
-//		}
+		// Mark the base propositions and forward propagate them.
+		propagate(state, null);
 
 		int truegoals = 0;
-		Proposition trueprop = null;
+		int reward = 0;
 
-		for (Proposition p: goalprops)
+		for (int ii = 0; ii < tables.goal_props.length; ii++)
 		{
-			if (p.getValue())
+			if (getPropValue(tables.goal_props[ii]))
 			{
 				//GamerLogger.emitToConsole("Goal proposition " + p.getName() + " is true\n");
-				trueprop = p;
+				reward = tables.goal_values[ii];
 				truegoals++;
 			}
 		}
@@ -160,8 +346,6 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 			throw new GoalDefinitionException(state, role);
 		}
 
-		int reward = getGoalValue(trueprop);
-
 		//GamerLogger.emitToConsole("End getGoal, returning " + reward + " }\n\n");
 		return reward;
 	}
@@ -173,7 +357,7 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 	 */
 	@Override
 	public MachineState getInitialState() {
-		MachineState initstate = propNet.mark_init();
+		MachineState initstate = propagateInit();
 		GamerLogger.emitToConsole("Initial state is " + initstate.toString() + "\n");
 		return initstate;
 	}
@@ -186,62 +370,123 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 	throws MoveDefinitionException {
  		//GamerLogger.emitToConsole("\n\n\nStart getLegalMoves {\n");
 
-		SortedSet<Component> worklist;
+		int role_index = getRoleIndices().get(role);
 
-//		if (!propNet.use_cache_if_there(state))
-//		{
-			// Mark the base propositions.
-			worklist = propNet.mark_things(state);
+		/**
+		 * The lists are immutable, so the same one can be handed out every
+		 * time the legal moves of a state are asked for.
+		 */
+		if (state == legal_cache_states[role_index])
+		{
+			return legal_cache_lists.get(role_index);
+		}
 
-			// Forward propagate the bases.
-			propNet.forwardprop(worklist, enable_tracing);
+		// Mark the base propositions and forward propagate them.
+		propagate(state, null);
 
-			// Do cache checking here.
-//			propNet.cache_marked_bases(state);
-//		}
+		return get_propagated_legal_moves(state, role_index);
+	}
 
-		// Get the legal propositions for this role.
-		Set<Proposition> legalprops = propNet.getLegalPropositions().get(role);
+	/**
+	 * Computes the legal moves of every role in a state, propagating the
+	 * state just once for all of them.  The joint moves are only made as
+	 * they are looked at.
+	 */
+	@Override
+	public LegalJointMoves getAllLegalMoves(MachineState state)
+	throws MoveDefinitionException {
+		List<List<Move>> legals = new ArrayList<List<Move>>(roles.size());
+		boolean propagated = false;
+
+		for (int ii = 0; ii < roles.size(); ii++)
+		{
+			if (state == legal_cache_states[ii])
+			{
+				legals.add(legal_cache_lists.get(ii));
+				continue;
+			}
+
+			if (!propagated)
+			{
+				propagate(state, null);
+				propagated = true;
+			}
+
+			legals.add(get_propagated_legal_moves(state, ii));
+		}
 
-		//GamerLogger.emitToConsole("Legal props: " + legalprops.toString() + "\n");
+		return new LegalJointMoves(legals);
+	}
+
+	@Override
+	public List<List<Move>> getLegalJointMoves(MachineState state)
+	throws MoveDefinitionException {
+		return getAllLegalMoves(state);
+	}
+
+	/**
+	 * Reads the legal moves of a role from the last propagate, which must
+	 * have been of the given state, and remembers them for that state.
+	 */
+	private List<Move> get_propagated_legal_moves(MachineState state, int role_index)
+	{
+		// Get the legal propositions for this role.
+		RoleTables tables = role_tables[role_index];
 
-		List<Move> legalmoves = new ArrayList<Move>();
+		int numlegal = 0;
+		int lastlegal = -1;
 
-		for (Proposition p: legalprops)
+		for (int ii = 0; ii < tables.legal_props.length; ii++)
 		{
-			if (p.getValue())
+			if (getPropValue(tables.legal_props[ii]))
 			{
+				numlegal++;
+				lastlegal = ii;
+			}
+		}
 
-//			}
-//
-//			Component s = p.getSingleInput();
-//
-//			if (s.getValue())
-//			{
-				//GamerLogger.emitToConsole("  LEGAL: Proposition " + p.toString() + "\n");
-				Move m = getMoveFromProposition(p);
-				//GamerLogger.emitToConsole("  Move is " + m + "\n");
-				legalmoves.add(m);
+		List<Move> legalmoves;
+
+		if (numlegal == 1)
+		{
+			/**
+			 * Very common, as in most games all but one role has only a noop.
+			 */
+			legalmoves = tables.single_move_lists.get(lastlegal);
+		}
+		else
+		{
+			ImmutableList.Builder<Move> builder = ImmutableList.builder();
+			for (int ii = 0; ii <= lastlegal; ii++)
+			{
+				if (getPropValue(tables.legal_props[ii]))
+				{
+					builder.add(tables.legal_moves[ii]);
+				}
 			}
+			legalmoves = builder.build();
 		}
 
-		if (legalmoves.size() == 0)
+		if (numlegal == 0)
 		{
 			GamerLogger.emitToConsole("Unexpectedly 0 legal moves for role\n");
 			propNet.reveal_hbstate(state);
 
 			// Mark the base propositions.
-			worklist = propNet.mark_things(state);
+			propNet.mark_things(context, state);
 
 			// Forward propagate the bases.
-			propNet.forwardprop(worklist, true);
+			propNet.forwardprop(context, true);
 
 			// Check the legal props
-			propNet.check_legal_props(role);
+			propNet.check_legal_props(context, roles.get(role_index));
 
 			throw new RuntimeException("This is not ok");
 		}
 
+		legal_cache_states[role_index] = state;
+		legal_cache_lists.set(role_index, legalmoves);
+
 		//GamerLogger.emitToConsole("Legal moves: " + legalmoves + " " + legalmoves.size() + "\n");
 
 		//GamerLogger.emitToConsole("End getLegalMoves }\n\n\n");
@@ -258,15 +503,20 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 		//GamerLogger.emitToConsole("Existing state: ");
 		//propNet.reveal_hbstate(state);
 
-		// Convert the list of moves into propositions.
-		List<GdlSentence> doeses = toDoes(moves);
+		if (moves.size() < roles.size())
+		{
+			throw new RuntimeException("Not enough moves for role: " + moves);
+		}
 
-		// Mark the base propositions and the inputs.
-		SortedSet<Component> worklist = propNet.mark_things(state,
-				                		                    doeses);
+		// Convert the list of moves into input propositions.
+		for (int ii = 0; ii < roles.size(); ii++)
+		{
+			Integer input = role_tables[ii].move_inputs.get(moves.get(ii));
+			joint_inputs[ii] = (input == null) ? -1 : input;
+		}
 
-		// Forward propagate the propositions.
-		propNet.forwardprop(worklist, enable_tracing);
+		// Mark the base propositions and the inputs, and forward propagate.
+		propagate(state, joint_inputs);
 
 		// Check that the propnet is set up correctly.
 //		GamerLogger.emitToConsole("Show transitions\n");
@@ -279,7 +529,7 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 //		}
 
 		// Get the next state from the true bases
-		MachineState nextstate = propNet.getStateFromBase();
+		MachineState nextstate = getPropagatedNextState();
 
 		//GamerLogger.emitToConsole("Next state: ");
 		//propNet.reveal_hbstate(nextstate);
@@ -295,6 +545,557 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 		return nextstate;
 	}
 
+	/**
+	 * Returns the number of legal propositions of a role, which is one more
+	 * than the largest legal index of any of its moves.
+	 */
+	public int getNumLegalIndices(int role_index)
+	{
+		return role_tables[role_index].legal_props.length;
+	}
+
+	/**
+	 * Returns the move with the given legal index.
+	 */
+	public Move getMoveByLegalIndex(int role_index, int legal_index)
+	{
+		return role_tables[role_index].legal_moves[legal_index];
+	}
+
+	/**
+	 * Returns the legal index of a move, or -1 if the move can never be
+	 * legal.
+	 */
+	public int getLegalIndex(int role_index, Move move)
+	{
+		Integer legal_index = role_tables[role_index].legal_indices.get(move);
+		return (legal_index == null) ? -1 : legal_index;
+	}
+
+	/**
+	 * Writes the legal indices of the moves that are legal for a role in a
+	 * state into an array, which must have room for getNumLegalIndices
+	 * entries, and returns how many were written.  They are written in the
+	 * same order as getLegalMoves returns the moves.
+	 */
+	public int getLegalIndices(MachineState state, int role_index, int[] legal_indices)
+	{
+		propagate(state, null);
+
+		RoleTables tables = role_tables[role_index];
+		int numlegal = 0;
+
+		for (int ii = 0; ii < tables.legal_props.length; ii++)
+		{
+			if (getPropValue(tables.legal_props[ii]))
+			{
+				legal_indices[numlegal++] = ii;
+			}
+		}
+
+		return numlegal;
+	}
+
+	/**
+	 * Computes the next state given a state and a joint move, as the legal
+	 * index of each role's move, in role order.  This avoids the lookups
+	 * needed to turn Move objects into input propositions.
+	 */
+	public MachineState getNextState(MachineState state, int[] legal_indices)
+	{
+		for (int ii = 0; ii < roles.size(); ii++)
+		{
+			joint_inputs[ii] = role_tables[ii].legal_inputs[legal_indices[ii]];
+		}
+
+		propagate(state, joint_inputs);
+
+		return getPropagatedNextState();
+	}
+
+	/**
+	 * Plays random moves from a state until a terminal state is reached, and
+	 * writes the goal value of each role in the terminal state into goals,
+	 * in role order.
+	 *
+	 * This does the same as performTimedDepthCharge followed by getGoals,
+	 * but steps from state to state inside the propnet rather than making a
+	 * MachineState and a list of Moves for every ply, so allocates nothing.
+	 *
+	 * @param state
+	 *            The state to start from, which is left unchanged.
+	 * @param deadline
+	 *            The time after which to give up.
+	 * @param goals
+	 *            Filled with the goal values; at least one entry per role.
+	 * @return The number of moves made.
+	 * @throws TimeToGetMovingException
+	 *            If the deadline passes before a terminal state is reached.
+	 */
+	public int performFastDepthCharge(MachineState state, long deadline, int[] goals)
+	throws TimeToGetMovingException, MoveDefinitionException, GoalDefinitionException {
+		int depth = 0;
+
+		propagate(state, null);
+
+		while (!getPropValue(propNet.getTerminalProposition()))
+		{
+			if (System.currentTimeMillis() > deadline)
+			{
+				throw new TimeToGetMovingException(state);
+			}
+
+			/**
+			 * Pick a random legal move for each role.
+			 */
+			for (int ii = 0; ii < role_tables.length; ii++)
+			{
+				RoleTables tables = role_tables[ii];
+				int numlegal = 0;
+
+				for (int jj = 0; jj < tables.legal_props.length; jj++)
+				{
+					if (getPropValue(tables.legal_props[jj]))
+					{
+						charge_legals[numlegal++] = jj;
+					}
+				}
+
+				if (numlegal == 0)
+				{
+					throw new MoveDefinitionException(state, roles.get(ii));
+				}
+
+				joint_inputs[ii] = tables.legal_inputs[charge_legals[charge_random.nextInt(numlegal)]];
+			}
+
+			/**
+			 * Mark the moves to get the next state, then move to it.
+			 */
+			propagateInputs(joint_inputs);
+			propagateNextState();
+			depth++;
+		}
+
+		get_propagated_goals(state, goals);
+
+		return depth;
+	}
+
+	/**
+	 * Plays moves from a state until a terminal state is reached, as
+	 * performFastDepthCharge does, but guided by a value for every move.
+	 * Each role plays a random legal move with probability epsilon, and
+	 * otherwise its legal move with the highest value, ties being broken at
+	 * random.
+	 *
+	 * The legal index of every move made is kept, role by role for each
+	 * ply in turn, and can be read from getChargeMoves until the next
+	 * guided depth charge.
+	 *
+	 * @param state
+	 *            The state to start from, which is left unchanged.
+	 * @param deadline
+	 *            The time after which to give up.
+	 * @param goals
+	 *            Filled with the goal values; at least one entry per role.
+	 * @param move_values
+	 *            The value of each role's moves, by role index and then
+	 *            legal index.  A role's array may be shorter than
+	 *            getNumLegalIndices, in which case its other moves are
+	 *            valued at unseen_value.
+	 * @param unseen_value
+	 *            The value of moves missing from move_values.
+	 * @param epsilon
+	 *            The probability of a role playing a random move.
+	 * @return The number of moves made.
+	 * @throws TimeToGetMovingException
+	 *            If the deadline passes before a terminal state is reached.
+	 */
+	public int performGuidedDepthCharge(MachineState state, long deadline, int[] goals,
+	                                    double[][] move_values, double unseen_value, double epsilon)
+	throws TimeToGetMovingException, MoveDefinitionException, GoalDefinitionException {
+		int depth = 0;
+		int num_charge_moves = 0;
+
+		propagate(state, null);
+
+		while (!getPropValue(propNet.getTerminalProposition()))
+		{
+			if (System.currentTimeMillis() > deadline)
+			{
+				throw new TimeToGetMovingException(state);
+			}
+
+			if (num_charge_moves + role_tables.length > charge_moves.length)
+			{
+				charge_moves = Arrays.copyOf(charge_moves, charge_moves.length * 2);
+			}
+
+			for (int ii = 0; ii < role_tables.length; ii++)
+			{
+				RoleTables tables = role_tables[ii];
+				double[] values = move_values[ii];
+				boolean explore = (charge_random.nextDouble() < epsilon);
+				double best_value = Double.NEGATIVE_INFINITY;
+				int chosen = -1;
+				int numlegal = 0;
+				int numbest = 0;
+
+				for (int jj = 0; jj < tables.legal_props.length; jj++)
+				{
+					if (getPropValue(tables.legal_props[jj]))
+					{
+						charge_legals[numlegal++] = jj;
+
+						if (!explore)
+						{
+							double value = (jj < values.length) ? values[jj] : unseen_value;
+
+							/**
+							 * Keep the best move, choosing evenly between
+							 * equally good ones as they are found.
+							 */
+							if (value > best_value)
+							{
+								best_value = value;
+								chosen = jj;
+								numbest = 1;
+							}
+							else if ((value == best_value) &&
+							         (charge_random.nextInt(++numbest) == 0))
+							{
+								chosen = jj;
+							}
+						}
+					}
+				}
+
+				if (numlegal == 0)
+				{
+					throw new MoveDefinitionException(state, roles.get(ii));
+				}
+
+				if (explore)
+				{
+					chosen = charge_legals[charge_random.nextInt(numlegal)];
+				}
+
+				joint_inputs[ii] = tables.legal_inputs[chosen];
+				charge_moves[num_charge_moves++] = chosen;
+			}
+
+			propagateInputs(joint_inputs);
+			propagateNextState();
+			depth++;
+		}
+
+		get_propagated_goals(state, goals);
+
+		return depth;
+	}
+
+	/**
+	 * Returns the legal indices of the moves made by the last guided depth
+	 * charge, role by role for each ply in turn, so that the index of the
+	 * move made by role r at ply p is at p * (number of roles) + r.  Only
+	 * as many entries as the charge made moves are meaningful; the array
+	 * is overwritten by the next guided depth charge.
+	 */
+	public int[] getChargeMoves()
+	{
+		return charge_moves;
+	}
+
+	/**
+	 * Works out whether a state is terminal and, if it is, every role's goal
+	 * value, from a single propagation.
+	 */
+	@Override
+	public boolean getTerminalAndGoals(MachineState state, int[] goals)
+	throws GoalDefinitionException {
+		propagate(state, null);
+
+		if (!getPropValue(propNet.getTerminalProposition()))
+		{
+			return false;
+		}
+
+		get_propagated_goals(state, goals);
+		return true;
+	}
+
+	/**
+	 * Reads the goal value of every role from the last propagate, in role
+	 * order.  The state is only used for the exception if a role hasn't got
+	 * exactly one goal.
+	 */
+	private void get_propagated_goals(MachineState state, int[] goals)
+	throws GoalDefinitionException {
+		for (int ii = 0; ii < role_tables.length; ii++)
+		{
+			RoleTables tables = role_tables[ii];
+			int truegoals = 0;
+
+			for (int jj = 0; jj < tables.goal_props.length; jj++)
+			{
+				if (getPropValue(tables.goal_props[jj]))
+				{
+					goals[ii] = tables.goal_values[jj];
+					truegoals++;
+				}
+			}
+
+			if (truegoals != 1)
+			{
+				throw new GoalDefinitionException(state, roles.get(ii));
+			}
+		}
+	}
+
+	/**
+	 * Evaluates a batch of up to BatchedPropNet.LANES states at once, for
+	 * the getBatch... queries, which answer for each state in its lane: the
+	 * state at index l of the array is in lane l, which is bit l of each
+	 * mask.
+	 *
+	 * @param states
+	 *            The states to evaluate.
+	 * @param num_states
+	 *            How many of them to evaluate.
+	 * @return The lanes whose state is terminal.
+	 */
+	public long evaluateBatch(MachineState[] states, int num_states)
+	{
+		return evaluateBatch(states, null, num_states);
+	}
+
+	/**
+	 * Evaluates a batch of states as above, each with a joint move, so that
+	 * getBatchNextState gives the state each joint move leads to.
+	 *
+	 * @param joint_moves
+	 *            The joint move for each lane, as the legal index of each
+	 *            role's move, in role order.
+	 */
+	public long evaluateBatch(MachineState[] states, int[][] joint_moves, int num_states)
+	{
+		BatchedPropNet batch = getBatch();
+		batch.clear();
+
+		for (int lane = 0; lane < num_states; lane++)
+		{
+			batch.setBases(states[lane], 1L << lane);
+
+			if (joint_moves != null)
+			{
+				for (int ii = 0; ii < role_tables.length; ii++)
+				{
+					batch.setInput(role_tables[ii].legal_inputs[joint_moves[lane][ii]], 1L << lane);
+				}
+			}
+		}
+
+		batch.propagate();
+
+		return getBatchTerminalMask() & lanes_mask(num_states);
+	}
+
+	private static long lanes_mask(int num_lanes)
+	{
+		return (num_lanes >= BatchedPropNet.LANES) ? -1L : (1L << num_lanes) - 1;
+	}
+
+	/**
+	 * Returns the lanes whose state is terminal, after evaluateBatch.
+	 */
+	public long getBatchTerminalMask()
+	{
+		return getBatch().getMask(propNet.getTerminalProposition());
+	}
+
+	/**
+	 * Returns the lanes in which the move with the given legal index is legal
+	 * for a role, after evaluateBatch.
+	 */
+	public long getBatchLegalMask(int role_index, int legal_index)
+	{
+		return getBatch().getMask(role_tables[role_index].legal_props[legal_index]);
+	}
+
+	/**
+	 * Returns the lanes in which a role has the given goal value, after
+	 * evaluateBatch.
+	 */
+	public long getBatchGoalMask(int role_index, int goal_value)
+	{
+		RoleTables tables = role_tables[role_index];
+		long mask = 0;
+
+		for (int ii = 0; ii < tables.goal_props.length; ii++)
+		{
+			if (tables.goal_values[ii] == goal_value)
+			{
+				mask |= getBatch().getMask(tables.goal_props[ii]);
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Returns the state that the joint move of a lane leads to, after
+	 * evaluateBatch with joint moves.
+	 */
+	public MachineState getBatchNextState(int lane)
+	{
+		return getBatch().getNextState(lane);
+	}
+
+	/**
+	 * Plays BatchedPropNet.LANES random games from a state at once, one per
+	 * lane, and writes the goal value of each role in each game's terminal
+	 * state into goals, by lane and then role.
+	 *
+	 * Each ply takes two passes over the propnet whichever number of games
+	 * are still going, so this gets through many more games per second than
+	 * performFastDepthCharge, though they all finish together.
+	 *
+	 * @param state
+	 *            The state to start from.
+	 * @param deadline
+	 *            The time after which to give up.
+	 * @param goals
+	 *            Filled with the goal values; at least one entry per lane,
+	 *            each with at least one entry per role.
+	 * @return The total number of moves made over all the games.
+	 * @throws TimeToGetMovingException
+	 *            If the deadline passes before every game has finished.
+	 */
+	public int performBatchedDepthCharges(MachineState state, long deadline, int[][] goals)
+	throws TimeToGetMovingException, MoveDefinitionException, GoalDefinitionException {
+		BatchedPropNet batch = getBatch();
+		int depth = 0;
+		long live = -1L;
+
+		batch.clear();
+		batch.setBases(state, live);
+
+		while (true)
+		{
+			batch.propagate();
+
+			long terminal = batch.getMask(propNet.getTerminalProposition()) & live;
+			if (terminal != 0)
+			{
+				get_batch_goals(state, terminal, goals);
+				live &= ~terminal;
+
+				if (live == 0)
+				{
+					break;
+				}
+			}
+
+			if (System.currentTimeMillis() > deadline)
+			{
+				throw new TimeToGetMovingException(state);
+			}
+
+			/**
+			 * Pick a random legal move for each role in each lane still
+			 * going, by reservoir sampling over the legal masks.
+			 */
+			for (int ii = 0; ii < role_tables.length; ii++)
+			{
+				RoleTables tables = role_tables[ii];
+				Arrays.fill(batch_num_legals, 0);
+
+				for (int jj = 0; jj < tables.legal_props.length; jj++)
+				{
+					long legal = batch.getMask(tables.legal_props[jj]) & live;
+					while (legal != 0)
+					{
+						int lane = Long.numberOfTrailingZeros(legal);
+						legal &= legal - 1;
+
+						if (charge_random.nextInt(++batch_num_legals[lane]) == 0)
+						{
+							batch_choices[lane] = jj;
+						}
+					}
+				}
+
+				for (long lanes = live; lanes != 0; lanes &= lanes - 1)
+				{
+					int lane = Long.numberOfTrailingZeros(lanes);
+					if (batch_num_legals[lane] == 0)
+					{
+						throw new MoveDefinitionException(state, roles.get(ii));
+					}
+
+					batch.setInput(tables.legal_inputs[batch_choices[lane]], 1L << lane);
+				}
+			}
+
+			/**
+			 * Mark the moves to get the next states, then move to them.
+			 */
+			batch.propagate();
+			batch.advance(live);
+			batch.clearInputs();
+			depth += Long.bitCount(live);
+		}
+
+		return depth;
+	}
+
+	/**
+	 * Writes the goal values of the given lanes, which must be terminal,
+	 * after a batch propagate.
+	 */
+	private void get_batch_goals(MachineState state, long lanes, int[][] goals)
+	throws GoalDefinitionException {
+		for (int ii = 0; ii < role_tables.length; ii++)
+		{
+			RoleTables tables = role_tables[ii];
+			long seen = 0;
+
+			for (int jj = 0; jj < tables.goal_props.length; jj++)
+			{
+				long goal = batch.getMask(tables.goal_props[jj]) & lanes;
+				if ((goal & seen) != 0)
+				{
+					throw new GoalDefinitionException(state, roles.get(ii));
+				}
+				seen |= goal;
+
+				while (goal != 0)
+				{
+					goals[Long.numberOfTrailingZeros(goal)][ii] = tables.goal_values[jj];
+					goal &= goal - 1;
+				}
+			}
+
+			if (seen != lanes)
+			{
+				throw new GoalDefinitionException(state, roles.get(ii));
+			}
+		}
+	}
+
+	private BatchedPropNet getBatch()
+	{
+		if (batch == null)
+		{
+			batch = new BatchedPropNet(propNet);
+			batch_num_legals = new int[BatchedPropNet.LANES];
+			batch_choices = new int[BatchedPropNet.LANES];
+		}
+
+		return batch;
+	}
+
 	/**
 	 * This should compute the topological ordering of propositions.
 	 * Each component is either a proposition, logical gate, or transition.
@@ -350,43 +1151,92 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 		//return order;
 	}
 
-	/* Already implemented for you */
-	@Override
-	public List<Role> getRoles() {
-		return roles;
-	}
-
-	/* Helper methods */
-
 	/**
-	 * The Input propositions are indexed by (does ?player ?action).
+	 * Marks the bases of the given state and the given inputs, and forward
+	 * propagates them; the values are then read with getPropValue.  Inputs
+	 * are given by component index, with negative indices ignored.
 	 *
-	 * This translates a list of Moves (backed by a sentence that is simply ?action)
-	 * into GdlSentences that can be used to get Propositions from inputPropositions.
-	 * and accordingly set their values etc.  This is a naive implementation when coupled with
-	 * setting input values, feel free to change this for a more efficient implementation.
-	 *
-	 * @param moves
-	 * @return
+	 * This and the methods after it are the only places that evaluate the
+	 * propnet, so a subclass can run a different evaluator by overriding
+	 * them.
 	 */
-	private List<GdlSentence> toDoes(List<Move> moves)
+	protected void propagate(MachineState state, int[] input_indices)
 	{
-		if (moves.size() < roles.size())
+		/**
+		 * Queries on the state that was last propagated don't need to do it
+		 * again.  Inputs are only marked to get a next state, which is never
+		 * asked for twice, so there's no point remembering those.
+		 */
+		if (input_indices != null || !propNet.use_cache_if_there(context, state))
 		{
-			throw new RuntimeException("Not enough moves for role: " + moves);
+			propNet.mark_things_indexed(context, state, input_indices);
+			propNet.forwardprop(context, enable_tracing);
+
+			if (input_indices == null)
+			{
+				propNet.cache_marked_bases(context, state);
+			}
 		}
+	}
 
-		List<GdlSentence> doeses = new ArrayList<GdlSentence>(moves.size());
-		Map<Role, Integer> roleIndices = getRoleIndices();
+	/**
+	 * Propagates the bases of the last propagate again, with the given
+	 * inputs in place of the ones marked then.
+	 */
+	protected void propagateInputs(int[] input_indices)
+	{
+		propNet.mark_inputs(context, input_indices);
+		propNet.forwardprop(context, enable_tracing);
+	}
 
-		for (int i = 0; i < roles.size(); i++)
-		{
-			int index = roleIndices.get(roles.get(i));
-			doeses.add(ProverQueryBuilder.toDoes(roles.get(i), moves.get(index)));
-		}
-		return doeses;
+	/**
+	 * Propagates the state set by the transitions after the last propagate,
+	 * with no inputs, without making a MachineState for it.
+	 */
+	protected void propagateNextState()
+	{
+		propNet.mark_next_state(context);
+		propNet.forwardprop(context, enable_tracing);
 	}
 
+	/**
+	 * Returns the value of a proposition after the last propagate.
+	 */
+	protected boolean getPropValue(Proposition p)
+	{
+		return p.getValue(context);
+	}
+
+	/**
+	 * Returns the state set by the transitions after the last propagate.
+	 */
+	protected MachineState getPropagatedNextState()
+	{
+		return propNet.getStateFromBase(context);
+	}
+
+	/**
+	 * Marks only the init proposition, propagates it and returns the state
+	 * set by the transitions.
+	 */
+	protected MachineState propagateInit()
+	{
+		return propNet.mark_init(context);
+	}
+
+	public PropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	/* Already implemented for you */
+	@Override
+	public List<Role> getRoles() {
+		return roles;
+	}
+
+	/* Helper methods */
+
 	/**
 	 * Takes in a Legal Proposition and returns the appropriate corresponding Move
 	 * @param p
@@ -402,7 +1252,7 @@ public class HeavensbeePropNetStateMachine extends StateMachine {
 	 * @param goalProposition
 	 * @return the integer value of the goal proposition
 	 */
-    private int getGoalValue(Proposition goalProposition)
+    private static int getGoalValue(Proposition goalProposition)
 	{
 		GdlRelation relation = (GdlRelation) goalProposition.getName();
 		GdlConstant constant = (GdlConstant) relation.get(1);
@@ -2,6 +2,7 @@ package org.ggp.base.util.statemachine.implementation.prover;
 
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -76,6 +77,55 @@ public class ProverStateMachine extends StateMachine
 		}
 	}
 
+	/**
+	 * Asks for the goals of all the roles with one query, rather than one
+	 * query per role.
+	 */
+	@Override
+	public boolean getTerminalAndGoals(MachineState state, int[] goals) throws GoalDefinitionException
+	{
+		Set<GdlSentence> context = ProverQueryBuilder.getContext(state);
+		if (!prover.prove(ProverQueryBuilder.getTerminalQuery(), context))
+		{
+			return false;
+		}
+
+		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getGoalsQuery(), context);
+		Map<Role, Integer> roleIndices = getRoleIndices();
+		int[] numGoals = new int[roles.size()];
+
+		for (GdlSentence result : results)
+		{
+			GdlRelation relation = (GdlRelation) result;
+			Integer roleIndex = roleIndices.get(new Role((GdlConstant) relation.get(0)));
+			if (roleIndex == null)
+			{
+				continue;
+			}
+
+			try
+			{
+				goals[roleIndex] = Integer.parseInt(relation.get(1).toString());
+			}
+			catch (NumberFormatException e)
+			{
+				throw new GoalDefinitionException(state, roles.get(roleIndex));
+			}
+			numGoals[roleIndex]++;
+		}
+
+		for (int i = 0; i < roles.size(); i++)
+		{
+			if (numGoals[i] != 1)
+			{
+				GamerLogger.logError("StateMachine", "Got " + numGoals[i] + " goal results for " + roles.get(i) + " when expecting one.");
+				throw new GoalDefinitionException(state, roles.get(i));
+			}
+		}
+
+		return true;
+	}
+
 	@Override
 	public MachineState getInitialState()
 	{
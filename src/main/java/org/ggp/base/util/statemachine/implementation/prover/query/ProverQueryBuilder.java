@@ -21,6 +21,7 @@ public final class ProverQueryBuilder
 
 	private final static GdlConstant DOES = GdlPool.getConstant("does");
 	private final static GdlConstant GOAL = GdlPool.getConstant("goal");
+	private final static GdlRelation GOALS_QUERY = GdlPool.getRelation(GOAL, new GdlTerm[] { GdlPool.getVariable("?r"), GdlPool.getVariable("?x") });
 	private final static GdlRelation INIT_QUERY = GdlPool.getRelation(GdlPool.getConstant("init"), new GdlTerm[] { GdlPool.getVariable("?x") });
 	private final static GdlConstant LEGAL = GdlPool.getConstant("legal");
 	private final static GdlRelation NEXT_QUERY = GdlPool.getRelation(GdlPool.getConstant("next"), new GdlTerm[] { GdlPool.getVariable("?x") });
@@ -48,6 +49,11 @@ public final class ProverQueryBuilder
 		return GdlPool.getRelation(GOAL, new GdlTerm[] { role.getName(), VARIABLE });
 	}
 
+	public static GdlRelation getGoalsQuery()
+	{
+		return GOALS_QUERY;
+	}
+
 	public static GdlRelation getInitQuery()
 	{
 		return INIT_QUERY;
@@ -0,0 +1,480 @@
+package org.ggp.base.player.gamer.statemachine.heavensbee;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Runs several workers at once, over one shared tree or a tree each, and
+ * checks that the trees hold together afterwards.
+ */
+public class MCTSMPWorkerTest extends Assert {
+
+    private static final int NUM_WORKERS = 4;
+
+    /** Low enough that most rollout moves are chosen by their averages. */
+    private static final double MAST_EPSILON = 0.4;
+
+    /** Keeps the propnets these tests build out of the working directory. */
+    private static final PropNetCache CACHE = new PropNetCache(Files.createTempDir());
+
+    @Test
+    public void testWorkersShareOneTree() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        MCTSMPWorker[] workers = new MCTSMPWorker[NUM_WORKERS];
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            workers[i] = new MCTSMPWorker(gamer, propnet.createWorkerCopy());
+            workers[i].prepare(tree, System.currentTimeMillis() + 1000);
+        }
+        int simulations = runWorkers(workers);
+
+        // Every simulation reaches the root, and no virtual losses are left.
+        assertEquals(simulations, tree.effective_visits(tree.root()));
+        assertEquals(simulations, tree.visits(tree.root()));
+        assertEquals(1, gamer.game_type);
+        assertLegal(propnet, tree.most_appropriate_move());
+    }
+
+    @Test
+    public void testWorkersSearchTreesOfTheirOwn() throws Exception {
+        StateMachine prover = new CachedStateMachine(new ProverStateMachine());
+        prover.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(prover);
+
+        MCTSMPWorker[] workers = new MCTSMPWorker[NUM_WORKERS];
+        MCTSMPTree[] trees = new MCTSMPTree[NUM_WORKERS];
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            StateMachine sm = new CachedStateMachine(new ProverStateMachine());
+            sm.initialize(getRules());
+            trees[i] = new MCTSMPTree(gamer, prover.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+            workers[i] = new MCTSMPWorker(gamer, sm);
+            workers[i].prepare(trees[i], System.currentTimeMillis() + 1000);
+        }
+        runWorkers(workers);
+
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            assertEquals(workers[i].getSimulations(), trees[i].effective_visits(trees[i].root()));
+        }
+        assertLegal(prover, MCTSMPTree.most_appropriate_move(trees));
+
+        // A tree that didn't get past its root starts afresh when culled.
+        MachineState next = prover.getRandomNextState(prover.getInitialState());
+        MCTSMPTree unsearched = new MCTSMPTree(gamer, prover.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        unsearched.cull(next);
+        assertEquals(1, unsearched.size());
+        assertEquals(next, unsearched.state(unsearched.root()));
+    }
+
+    @Test
+    public void testTranspositionsShareNodes() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        search(gamer, propnet, tree, 500);
+
+        // Each state has one node, and some have several parents.
+        Map<Integer, Set<Integer>> parents = findParents(tree);
+        Set<MachineState> states = new HashSet<MachineState>();
+        int transpositions = 0;
+        for (Map.Entry<Integer, Set<Integer>> entry : parents.entrySet()) {
+            states.add(tree.state(entry.getKey()));
+            if (entry.getValue().size() > 1) {
+                transpositions++;
+            }
+        }
+        assertEquals(parents.size(), states.size());
+        assertEquals(parents.size(), tree.size());
+        assertTrue(transpositions > 0);
+
+        // Culling keeps exactly the nodes that can still be reached, along
+        // with their statistics, renumbered from zero.
+        int child = firstChild(tree, tree.root());
+        MachineState childState = tree.state(child);
+        int childVisits = tree.visits(child);
+        tree.cull(childState);
+        assertEquals(childState, tree.state(tree.root()));
+        assertEquals(childVisits, tree.visits(tree.root()));
+        assertEquals(findParents(tree).size(), tree.size());
+        assertTrue(tree.size() < states.size());
+
+        // The room freed by culling is used again.
+        search(gamer, propnet, tree, 200);
+        assertEquals(findParents(tree).size(), tree.size());
+    }
+
+    @Test
+    public void testTreeStaysWithinItsLimit() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        // Children are made one at a time, so the tree fills right up.
+        int maxNodes = 200;
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), maxNodes);
+        int simulations = search(gamer, propnet, tree, 500);
+
+        assertEquals(maxNodes, tree.size());
+        assertTrue(simulations > maxNodes);
+        assertEquals(simulations, tree.visits(tree.root()));
+        assertLegal(propnet, tree.most_appropriate_move());
+    }
+
+    @Test
+    public void testPruningKeepsTheMostVisitedNodes() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        int simulations = search(gamer, propnet, tree, 500);
+        int oldSize = tree.size();
+
+        // The root and its children stay, along with their statistics.
+        tree.prune(oldSize / 2);
+        assertTrue(tree.size() <= oldSize / 2);
+        assertEquals(findParents(tree).size(), tree.size());
+        assertEquals(simulations, tree.visits(tree.root()));
+        assertEquals(propnet.getInitialState(), tree.state(tree.root()));
+        for (int child : tree.children(tree.root())) {
+            assertTrue(child != MCTSMPTree.NO_NODE);
+            assertTrue(tree.visits(child) > 0);
+        }
+        int prunedSize = tree.size();
+
+        // Nodes pruned back to leaves are expanded again as they're reached.
+        search(gamer, propnet, tree, 200);
+        assertEquals(findParents(tree).size(), tree.size());
+        assertTrue(tree.size() > prunedSize);
+    }
+
+    @Test
+    public void testRaveCollectsAllMovesAsFirst() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+        gamer.setRaveEquivalence(HeavensbeeMCTSMP.DEFAULT_RAVE_EQUIVALENCE);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        assertTrue(tree.rave());
+        int simulations = search(gamer, propnet, tree, 500);
+
+        // The first player makes several moves in each rollout, and every
+        // one of them counts for the root.
+        int numMoves = tree.children(tree.root()).length;
+        int amafVisits = 0;
+        for (int move = 0; move < numMoves; move++) {
+            assertTrue(tree.amaf_visits(tree.root(), move) > 0);
+            amafVisits += tree.amaf_visits(tree.root(), move);
+        }
+        assertTrue(amafVisits > simulations);
+
+        // The statistics are kept when the tree is culled.
+        int child = firstChild(tree, tree.root());
+        int[] childAmaf = new int[tree.children(child).length];
+        for (int move = 0; move < childAmaf.length; move++) {
+            childAmaf[move] = tree.amaf_visits(child, move);
+        }
+        tree.cull(tree.state(child));
+        for (int move = 0; move < childAmaf.length; move++) {
+            assertEquals(childAmaf[move], tree.amaf_visits(tree.root(), move));
+        }
+        search(gamer, propnet, tree, 100);
+        assertTrue(tree.amaf_visits(tree.root(), 0) >= childAmaf[0]);
+    }
+
+    @Test
+    public void testMastAveragesEveryMoveMade() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        // On a propnet, moves are numbered by legal index from the start.
+        MastTable mast = new MastTable(propnet, MAST_EPSILON);
+        List<Move> firstMoves = propnet.getLegalMoves(propnet.getInitialState(), propnet.getRoles().get(0));
+        for (Move move : firstMoves) {
+            assertEquals(propnet.getLegalIndex(0, move), mast.index(0, move));
+            assertEquals(MastTable.UNSEEN_VALUE, mast.average(0, mast.index(0, move)), 0);
+        }
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        MCTSMPWorker[] workers = new MCTSMPWorker[NUM_WORKERS];
+        for (int i = 0; i < NUM_WORKERS; i++) {
+            workers[i] = new MCTSMPWorker(gamer, propnet.createWorkerCopy(), mast);
+            workers[i].prepare(tree, System.currentTimeMillis() + 500);
+        }
+        int simulations = runWorkers(workers);
+        assertMastCounted(mast, firstMoves, simulations);
+
+        // Any other machine numbers moves as they're first made.
+        StateMachine prover = new CachedStateMachine(new ProverStateMachine());
+        prover.initialize(getRules());
+        mast = new MastTable(prover, MAST_EPSILON);
+        tree = new MCTSMPTree(gamer, prover.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        MCTSMPWorker worker = new MCTSMPWorker(gamer, prover, mast);
+        worker.prepare(tree, System.currentTimeMillis() + 500);
+        simulations = runWorkers(new MCTSMPWorker[] {worker});
+        assertMastCounted(mast, firstMoves, simulations);
+    }
+
+    @Test
+    public void testSimultaneousMovesAreDecoupled() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(new TestGameRepository().getGame("pickHigher").getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        search(gamer, propnet, tree, 500);
+        assertTrue(tree.decoupled(tree.root()));
+
+        // Every simulation but the root's first makes a move for each
+        // player, and each player has tried all of theirs.
+        for (int role = 0; role < 2; role++) {
+            int visits = 0;
+            for (int move = 0; move < 10; move++) {
+                assertTrue(tree.move_visits(tree.root(), role, move) > 0);
+                visits += tree.move_visits(tree.root(), role, move);
+            }
+            assertEquals(tree.visits(tree.root()) - 1, visits);
+        }
+
+        // Only the number that can't lose is worth picking.
+        assertEquals("( pick 9 )", tree.most_appropriate_move().toString());
+
+        // The statistics are kept when the tree is pruned.
+        int[] visits = new int[10];
+        for (int move = 0; move < 10; move++) {
+            visits[move] = tree.move_visits(tree.root(), 0, move);
+        }
+        tree.prune(tree.size() / 2);
+        for (int move = 0; move < 10; move++) {
+            assertEquals(visits[move], tree.move_visits(tree.root(), 0, move));
+        }
+        search(gamer, propnet, tree, 100);
+    }
+
+    @Test
+    public void testChildrenAreMadeOneAtATime() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        MCTSMPTree.Path path = new MCTSMPTree.Path();
+        double[] utilities = new double[2];
+
+        // The root is simulated first, and expanding it makes no children.
+        assertEquals(tree.root(), tree.select(path, propnet));
+        tree.expand(tree.root(), propnet);
+        tree.backpropagate(path, utilities);
+        int numMoves = tree.children(tree.root()).length;
+        assertEquals(9, numMoves);
+        assertEquals(1, tree.size());
+
+        // Then each selection tries one more of its moves, until all have
+        // been tried, before going any deeper.
+        Set<Integer> tried = new HashSet<Integer>();
+        for (int ii = 1; ii <= numMoves; ii++) {
+            path.clear();
+            int child = tree.select(path, propnet);
+            assertEquals(2, path.size());
+            assertTrue(tried.add(child));
+            assertEquals(ii + 1, tree.size());
+            tree.expand(child, propnet);
+            tree.backpropagate(path, utilities);
+        }
+        for (int child : tree.children(tree.root())) {
+            assertTrue(tried.contains(child));
+        }
+
+        path.clear();
+        tree.select(path, propnet);
+        assertEquals(3, path.size());
+    }
+
+    @Test
+    public void testFailedMoveIsTriedAgain() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE) {
+            private boolean failed = false;
+
+            @Override
+            public MachineState getNextState(MachineState state, List<Move> moves)
+                    throws TransitionDefinitionException {
+                if (!failed) {
+                    failed = true;
+                    throw new TransitionDefinitionException(state, moves);
+                }
+                return super.getNextState(state, moves);
+            }
+        };
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        MCTSMPTree.Path path = new MCTSMPTree.Path();
+        double[] utilities = new double[2];
+        assertEquals(tree.root(), tree.select(path, propnet));
+        tree.expand(tree.root(), propnet);
+        tree.backpropagate(path, utilities);
+
+        path.clear();
+        try {
+            tree.select(path, propnet);
+            fail("Made a child despite the failure");
+        } catch (TransitionDefinitionException e) {
+            // Expected
+        }
+        assertEquals(1, tree.size());
+
+        // The failed move is handed out again, so every move still gets a
+        // child.
+        int numMoves = tree.children(tree.root()).length;
+        for (int ii = 1; ii <= numMoves; ii++) {
+            path.clear();
+            tree.select(path, propnet);
+            assertEquals(ii + 1, tree.size());
+            tree.backpropagate(path, utilities);
+        }
+        for (int child : tree.children(tree.root())) {
+            assertTrue(child != MCTSMPTree.NO_NODE);
+        }
+    }
+
+    @Test
+    public void testWorkerStopsWhenHalted() throws Exception {
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(getRules());
+        HeavensbeeMCTSMP gamer = createGamer(propnet);
+
+        // A pondering worker has no deadline of its own.
+        MCTSMPTree tree = new MCTSMPTree(gamer, propnet.getInitialState(), HeavensbeeMCTSMP.DEFAULT_MAX_NODES);
+        MCTSMPWorker worker = new MCTSMPWorker(gamer, propnet.createWorkerCopy());
+        worker.prepare(tree, Long.MAX_VALUE);
+        Thread thread = new Thread(worker);
+        thread.start();
+        Thread.sleep(200);
+
+        worker.halt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(worker.getFailure());
+        assertTrue(worker.getSimulations() > 0);
+        assertEquals(worker.getSimulations(), tree.effective_visits(tree.root()));
+
+        // The tree can be culled and searched again afterwards.
+        tree.cull(tree.state(firstChild(tree, tree.root())));
+        assertTrue(search(gamer, propnet, tree, 100) > 0);
+    }
+
+    private static int firstChild(MCTSMPTree tree, int node) {
+        for (int child : tree.children(node)) {
+            if (child != MCTSMPTree.NO_NODE) {
+                return child;
+            }
+        }
+        throw new AssertionError("Node " + node + " has no children");
+    }
+
+    /**
+     * Returns every node that can be reached from the root, along with its
+     * parents among them.
+     */
+    private static Map<Integer, Set<Integer>> findParents(MCTSMPTree tree) {
+        Map<Integer, Set<Integer>> parents = new HashMap<Integer, Set<Integer>>();
+        parents.put(tree.root(), new HashSet<Integer>());
+        int[] toVisit = new int[tree.size()];
+        int numToVisit = 0;
+        toVisit[numToVisit++] = tree.root();
+        while (numToVisit > 0) {
+            int node = toVisit[--numToVisit];
+            for (int child : tree.children(node)) {
+                if (child == MCTSMPTree.NO_NODE) {
+                    continue;
+                }
+                if (!parents.containsKey(child)) {
+                    parents.put(child, new HashSet<Integer>());
+                    toVisit[numToVisit++] = child;
+                }
+                parents.get(child).add(node);
+            }
+        }
+        return parents;
+    }
+
+    private static List<Gdl> getRules() {
+        return new TestGameRepository().getGame("ticTacToe").getRules();
+    }
+
+    private static HeavensbeeMCTSMP createGamer(StateMachine sm) {
+        HeavensbeeMCTSMP gamer = new HeavensbeeMCTSMP();
+        gamer.game_role_indices = sm.getRoleIndices();
+        gamer.game_role_index = 0;
+        gamer.game_type = -1;
+        return gamer;
+    }
+
+    private static int search(HeavensbeeMCTSMP gamer, StateMachine sm, MCTSMPTree tree, long millis)
+            throws InterruptedException {
+        MCTSMPWorker worker = new MCTSMPWorker(gamer, sm);
+        worker.prepare(tree, System.currentTimeMillis() + millis);
+        return runWorkers(new MCTSMPWorker[] {worker});
+    }
+
+    private static int runWorkers(MCTSMPWorker[] workers) throws InterruptedException {
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i]);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int simulations = 0;
+        for (MCTSMPWorker worker : workers) {
+            assertNull(worker.getFailure());
+            assertTrue(worker.getSimulations() > 0);
+            simulations += worker.getSimulations();
+        }
+        return simulations;
+    }
+
+    private static void assertMastCounted(MastTable mast, List<Move> firstMoves, int simulations) {
+        // Every first move has been made, and each rollout makes several
+        // moves, all of which count.
+        int counted = 0;
+        for (Move move : firstMoves) {
+            int index = mast.index(0, move);
+            assertTrue(mast.count(0, index) > 0);
+            assertTrue(mast.average(0, index) >= 0 && mast.average(0, index) <= 1);
+            counted += mast.count(0, index);
+        }
+        assertTrue(counted > simulations);
+    }
+
+    private static void assertLegal(StateMachine sm, Move move) throws Exception {
+        assertTrue(sm.getLegalMoves(sm.getInitialState(), sm.getRoles().get(0)).contains(move));
+    }
+}
@@ -3,6 +3,7 @@ package org.ggp.base.test;
 import org.ggp.base.apps.tiltyard.TiltyardRequestFarmTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
+import org.ggp.base.player.gamer.statemachine.heavensbee.MCTSMPWorkerTest;
 import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
 import org.ggp.base.util.crypto.SignableJSONTest;
@@ -14,6 +15,9 @@ import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.factory.PropNetCacheTest;
+import org.ggp.base.util.propnet.factory.optimizer.PropNetOptimizerTest;
+import org.ggp.base.util.statemachine.implementation.heavensbeepropnet.HeavensbeePropNetStateMachineTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
@@ -29,9 +33,13 @@ import org.junit.runners.Suite;
 	GdlCleanerTest.class,
 	GdlRendererTest.class,
 	GdlScramblerTest.class,
+	HeavensbeePropNetStateMachineTest.class,
 	HttpTest.class,
 	InfoResponseTest.class,
+	MCTSMPWorkerTest.class,
 	NoTabsInRulesheetsTest.class,
+	PropNetCacheTest.class,
+	PropNetOptimizerTest.class,
 	ProverStateMachineTest.class,
 	PythonGamerTest.class,
 	SignableJSONTest.class,
@@ -0,0 +1,141 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that a propnet read back from the cache is the one that was
+ * written, and that a bad cache file is rebuilt rather than used.
+ */
+public class PropNetCacheTest extends Assert {
+
+    @Test
+    public void testReadMatchesWritten() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        PropNetCache cache = new PropNetCache(createTempDirectory());
+        File file = cache.getFile(desc);
+        assertFalse(file.exists());
+
+        PropNet built = cache.create(desc);
+        assertTrue(file.exists());
+        PropNet read = cache.create(desc);
+
+        assertEquals(built.getRoles(), read.getRoles());
+        assertEquals(built.getSize(), read.getSize());
+        assertEquals(built.getNumLinks(), read.getNumLinks());
+        assertEquals(built.getNumAnds(), read.getNumAnds());
+        assertEquals(built.getNumOrs(), read.getNumOrs());
+        assertEquals(built.getNumNots(), read.getNumNots());
+        assertEquals(built.getBasePropositions().keySet(), read.getBasePropositions().keySet());
+        assertEquals(built.getInputPropositions().keySet(), read.getInputPropositions().keySet());
+        assertEquals(built.getTerminalProposition().getName(), read.getTerminalProposition().getName());
+    }
+
+    @Test
+    public void testKeyIgnoresRuleOrder() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        List<Gdl> reversed = new ArrayList<Gdl>(desc);
+        Collections.reverse(reversed);
+        // Keep the roles in their original order, as that order matters.
+        reversed.removeAll(desc.subList(0, 2));
+        reversed.addAll(0, desc.subList(0, 2));
+        assertEquals(PropNetCache.getKey(desc), PropNetCache.getKey(reversed));
+
+        List<Gdl> other = new TestGameRepository().getGame("connectFour").getRules();
+        assertFalse(PropNetCache.getKey(desc).equals(PropNetCache.getKey(other)));
+    }
+
+    @Test
+    public void testCorruptFileIsRebuilt() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetCache cache = new PropNetCache(createTempDirectory());
+        File file = cache.getFile(desc);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+
+        PropNet propNet = cache.create(desc);
+        assertEquals(2, propNet.getRoles().size());
+        assertTrue(file.length() > 3);
+    }
+
+    @Test
+    public void testBadLengthIsRebuilt() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetCache cache = new PropNetCache(createTempDirectory());
+        File file = cache.getFile(desc);
+        cache.create(desc);
+        long length = file.length();
+
+        // The length of the builder version follows the magic number;
+        // neither a negative count nor one too big for the file may be
+        // believed.
+        for (int badCount : new int[] {-1, Integer.MAX_VALUE}) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(4);
+            raf.writeInt(badCount);
+            raf.close();
+
+            try {
+                PropNetCache.read(file);
+                fail("Read a propnet with a count of " + badCount);
+            } catch (IOException e) {
+                // Expected
+            }
+
+            PropNet propNet = cache.create(desc);
+            assertEquals(2, propNet.getRoles().size());
+            assertEquals(length, file.length());
+            assertEquals(2, PropNetCache.read(file).getRoles().size());
+        }
+    }
+
+    @Test
+    public void testOtherBuilderVersionIsRebuilt() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetCache cache = new PropNetCache(createTempDirectory());
+        File file = cache.getFile(desc);
+        cache.create(desc);
+        assertFalse(PropNetCache.getBuilderVersion().isEmpty());
+
+        // Change the first character of the builder version, which follows
+        // the magic number and its length.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(8);
+        byte first = raf.readByte();
+        raf.seek(8);
+        raf.writeByte(first == 'a' ? 'b' : 'a');
+        raf.close();
+
+        try {
+            PropNetCache.read(file);
+            fail("Read a propnet built by another version");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        PropNet propNet = cache.create(desc);
+        assertEquals(2, propNet.getRoles().size());
+        assertEquals(2, PropNetCache.read(file).getRoles().size());
+    }
+
+    private static File createTempDirectory() throws Exception {
+        File dir = File.createTempFile("propnets", "");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+}
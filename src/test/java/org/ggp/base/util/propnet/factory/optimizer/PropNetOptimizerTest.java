@@ -0,0 +1,137 @@
+package org.ggp.base.util.propnet.factory.optimizer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks each optimisation pass on a small hand-built propnet, and that the
+ * optimizer never makes a real propnet any bigger.
+ */
+public class PropNetOptimizerTest extends Assert {
+
+    private final Set<Component> components = new HashSet<Component>();
+
+    @Test
+    public void testConstantFolding() {
+        Proposition a = input("a");
+        Proposition terminal = terminal();
+        Or or = gate(new Or(), gate(new And(), a, constant(false)), gate(new Not(), constant(false)));
+        link(or, terminal);
+
+        assertTrue(new ConstantFoldingPass().apply(components));
+        assertTrue(terminal.getSingleInput() instanceof Constant);
+        assertTrue(terminal.getSingleInput().getValue());
+    }
+
+    @Test
+    public void testBufferCollapsing() {
+        Proposition a = input("a");
+        Proposition terminal = terminal();
+        Proposition view = new Proposition(GdlPool.getProposition(GdlPool.getConstant("view")));
+        components.add(view);
+        link(gate(new Not(), gate(new Not(), gate(new And(), a))), view);
+        link(view, terminal);
+
+        assertTrue(new BufferCollapsingPass().apply(components));
+        assertSame(a, terminal.getSingleInput());
+        assertFalse(components.contains(view));
+    }
+
+    @Test
+    public void testCommonSubexpressions() {
+        Proposition a = input("a");
+        Proposition b = input("b");
+        Proposition terminal = terminal();
+        And first = gate(new And(), a, b);
+        And second = gate(new And(), b, a, b);
+        link(gate(new Or(), gate(new Not(), first), gate(new Not(), second)), terminal);
+
+        assertTrue(new CommonSubexpressionPass().apply(components));
+        assertTrue(components.contains(first) != components.contains(second));
+        Component or = terminal.getSingleInput();
+        assertEquals(1, or.getInputs().size());
+        assertFalse(new CommonSubexpressionPass().apply(components));
+    }
+
+    @Test
+    public void testDeadComponents() {
+        Proposition a = input("a");
+        Proposition terminal = terminal();
+        link(a, terminal);
+        And dead = gate(new And(), a);
+        gate(new Not(), dead);
+
+        assertTrue(new DeadComponentPass().apply(components));
+        assertEquals(2, components.size());
+        assertEquals(1, a.getOutputs().size());
+    }
+
+    @Test
+    public void testOptimizedNetIsNoBigger() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        PropNet propNet = OptimizingPropNetFactory.create(desc);
+        int size = propNet.getSize();
+        int links = propNet.getNumLinks();
+        int ands = propNet.getNumAnds();
+        int ors = propNet.getNumOrs();
+        Set<Object> bases = new HashSet<Object>(propNet.getBasePropositions().keySet());
+        Set<Object> inputs = new HashSet<Object>(propNet.getInputPropositions().keySet());
+
+        PropNet optimized = PropNetOptimizer.createDefault().optimize(propNet);
+        assertTrue(optimized.getSize() < size);
+        assertTrue(optimized.getNumLinks() < links);
+        assertTrue(optimized.getNumAnds() <= ands);
+        assertTrue(optimized.getNumOrs() <= ors);
+        assertEquals(bases, new HashSet<Object>(optimized.getBasePropositions().keySet()));
+        assertEquals(inputs, new HashSet<Object>(optimized.getInputPropositions().keySet()));
+        assertNotNull(optimized.getTerminalProposition());
+    }
+
+    private Proposition input(String move) {
+        Proposition p = new Proposition(GdlPool.getRelation(GdlPool.DOES,
+                new GdlTerm[] {GdlPool.getConstant("player"), GdlPool.getConstant(move)}));
+        components.add(p);
+        return p;
+    }
+
+    private Proposition terminal() {
+        Proposition p = new Proposition(GdlPool.getProposition(GdlPool.TERMINAL));
+        components.add(p);
+        return p;
+    }
+
+    private Constant constant(boolean value) {
+        Constant c = new Constant(value);
+        components.add(c);
+        return c;
+    }
+
+    private <T extends Component> T gate(T gate, Component... inputs) {
+        components.add(gate);
+        for (Component input : inputs) {
+            link(input, gate);
+        }
+        return gate;
+    }
+
+    private static void link(Component input, Component output) {
+        input.addOutput(output);
+        output.addInput(input);
+    }
+}
@@ -0,0 +1,444 @@
+package org.ggp.base.util.statemachine.implementation.heavensbeepropnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.BatchedPropNet;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.LegalJointMoves;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * Checks the propnet state machine against the prover by walking both
+ * machines through the same random games and comparing every answer.
+ */
+public class HeavensbeePropNetStateMachineTest extends Assert {
+
+    private static final int NUM_GAMES = 10;
+
+    /** Keeps the propnets these tests build out of the working directory. */
+    private static final PropNetCache CACHE = new PropNetCache(Files.createTempDir());
+
+    @Test
+    public void testTicTacToeAgainstProver() throws Exception {
+        compareAgainstProver("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFourAgainstProver() throws Exception {
+        compareAgainstProver("connectFour");
+    }
+
+    @Test
+    public void testCompiledTicTacToeAgainstProver() throws Exception {
+        compareAgainstProver("ticTacToe", new HeavensbeeCompiledPropNetStateMachine(CACHE));
+    }
+
+    @Test
+    public void testCompiledConnectFourAgainstProver() throws Exception {
+        compareAgainstProver("connectFour", new HeavensbeeCompiledPropNetStateMachine(CACHE));
+    }
+
+    @Test
+    public void testInterleavedQueriesOnTwoStates() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(desc);
+        Role xplayer = propnet.getRoles().get(0);
+
+        // Moving from a state must not leave its values looking cached, and
+        // querying one state must not answer for the other.
+        MachineState first = propnet.getInitialState();
+        assertEquals(9, propnet.getLegalMoves(first, xplayer).size());
+        MachineState second = propnet.getNextState(first, propnet.getRandomJointMove(first));
+        assertEquals(9, propnet.getLegalMoves(first, xplayer).size());
+        assertEquals(1, propnet.getLegalMoves(second, xplayer).size());
+        assertEquals(9, propnet.getLegalMoves(first, xplayer).size());
+        assertEquals(1, propnet.getLegalMoves(second.clone(), xplayer).size());
+    }
+
+    @Test
+    public void testIndexedMovesMatchMoves() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(desc);
+        int numRoles = propnet.getRoles().size();
+
+        Random random = new Random(5);
+        for (int game = 0; game < NUM_GAMES; game++) {
+            MachineState state = propnet.getInitialState();
+            while (!propnet.isTerminal(state)) {
+                int[] jointIndices = new int[numRoles];
+                List<Move> jointMove = new ArrayList<Move>();
+                for (int r = 0; r < numRoles; r++) {
+                    int[] legalIndices = new int[propnet.getNumLegalIndices(r)];
+                    int numLegal = propnet.getLegalIndices(state, r, legalIndices);
+                    List<Move> legalMoves = propnet.getLegalMoves(state, propnet.getRoles().get(r));
+                    assertEquals(legalMoves.size(), numLegal);
+                    for (int i = 0; i < numLegal; i++) {
+                        Move move = propnet.getMoveByLegalIndex(r, legalIndices[i]);
+                        assertEquals(legalMoves.get(i), move);
+                        assertEquals(legalIndices[i], propnet.getLegalIndex(r, move));
+                    }
+                    jointIndices[r] = legalIndices[random.nextInt(numLegal)];
+                    jointMove.add(propnet.getMoveByLegalIndex(r, jointIndices[r]));
+                }
+                MachineState next = propnet.getNextState(state, jointIndices);
+                assertEquals(propnet.getNextState(state, jointMove), next);
+                state = next;
+            }
+        }
+    }
+
+    @Test
+    public void testAllLegalMovesMatchProver() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(desc);
+        ProverStateMachine prover = new ProverStateMachine();
+        prover.initialize(desc);
+        List<Role> roles = propnet.getRoles();
+
+        Random random = new Random(7);
+        for (int game = 0; game < NUM_GAMES; game++) {
+            MachineState state = propnet.getInitialState();
+            MachineState proverState = prover.getInitialState();
+            while (!propnet.isTerminal(state)) {
+                // A fresh copy of the state, so nothing is answered from the cache.
+                LegalJointMoves all = propnet.getAllLegalMoves(state.clone());
+                for (int r = 0; r < roles.size(); r++) {
+                    assertEquals(new HashSet<Move>(prover.getLegalMoves(proverState, roles.get(r))),
+                                 new HashSet<Move>(all.getLegalMoves(r)));
+                    assertEquals(propnet.getLegalMoves(state, roles.get(r)), all.getLegalMoves(r));
+                }
+
+                List<List<Move>> crossProduct = new ArrayList<List<Move>>();
+                for (List<Move> jointMove : all) {
+                    crossProduct.add(jointMove);
+                }
+                assertEquals(all.size(), crossProduct.size());
+                assertEquals(new HashSet<List<Move>>(prover.getLegalJointMoves(proverState)),
+                             new HashSet<List<Move>>(crossProduct));
+                assertEquals(crossProduct, propnet.getLegalJointMoves(state));
+
+                List<Move> jointMove = all.get(random.nextInt(all.size()));
+                state = propnet.getNextState(state, jointMove);
+                proverState = prover.getNextState(proverState, jointMove);
+            }
+        }
+    }
+
+    @Test
+    public void testTerminalAndGoalsMatchSeparateQueries() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(desc);
+        ProverStateMachine prover = new ProverStateMachine();
+        prover.initialize(desc);
+        CachedStateMachine cached = new CachedStateMachine(new ProverStateMachine());
+        cached.initialize(desc);
+        int numRoles = propnet.getRoles().size();
+
+        for (int game = 0; game < NUM_GAMES; game++) {
+            MachineState state = propnet.getInitialState();
+            MachineState proverState = prover.getInitialState();
+            while (true) {
+                boolean terminal = prover.isTerminal(proverState);
+                int[] propnetGoals = new int[numRoles];
+                int[] proverGoals = new int[numRoles];
+                int[] cachedGoals = new int[numRoles];
+                assertEquals(terminal, propnet.getTerminalAndGoals(state.clone(), propnetGoals));
+                assertEquals(terminal, prover.getTerminalAndGoals(proverState, proverGoals));
+                // Once to fill the cache, then again to read from it.
+                assertEquals(terminal, cached.getTerminalAndGoals(proverState, cachedGoals));
+                assertEquals(terminal, cached.getTerminalAndGoals(proverState, cachedGoals));
+                if (terminal) {
+                    List<Integer> goals = prover.getGoals(proverState);
+                    for (int r = 0; r < numRoles; r++) {
+                        assertEquals((int) goals.get(r), propnetGoals[r]);
+                        assertEquals((int) goals.get(r), proverGoals[r]);
+                        assertEquals((int) goals.get(r), cachedGoals[r]);
+                    }
+                    break;
+                }
+                List<Move> jointMove = prover.getRandomJointMove(proverState);
+                state = propnet.getNextState(state, jointMove);
+                proverState = prover.getNextState(proverState, jointMove);
+            }
+        }
+    }
+
+    @Test
+    public void testZobristHashes() throws Exception {
+        checkZobristHashes(new HeavensbeePropNetStateMachine(CACHE));
+        checkZobristHashes(new HeavensbeeCompiledPropNetStateMachine(CACHE));
+    }
+
+    protected void checkZobristHashes(HeavensbeePropNetStateMachine propnet) throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        propnet.initialize(desc);
+        long[] keys = propnet.getPropNet().getZobristKeys();
+
+        // Each state's hash is the xor of the keys of its true bases.
+        Random random = new Random(9);
+        for (int game = 0; game < NUM_GAMES; game++) {
+            MachineState state = propnet.getInitialState();
+            while (true) {
+                HeavensbeeMachineState hbstate = (HeavensbeeMachineState) state;
+                long expected = 0;
+                long[] bases = hbstate.get_bases();
+                for (int i = 0; i < keys.length; i++) {
+                    if ((bases[i >>> 6] & (1L << i)) != 0) {
+                        expected ^= keys[i];
+                    }
+                }
+                assertEquals(expected, hbstate.get_zobrist_hash());
+                if (propnet.isTerminal(state)) {
+                    break;
+                }
+                List<List<Move>> jointMoves = propnet.getLegalJointMoves(state);
+                state = propnet.getNextState(state, jointMoves.get(random.nextInt(jointMoves.size())));
+            }
+        }
+
+        // The same position reached by different move orders is equal, with
+        // the same hash.
+        List<MachineState> states = Collections.singletonList(propnet.getInitialState());
+        for (int ply = 0; ply < 3; ply++) {
+            List<MachineState> nextStates = new ArrayList<MachineState>();
+            for (MachineState state : states) {
+                for (List<Move> jointMove : propnet.getLegalJointMoves(state)) {
+                    nextStates.add(propnet.getNextState(state, jointMove));
+                }
+            }
+            states = nextStates;
+        }
+        int transpositions = 0;
+        Map<String, MachineState> seen = new HashMap<String, MachineState>();
+        for (MachineState state : states) {
+            MachineState other = seen.put(state.toString(), state);
+            if (other != null) {
+                assertEquals(other, state);
+                assertEquals(((HeavensbeeMachineState) other).get_zobrist_hash(),
+                             ((HeavensbeeMachineState) state).get_zobrist_hash());
+                transpositions++;
+            }
+        }
+        assertTrue(transpositions > 0);
+        assertEquals(seen.size(), new HashSet<MachineState>(states).size());
+    }
+
+    @Test
+    public void testFastDepthCharges() throws Exception {
+        checkFastDepthCharges(new HeavensbeePropNetStateMachine(CACHE));
+        checkFastDepthCharges(new HeavensbeeCompiledPropNetStateMachine(CACHE));
+    }
+
+    protected void checkFastDepthCharges(HeavensbeePropNetStateMachine propnet) throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        propnet.initialize(desc);
+        Role red = propnet.getRoles().get(0);
+        MachineState initial = propnet.getInitialState();
+        List<Move> initialMoves = propnet.getLegalMoves(initial, red);
+        int[] goals = new int[2];
+
+        for (int charge = 0; charge < NUM_GAMES; charge++) {
+            int depth = propnet.performFastDepthCharge(initial, Long.MAX_VALUE, goals);
+            assertTrue(depth >= 7);
+            assertEquals(100, goals[0] + goals[1]);
+
+            // The machine must still answer correctly for the start state.
+            assertFalse(propnet.isTerminal(initial));
+            assertEquals(initialMoves, propnet.getLegalMoves(initial.clone(), red));
+        }
+
+        // A depth charge from a terminal state just reads its goals.
+        int[] depth = new int[1];
+        MachineState terminal = propnet.performDepthCharge(initial, depth);
+        assertEquals(0, propnet.performFastDepthCharge(terminal, Long.MAX_VALUE, goals));
+        assertEquals(propnet.getGoals(terminal), Arrays.asList(goals[0], goals[1]));
+    }
+
+    @Test
+    public void testBatchedEvaluationMatchesSingle() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(desc);
+        int numRoles = propnet.getRoles().size();
+
+        // Fill a batch with states from random games, including terminal
+        // ones, and a random legal joint move for each non-terminal one.
+        Random random = new Random(11);
+        MachineState[] states = new MachineState[60];
+        int[][] jointMoves = new int[states.length][numRoles];
+        MachineState state = propnet.getInitialState();
+        for (int lane = 0; lane < states.length; lane++) {
+            states[lane] = state;
+            if (propnet.isTerminal(state)) {
+                state = propnet.getInitialState();
+                continue;
+            }
+            for (int r = 0; r < numRoles; r++) {
+                int[] legalIndices = new int[propnet.getNumLegalIndices(r)];
+                int numLegal = propnet.getLegalIndices(state, r, legalIndices);
+                jointMoves[lane][r] = legalIndices[random.nextInt(numLegal)];
+            }
+            state = propnet.getNextState(state, jointMoves[lane]);
+        }
+
+        long terminal = propnet.evaluateBatch(states, jointMoves, states.length);
+        for (int lane = 0; lane < states.length; lane++) {
+            long bit = 1L << lane;
+            boolean isTerminal = propnet.isTerminal(states[lane]);
+            assertEquals(isTerminal, (terminal & bit) != 0);
+            for (int r = 0; r < numRoles; r++) {
+                int[] legalIndices = new int[propnet.getNumLegalIndices(r)];
+                int numLegal = propnet.getLegalIndices(states[lane], r, legalIndices);
+                Set<Integer> legal = new HashSet<Integer>();
+                for (int i = 0; i < numLegal; i++) {
+                    legal.add(legalIndices[i]);
+                }
+                for (int i = 0; i < propnet.getNumLegalIndices(r); i++) {
+                    assertEquals(legal.contains(i), (propnet.getBatchLegalMask(r, i) & bit) != 0);
+                }
+                if (isTerminal) {
+                    int goal = propnet.getGoal(states[lane], propnet.getRoles().get(r));
+                    assertTrue((propnet.getBatchGoalMask(r, goal) & bit) != 0);
+                }
+            }
+            if (!isTerminal) {
+                assertEquals(propnet.getNextState(states[lane], jointMoves[lane]),
+                             propnet.getBatchNextState(lane));
+            }
+        }
+
+        // Batched depth charges all reach terminal states.
+        int[][] goals = new int[BatchedPropNet.LANES][numRoles];
+        int depth = propnet.performBatchedDepthCharges(propnet.getInitialState(), Long.MAX_VALUE, goals);
+        assertTrue(depth >= 7 * BatchedPropNet.LANES);
+        for (int[] laneGoals : goals) {
+            assertEquals(100, laneGoals[0] + laneGoals[1]);
+        }
+    }
+
+    @Test
+    public void testWorkerCopiesRunConcurrently() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        final HeavensbeePropNetStateMachine propnet = new HeavensbeePropNetStateMachine(CACHE);
+        propnet.initialize(desc);
+
+        // Each worker plays random games on its own copy, recording the
+        // final goals; the games are then replayed on the original machine.
+        final int numWorkers = 4;
+        final List<List<List<Move>>> games = new ArrayList<List<List<Move>>>();
+        final List<List<Integer>> goals = new ArrayList<List<Integer>>();
+        final List<Exception> failures = new ArrayList<Exception>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < numWorkers; i++) {
+            final HeavensbeePropNetStateMachine copy = propnet.createWorkerCopy();
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int game = 0; game < NUM_GAMES; game++) {
+                            List<List<Move>> moves = new ArrayList<List<Move>>();
+                            MachineState state = copy.getInitialState();
+                            while (!copy.isTerminal(state)) {
+                                List<Move> jointMove = copy.getRandomJointMove(state);
+                                moves.add(jointMove);
+                                state = copy.getNextState(state, jointMove);
+                            }
+                            synchronized (games) {
+                                games.add(moves);
+                                goals.add(copy.getGoals(state));
+                            }
+                        }
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(numWorkers * NUM_GAMES, games.size());
+
+        for (int game = 0; game < games.size(); game++) {
+            MachineState state = propnet.getInitialState();
+            for (List<Move> jointMove : games.get(game)) {
+                assertFalse(propnet.isTerminal(state));
+                state = propnet.getNextState(state, jointMove);
+            }
+            assertTrue(propnet.isTerminal(state));
+            assertEquals(goals.get(game), propnet.getGoals(state));
+        }
+    }
+
+    protected void compareAgainstProver(String gameKey) throws Exception {
+        compareAgainstProver(gameKey, new HeavensbeePropNetStateMachine(CACHE));
+    }
+
+    protected void compareAgainstProver(String gameKey, HeavensbeePropNetStateMachine propnet) throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        ProverStateMachine prover = new ProverStateMachine();
+        prover.initialize(desc);
+        propnet.initialize(desc);
+        if (propnet instanceof HeavensbeeCompiledPropNetStateMachine) {
+            assertTrue(((HeavensbeeCompiledPropNetStateMachine) propnet).isCompiled());
+        }
+
+        List<Role> roles = prover.getRoles();
+        assertEquals(roles, propnet.getRoles());
+
+        Random random = new Random(gameKey.hashCode());
+        for (int game = 0; game < NUM_GAMES; game++) {
+            MachineState proverState = prover.getInitialState();
+            MachineState propnetState = propnet.getInitialState();
+
+            while (true) {
+                boolean terminal = prover.isTerminal(proverState);
+                assertEquals(terminal, propnet.isTerminal(propnetState));
+                if (terminal) {
+                    assertEquals(prover.getGoals(proverState), propnet.getGoals(propnetState));
+                    break;
+                }
+
+                List<Move> jointMove = new ArrayList<Move>();
+                for (Role role : roles) {
+                    List<Move> proverMoves = prover.getLegalMoves(proverState, role);
+                    List<Move> propnetMoves = propnet.getLegalMoves(propnetState, role);
+                    assertEquals(new HashSet<Move>(proverMoves), new HashSet<Move>(propnetMoves));
+                    assertEquals(proverMoves.size(), propnetMoves.size());
+                    jointMove.add(proverMoves.get(random.nextInt(proverMoves.size())));
+                }
+
+                proverState = prover.getNextState(proverState, jointMove);
+                propnetState = propnet.getNextState(propnetState, jointMove);
+            }
+        }
+    }
+}